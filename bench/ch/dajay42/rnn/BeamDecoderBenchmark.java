@@ -0,0 +1,44 @@
+package ch.dajay42.rnn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**Deterministic completion of {@link #length} characters by {@link BeamDecoder}, greedy for a width of one.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BeamDecoderBenchmark {
+
+	@Param({"fused", "float"})
+	String cell;
+
+	@Param({"128", "512"})
+	int hiddenSize;
+
+	@Param({"1", "4", "16"})
+	int width;
+
+	@Param({"64"})
+	int length;
+
+	private BeamDecoder decoder;
+	private int[] seed;
+
+	@Setup
+	public void setup(){
+		RnnEncDec<Byte> encDec = BenchmarkSupport.asciiEncDec();
+		FlatRnn rnn = (FlatRnn) BenchmarkSupport.create(cell, hiddenSize, encDec.classes);
+		decoder = new BeamDecoder(rnn, width);
+		seed = new int[]{encDec.encodeIndex((byte) '\n')};
+	}
+
+	@Benchmark
+	public int[] decode(){
+		return decoder.decode(seed, length);
+	}
+}
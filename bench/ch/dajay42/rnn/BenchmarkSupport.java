@@ -0,0 +1,53 @@
+package ch.dajay42.rnn;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+/**Shared setup for the benchmarks, mirroring what {@link RnnMain} does on startup.
+ * */
+final class BenchmarkSupport {
+
+	private BenchmarkSupport(){}
+
+	static RnnEncDec<Byte> asciiEncDec(){
+		Set<Byte> charset = new HashSet<>();
+		for(byte s = 0; s >= 0; s++){
+			charset.add(s);
+		}
+		return new RnnEncDec<>(charset);
+	}
+
+	static Rnn create(String cell, int hiddenSize, int classes){
+		switch(cell){
+			case "minimal":
+				return new MinimalRnn(hiddenSize, classes);
+			case "fused":
+				return new FusedRnn(hiddenSize, classes);
+			case "float":
+				return new FloatRnn(hiddenSize, classes, false);
+			case "mixed":
+				return new FloatRnn(hiddenSize, classes, true);
+			case "lstm":
+				return new LstmRnn(hiddenSize, classes);
+			case "gru":
+				return new GruRnn(hiddenSize, classes);
+			case "stacked":
+				return new StackedRnn(2, hiddenSize, classes);
+			default:
+				throw new IllegalArgumentException("Unknown cell type: " + cell);
+		}
+	}
+
+	static byte[] loadText(String path) throws IOException {
+		return Files.readAllBytes(FileSystems.getDefault().getPath(path));
+	}
+
+	/**Encode text like {@link RnnMain} reads it, every byte outside the alphabet of encDec as '?'.
+	 * */
+	static int[] encode(RnnEncDec<Byte> encDec, byte[] text){
+		return ByteCodec.of(encDec, (byte) '?').encode(text);
+	}
+}
@@ -0,0 +1,56 @@
+package ch.dajay42.rnn;
+
+import java.nio.file.FileSystems;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**Scoring a validation range of a corpus once, with the segments of each thread advanced as a batch.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvaluatorBenchmark {
+
+	@Param({"fused", "float", "lstm"})
+	String cell;
+
+	@Param({"128", "512"})
+	int hiddenSize;
+
+	@Param({"1", "2", "4"})
+	int threads;
+
+	@Param({"10000"})
+	int symbols;
+
+	@Param({"res/shakespear.txt"})
+	String corpus;
+
+	private Corpus text;
+	private Rnn rnn;
+	private Evaluator evaluator;
+
+	@Setup
+	public void setup() throws Exception {
+		Vocabulary vocabulary = Vocabulary.ascii();
+		text = new Corpus(FileSystems.getDefault().getPath(corpus), vocabulary.codec());
+		rnn = BenchmarkSupport.create(cell, hiddenSize, vocabulary.size);
+		long from = Math.max(0, text.length - symbols);
+		evaluator = new Evaluator(text, vocabulary, from, text.length, threads, null);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		evaluator.close();
+		text.close();
+	}
+
+	@Benchmark
+	public double evaluate() throws InterruptedException {
+		return evaluator.evaluate(rnn);
+	}
+}
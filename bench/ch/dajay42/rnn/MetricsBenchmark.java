@@ -0,0 +1,36 @@
+package ch.dajay42.rnn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**Cost of the always-on metrics: timing and recording one duration, from one thread and from four at once
+ * into the same histogram, as the workers of a {@link ParallelTrainer} do, and rendering the Prometheus text.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	@Benchmark
+	public long record() {
+		return histogram.since(System.nanoTime());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public long recordContended() {
+		return histogram.since(System.nanoTime());
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public String prometheus() {
+		return Metrics.prometheus();
+	}
+}
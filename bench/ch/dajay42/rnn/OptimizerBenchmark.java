@@ -0,0 +1,49 @@
+package ch.dajay42.rnn;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**One {@link Optimizer#update(double[][], double[][], double)} of all parameters of a fused RNN, the
+ * part of a training step that grows with the optimizer state rather than the chunk size.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OptimizerBenchmark {
+
+	@Param({"0", "1", "2", "3"})
+	int optimizer;
+
+	@Param({"128", "512"})
+	int hiddenSize;
+
+	private double[][] parameters;
+	private double[][] gradients;
+	private Optimizer updater;
+
+	@Setup
+	public void setup(){
+		int classes = BenchmarkSupport.asciiEncDec().classes;
+		FlatRnn rnn = (FlatRnn) BenchmarkSupport.create("fused", hiddenSize, classes);
+		parameters = (double[][]) rnn.parameters();
+		SplittableRandom random = new SplittableRandom(42);
+		gradients = new double[parameters.length][];
+		for(int i = 0; i < parameters.length; i++){
+			gradients[i] = new double[parameters[i].length];
+			for(int k = 0; k < gradients[i].length; k++)
+				gradients[i][k] = random.nextDouble(-1e-3, 1e-3);
+		}
+		updater = Optimizer.create(optimizer, parameters);
+	}
+
+	@Benchmark
+	public double[][] update(){
+		updater.update(parameters, gradients, 1e-3);
+		return parameters;
+	}
+}
@@ -0,0 +1,54 @@
+package ch.dajay42.rnn;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**Priming a fresh {@link Session} with a long prompt: feeding every symbol, against finding the prompt
+ * in a {@link PrefixCache}.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrefixCacheBenchmark {
+
+	@Param({"128", "512"})
+	int hiddenSize;
+
+	@Param({"2048"})
+	int promptLength;
+
+	private FlatRnn rnn;
+	private PrefixCache cache;
+	private int[] prompt;
+	private long seed = 0;
+
+	@Setup
+	public void setup(){
+		int classes = BenchmarkSupport.asciiEncDec().classes;
+		rnn = (FlatRnn) BenchmarkSupport.create("fused", hiddenSize, classes);
+		SplittableRandom random = new SplittableRandom(42);
+		prompt = new int[promptLength];
+		for(int i = 0; i < prompt.length; i++)
+			prompt[i] = random.nextInt(classes);
+		cache = new PrefixCache(1);
+	}
+
+	@Benchmark
+	public Session feed(){
+		Session session = new Session(rnn, seed++);
+		session.feed(prompt);
+		return session;
+	}
+
+	@Benchmark
+	public Session cached(){
+		Session session = new Session(rnn, seed++);
+		cache.prime(session, prompt);
+		return session;
+	}
+}
@@ -0,0 +1,55 @@
+package ch.dajay42.rnn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**Single-symbol inference of a vanilla RNN with double, float and 8 bit weights, each from its own hidden state
+ * through {@link Rnn#forward}, as a {@link Session} steps it.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QuantizedRnnBenchmark {
+
+	@Param({"fused", "float", "int8"})
+	String weights;
+
+	@Param({"256", "512", "1024"})
+	int hiddenSize;
+
+	@Param({"res/shakespear.txt"})
+	String corpus;
+
+	private Rnn rnn;
+	private int[] symbols;
+	private int position;
+	private double[] h, hNext, y;
+
+	@Setup
+	public void setup() throws Exception {
+		RnnEncDec<Byte> encDec = BenchmarkSupport.asciiEncDec();
+		symbols = BenchmarkSupport.encode(encDec, BenchmarkSupport.loadText(corpus));
+		rnn = "int8".equals(weights)
+				? QuantizedRnn.of((FlatRnn) BenchmarkSupport.create("float", hiddenSize, encDec.classes))
+				: BenchmarkSupport.create(weights, hiddenSize, encDec.classes);
+		h = new double[rnn.getStateSize()];
+		hNext = new double[h.length];
+		y = new double[rnn.getVocabSize()];
+		position = 0;
+	}
+
+	@Benchmark
+	public double[] step() {
+		int symbol = symbols[position];
+		position = (position + 1) % symbols.length;
+		rnn.forward(symbol, h, hNext, y);
+		double[] t = h;
+		h = hNext;
+		hNext = t;
+		return y;
+	}
+}
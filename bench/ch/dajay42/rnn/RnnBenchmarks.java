@@ -0,0 +1,29 @@
+package ch.dajay42.rnn;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**Runs the benchmarks whose names match the given regular expressions, or all of them,
+ * with the GC profiler attached so allocation rates are reported alongside throughput.
+ * <p>
+ * Must be started from the project root, as the corpora are read from res/.
+ * */
+public class RnnBenchmarks {
+
+	public static void main(String[] args) throws RunnerException {
+		OptionsBuilder builder = new OptionsBuilder();
+		if(args.length == 0){
+			builder.include(RnnBenchmarks.class.getPackage().getName() + ".*Benchmark");
+		}else{
+			for(String arg : args)
+				builder.include(arg);
+		}
+		Options options = builder
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
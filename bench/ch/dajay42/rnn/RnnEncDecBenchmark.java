@@ -0,0 +1,103 @@
+package ch.dajay42.rnn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ch.dajay42.math.linAlg.Matrix;
+
+/**Encoding and decoding of a corpus, one symbol per operation, through the maps of an {@link RnnEncDec}
+ * and the tables of a {@link ByteCodec}, and a block of {@link #BLOCK} symbols per operation through both.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RnnEncDecBenchmark {
+
+	private static final int BLOCK = 4096;
+
+	@Param({"res/lipsum.txt", "res/shakespear.txt", "res/cano.txt"})
+	String corpus;
+
+	private RnnEncDec<Byte> encDec;
+	private ByteCodec codec;
+	private int[] symbols;
+	private byte[] bytes;
+	private byte[] text;
+	private Matrix[] encoded;
+	private int position;
+
+	@Setup
+	public void setup() throws Exception {
+		encDec = BenchmarkSupport.asciiEncDec();
+		text = BenchmarkSupport.loadText(corpus);
+		encoded = new Matrix[Math.min(text.length, 4096)];
+		for(int i = 0; i < encoded.length; i++)
+			encoded[i] = encDec.encode(text[i]);
+		position = 0;
+		codec = ByteCodec.of(encDec, (byte) '?');
+		symbols = new int[BLOCK];
+		bytes = new byte[BLOCK];
+	}
+
+	@Benchmark
+	public Matrix encode() {
+		position = (position + 1) % text.length;
+		return encDec.encode(text[position]);
+	}
+
+	@Benchmark
+	public int encodeIndex() {
+		position = (position + 1) % text.length;
+		return encDec.encodeIndex(text[position]);
+	}
+
+	@Benchmark
+	public void decode(Blackhole bh) {
+		position = (position + 1) % encoded.length;
+		bh.consume(encDec.decode(encoded[position]));
+	}
+
+	@Benchmark
+	public void decodeMax(Blackhole bh) {
+		position = (position + 1) % encoded.length;
+		bh.consume(encDec.decodeMax(encoded[position]));
+	}
+
+	@Benchmark
+	public int codecEncode() {
+		position = (position + 1) % text.length;
+		return codec.encode(text[position]);
+	}
+
+	@Benchmark
+	public int[] encodeIndexBlock() {
+		int n = Math.min(BLOCK, text.length);
+		for(int i = 0; i < n; i++)
+			symbols[i] = encDec.encodeIndex(text[i]);
+		return symbols;
+	}
+
+	@Benchmark
+	public int[] codecEncodeBlock() {
+		codec.encode(text, 0, Math.min(BLOCK, text.length), symbols, 0);
+		return symbols;
+	}
+
+	@Benchmark
+	public byte[] decodeIndexBlock() {
+		for(int i = 0; i < BLOCK; i++)
+			bytes[i] = encDec.decodeIndex(symbols[i]);
+		return bytes;
+	}
+
+	@Benchmark
+	public byte[] codecDecodeBlock() {
+		codec.decode(symbols, 0, BLOCK, bytes, 0);
+		return bytes;
+	}
+}
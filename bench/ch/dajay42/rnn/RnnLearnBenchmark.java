@@ -0,0 +1,61 @@
+package ch.dajay42.rnn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ch.dajay42.math.linAlg.ColumnVectorDense;
+import ch.dajay42.math.linAlg.Matrix;
+
+/**One chunk of training: {@link Rnn#learn(int[], int[], Matrix)} as driven by {@link RnnMain}.
+ * Throughput is in chunks, so multiply by one less than the chunk size to compare characters per
+ * second, as consecutive chunks share a symbol.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RnnLearnBenchmark {
+
+	@Param({"minimal", "fused", "float", "mixed", "lstm", "gru", "stacked"})
+	String cell;
+
+	@Param({"32", "64", "128", "256", "512"})
+	int hiddenSize;
+
+	@Param({"32", "100", "1000"})
+	int chunkSize;
+
+	@Param({"res/shakespear.txt", "res/input.txt", "res/cano.txt"})
+	String corpus;
+
+	private Rnn rnn;
+	private int[] symbols;
+	private int[] in;
+	private int[] exout;
+	private int offset;
+
+	@Setup
+	public void setup() throws Exception {
+		RnnEncDec<Byte> encDec = BenchmarkSupport.asciiEncDec();
+		symbols = BenchmarkSupport.encode(encDec, BenchmarkSupport.loadText(corpus));
+		rnn = BenchmarkSupport.create(cell, hiddenSize, encDec.classes);
+		rnn.setH(new ColumnVectorDense(rnn.getStateSize()));
+		in = new int[chunkSize];
+		exout = new int[chunkSize];
+		offset = 0;
+	}
+
+	@Benchmark
+	public Matrix[] learn() {
+		for(int j = 0; j < chunkSize; j++){
+			int k = (j + offset) % symbols.length;
+			in[j] = symbols[k];
+			exout[j] = symbols[k];
+		}
+		offset = (offset + chunkSize - 1) % symbols.length;
+		return rnn.learn(in, exout, rnn.getH());
+	}
+}
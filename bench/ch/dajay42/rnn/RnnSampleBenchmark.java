@@ -0,0 +1,62 @@
+package ch.dajay42.rnn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ch.dajay42.math.linAlg.ColumnVectorDense;
+import ch.dajay42.math.linAlg.Matrix;
+
+/**Generation of {@link #length} characters from a one character seed, both materialized as a list by
+ * {@link Rnn#sample} and streamed by a {@link Session}, as done by the sample command.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RnnSampleBenchmark {
+
+	@Param({"minimal", "fused", "float", "mixed", "lstm", "gru"})
+	String cell;
+
+	@Param({"32", "64", "128", "256", "512"})
+	int hiddenSize;
+
+	@Param({"256"})
+	int length;
+
+	private Rnn rnn;
+	private Matrix[] seed;
+	private Vocabulary vocabulary;
+	private int newline;
+	private WritableByteChannel sink;
+
+	@Setup
+	public void setup() {
+		RnnEncDec<Byte> encDec = BenchmarkSupport.asciiEncDec();
+		rnn = BenchmarkSupport.create(cell, hiddenSize, encDec.classes);
+		seed = new Matrix[]{encDec.encode((byte) '\n')};
+		vocabulary = Vocabulary.ascii();
+		newline = encDec.encodeIndex((byte) '\n');
+		sink = Channels.newChannel(OutputStream.nullOutputStream());
+	}
+
+	@Benchmark
+	public List<Matrix> sample() {
+		return rnn.sample(new ColumnVectorDense(rnn.getStateSize()), seed, length);
+	}
+
+	@Benchmark
+	public long stream() throws IOException {
+		Session session = new Session(rnn, 0);
+		session.feed(newline);
+		return session.write(sink, vocabulary, length);
+	}
+}
@@ -0,0 +1,48 @@
+package ch.dajay42.rnn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ch.dajay42.math.linAlg.ColumnVectorDense;
+import ch.dajay42.math.linAlg.Matrix;
+
+/**Single-symbol inference: {@link Rnn#step(int)} over a corpus.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RnnStepBenchmark {
+
+	@Param({"minimal", "fused", "float", "mixed", "lstm", "gru"})
+	String cell;
+
+	@Param({"32", "64", "128", "256", "512"})
+	int hiddenSize;
+
+	@Param({"res/shakespear.txt"})
+	String corpus;
+
+	private Rnn rnn;
+	private int[] symbols;
+	private int position;
+
+	@Setup
+	public void setup() throws Exception {
+		RnnEncDec<Byte> encDec = BenchmarkSupport.asciiEncDec();
+		symbols = BenchmarkSupport.encode(encDec, BenchmarkSupport.loadText(corpus));
+		rnn = BenchmarkSupport.create(cell, hiddenSize, encDec.classes);
+		rnn.setH(new ColumnVectorDense(rnn.getStateSize()));
+		position = 0;
+	}
+
+	@Benchmark
+	public Matrix step() {
+		int symbol = symbols[position];
+		position = (position + 1) % symbols.length;
+		return rnn.step(symbol);
+	}
+}
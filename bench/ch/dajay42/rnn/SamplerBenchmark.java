@@ -0,0 +1,49 @@
+package ch.dajay42.rnn;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**Drawing one symbol from an output vector through the shared {@link Sampler}, with and without truncation.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SamplerBenchmark {
+
+	@Param({"128", "4096"})
+	int vocabSize;
+
+	@Param({"0", "40"})
+	int topK;
+
+	@Param({"100", "90"})
+	int topPercent;
+
+	private Sampler sampler;
+	private SplittableRandom random;
+	private double[] scores;
+	private double[] y;
+
+	@Setup
+	public void setup(){
+		sampler = new Sampler(vocabSize);
+		sampler.setTopK(topK);
+		sampler.setTopP(topPercent / 100.0);
+		random = new SplittableRandom(42);
+		scores = new double[vocabSize];
+		for(int k = 0; k < vocabSize; k++)
+			scores[k] = random.nextGaussian() * 3;
+		y = new double[vocabSize];
+	}
+
+	@Benchmark
+	public int draw(){
+		System.arraycopy(scores, 0, y, 0, vocabSize);
+		return sampler.draw(y, vocabSize, 1.0, random.nextDouble());
+	}
+}
@@ -0,0 +1,71 @@
+package ch.dajay42.rnn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**One symbol for each of several concurrent sessions: stepped one at a time through
+ * {@link FlatRnn#forward}, and all at once through {@link FlatRnn#forwardBatch}, as the
+ * {@link GenerationScheduler} does every tick.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionStepBenchmark {
+
+	@Param({"fused", "float"})
+	String cell;
+
+	@Param({"128", "512"})
+	int hiddenSize;
+
+	@Param({"1", "16", "64"})
+	int sessions;
+
+	private FlatRnn rnn;
+	private double[][] h;
+	private double[][] hNext;
+	private double[] y;
+	private double[] block;
+	private double[] blockNext;
+	private double[] blockY;
+	private int[] x;
+
+	@Setup
+	public void setup(){
+		int classes = BenchmarkSupport.asciiEncDec().classes;
+		rnn = (FlatRnn) BenchmarkSupport.create(cell, hiddenSize, classes);
+		h = new double[sessions][hiddenSize];
+		hNext = new double[sessions][hiddenSize];
+		y = new double[classes];
+		block = new double[hiddenSize * sessions];
+		blockNext = new double[hiddenSize * sessions];
+		blockY = new double[classes * sessions];
+		x = new int[sessions];
+		for(int b = 0; b < sessions; b++)
+			x[b] = 'a' + b % 26;
+	}
+
+	@Benchmark
+	public double[] individual(){
+		for(int b = 0; b < sessions; b++){
+			rnn.forward(x[b], h[b], hNext[b], y);
+			double[] t = h[b];
+			h[b] = hNext[b];
+			hNext[b] = t;
+		}
+		return y;
+	}
+
+	@Benchmark
+	public double[] batched(){
+		rnn.forwardBatch(sessions, x, block, blockNext, blockY);
+		double[] t = block;
+		block = blockNext;
+		blockNext = t;
+		return blockY;
+	}
+}
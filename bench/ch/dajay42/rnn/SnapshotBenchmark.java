@@ -0,0 +1,73 @@
+package ch.dajay42.rnn;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**Storing and loading a whole RNN, both through Java serialization in memory and as a binary
+ * {@link Snapshot} on disk. Binary snapshots of a minimal cell are taken of its fused copy.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotBenchmark {
+
+	@Param({"minimal", "fused", "float", "mixed", "lstm", "gru"})
+	String cell;
+
+	@Param({"32", "128", "512"})
+	int hiddenSize;
+
+	private Rnn rnn;
+	private byte[] stored;
+	private FlatRnn flat;
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException {
+		rnn = BenchmarkSupport.create(cell, hiddenSize, BenchmarkSupport.asciiEncDec().classes);
+		stored = store();
+		flat = rnn instanceof FlatRnn ? (FlatRnn) rnn : FusedRnn.of((MinimalRnn) rnn);
+		file = Files.createTempFile("snapshot", ".rnn");
+		Snapshot.write(flat, file, true, 0);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public byte[] store() throws IOException {
+		try(ByteArrayOutputStream bs = new ByteArrayOutputStream()){
+			try(ObjectOutputStream s = new ObjectOutputStream(bs)){
+				s.writeObject(rnn);
+				s.flush();
+				return bs.toByteArray();
+			}
+		}
+	}
+
+	@Benchmark
+	public Object load() throws IOException, ClassNotFoundException {
+		try(ObjectInputStream s = new ObjectInputStream(new ByteArrayInputStream(stored))){
+			return s.readObject();
+		}
+	}
+
+	@Benchmark
+	public void storeSnapshot() throws IOException {
+		Snapshot.write(flat, file, true, 0);
+	}
+
+	@Benchmark
+	public Snapshot loadSnapshot() throws IOException {
+		return Snapshot.read(file);
+	}
+}
@@ -0,0 +1,60 @@
+package ch.dajay42.rnn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**One update of truncated backpropagation through time, {@link FlatRnn#learnTruncated(int[], int)}, as
+ * driven by {@link RnnMain} with a window of chunkSize symbols sliding on by stride symbols at a time.
+ * Throughput is in updates, so multiply by the stride to compare characters per second.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TruncatedBpttBenchmark {
+
+	@Param({"fused", "lstm", "stacked"})
+	String cell;
+
+	@Param({"128"})
+	int hiddenSize;
+
+	@Param({"33"})
+	int chunkSize;
+
+	@Param({"8", "16", "32"})
+	int stride;
+
+	@Param({"res/cano.txt"})
+	String corpus;
+
+	private FlatRnn rnn;
+	private int[] symbols;
+	private int[] window;
+	private int offset;
+
+	@Setup
+	public void setup() throws Exception {
+		RnnEncDec<Byte> encDec = BenchmarkSupport.asciiEncDec();
+		symbols = BenchmarkSupport.encode(encDec, BenchmarkSupport.loadText(corpus));
+		rnn = (FlatRnn) BenchmarkSupport.create(cell, hiddenSize, encDec.classes);
+		window = new int[chunkSize];
+		for(int j = 0; j < chunkSize; j++)
+			window[j] = symbols[j % symbols.length];
+		offset = chunkSize;
+		rnn.learnTruncated(window, chunkSize - 1);
+	}
+
+	@Benchmark
+	public double learn() {
+		System.arraycopy(window, stride, window, 0, chunkSize - stride);
+		for(int j = chunkSize - stride; j < chunkSize; j++){
+			window[j] = symbols[offset];
+			offset = (offset + 1) % symbols.length;
+		}
+		return rnn.learnTruncated(window, Math.min(stride, chunkSize - 1));
+	}
+}
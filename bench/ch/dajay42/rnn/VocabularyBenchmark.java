@@ -0,0 +1,56 @@
+package ch.dajay42.rnn;
+
+import java.nio.file.FileSystems;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**Encoding and decoding {@link #BLOCK} bytes of a corpus with the byte alphabet, for a {@link #size} of 0,
+ * and with vocabularies learned from it. The fewer symbols a block is encoded as, the fewer steps a model
+ * takes to learn or generate it.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VocabularyBenchmark {
+
+	private static final int BLOCK = 64 * 1024;
+
+	@Param({"res/shakespear.txt", "res/cano.txt"})
+	String corpus;
+
+	@Param({"0", "512", "1024"})
+	int size;
+
+	private Vocabulary vocabulary;
+	private byte[] block;
+	private int[] encoded;
+
+	@Setup
+	public void setup() throws Exception {
+		if(size == 0){
+			vocabulary = Vocabulary.ascii();
+		}else{
+			try(Corpus text = new Corpus(FileSystems.getDefault().getPath(corpus), Vocabulary.ascii().codec())){
+				vocabulary = Vocabulary.learn(text, 1_000_000, size);
+			}
+		}
+		byte[] text = BenchmarkSupport.loadText(corpus);
+		block = Arrays.copyOf(text, Math.min(text.length, BLOCK));
+		encoded = vocabulary.encode(block);
+	}
+
+	@Benchmark
+	public int[] encode() {
+		return vocabulary.encode(block);
+	}
+
+	@Benchmark
+	public byte[] decode() {
+		return vocabulary.decode(encoded);
+	}
+}
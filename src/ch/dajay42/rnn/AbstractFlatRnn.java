@@ -0,0 +1,344 @@
+package ch.dajay42.rnn;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import ch.dajay42.math.Util;
+import ch.dajay42.math.linAlg.ColumnVectorDense;
+import ch.dajay42.math.linAlg.Matrix;
+
+/**Common base of the {@link FlatRnn} models, holding their recurrent state, hyperparameters and training
+ * state, so that a subclass only stores its parameters and provides the kernels.
+ * <p>
+ * Stepping and sampling run through {@link #forward}. Learning slides a window along the symbols and calls
+ * on the passes of the subclass over it, then adapts the learning rate and lets the optimizer apply the
+ * gradients. The recurrent state starts with the hidden state h read by the output layer, followed by
+ * whatever else the cell carries from step to step, and is what {@link #forward} and {@link #getH()} deal in.
+ * */
+@SuppressWarnings("WeakerAccess")
+abstract class AbstractFlatRnn implements FlatRnn, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private double[] state; //recurrent state, starting with h
+
+	/**applies the updates, created by the subclass once its parameters exist; null for a model that
+	 * always learns with Adagrad on its own
+	 * */
+	Optimizer optimizer;
+
+	//hyperparameters
+	final int h_size; // hidden size
+	final int xy_size; // vocab size
+	double learning_rate = 0.1d;
+	double dropout = 0.5d;
+	private double smooth_loss;
+	private double last_loss = Double.POSITIVE_INFINITY;
+	long learnedSteps = 0L;
+
+	/**inverse of prediction Temperature*/
+	double beta = 1.0d;
+
+	private transient double[] stateNext; //scratch for step
+	private transient double[] y; //output of step
+	private transient Matrix[] outputs; //returned by learn
+
+	/**@param s_size size of the recurrent state, at least h_size*/
+	AbstractFlatRnn(int h_size, int xy_size, int s_size) {
+		this.h_size = h_size;
+		this.xy_size = xy_size;
+		state = new double[s_size];
+		smooth_loss = -Math.log(1.0/xy_size);
+	}
+
+	/**Called when a model is deserialized from a stream written before its fields moved into this class,
+	 * which would leave them all zero.
+	 * */
+	private void readObjectNoData() throws ObjectStreamException {
+		throw new InvalidObjectException("Unsupported legacy format: " + getClass().getSimpleName()
+				+ " was serialized before " + AbstractFlatRnn.class.getSimpleName() + " existed, convert it with the version that stored it");
+	}
+
+	static void randomize(double[] a, double min, double max){
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for(int i = 0; i < a.length; i++)
+			a[i] = random.nextDouble(min, max);
+	}
+
+	// kernels
+
+	/**Make room for learning a window of inputs symbols. If the states of the previous window are still held
+	 * and it had the same length, slide them on by fresh steps.
+	 * @return fresh, or inputs - 1 if the whole window has to be learned
+	 * */
+	abstract int slide(int inputs, int fresh);
+
+	/**Run the forward pass over the last fresh steps of a window, starting from the recurrent state s, and
+	 * the backward pass over the whole window, through the states of the earlier steps kept by {@link #slide}.
+	 * Only the fresh steps contribute to the loss. Leaves the gradients for {@link #gradients()}, the outputs
+	 * for {@link #ys()}, and s past all but the last input.
+	 * @return the summed cross-entropy loss of the fresh steps
+	 * */
+	abstract double backpropWindow(int[] in, int[] expectedIndex, int fresh, double[] s);
+
+	/**@return the gradients of the last window, in the order of {@link #parameters()}*/
+	abstract double[][] gradients();
+
+	/**@return the unnormalized outputs of every step of the last window*/
+	abstract double[][] ys();
+
+	// optimizer
+
+	/**@return the optimizer state, slot by slot in the order of {@link #parameters()}*/
+	@Override
+	public Object[] memories(){
+		return optimizer.state();
+	}
+
+	@Override
+	public Optimizer getOptimizer(){
+		return optimizer;
+	}
+
+	/**Replace the optimizer of a model with double parameters.*/
+	@Override
+	public void setOptimizer(int type){
+		optimizer = Optimizer.create(type, (double[][]) parameters());
+	}
+
+	@Override
+	public void setLearnedSteps(long steps){
+		learnedSteps = steps;
+	}
+
+	@Override
+	public void setLastLoss(double loss){
+		smooth_loss = loss;
+	}
+
+	public long getLearnedSteps() {
+		return learnedSteps;
+	}
+
+	// Rnn
+
+	/**Advance the recurrent state by one symbol.
+	 * @return the unnormalized output, owned by this instance until the next call
+	 * */
+	double[] stepInto(int symbol){
+		if(stateNext == null){
+			stateNext = new double[state.length];
+			y = new double[xy_size];
+		}
+		forward(symbol, state, stateNext, y);
+		double[] t = state;
+		state = stateNext;
+		stateNext = t;
+		return y;
+	}
+
+	@Override
+	public Matrix step(Matrix x) {
+		int symbol = RnnEncDec.indexOf(x);
+		if(symbol < 0)
+			throw new IllegalArgumentException("Input must be one-hot!");
+		return step(symbol);
+	}
+
+	@Override
+	public Matrix step(int symbol) {
+		return toMatrix(stepInto(symbol));
+	}
+
+	@Override
+	public Matrix[] learn(Matrix[] in, Matrix[] expectedOut, Matrix h_in) {
+		if(in.length != expectedOut.length){
+			throw new IllegalArgumentException("Array dimensions must agree!");
+		}
+
+		int[] inIndex = new int[in.length];
+		int[] expectedIndex = new int[expectedOut.length];
+		for(int t = 0; t < in.length; t++){
+			inIndex[t] = RnnEncDec.indexOf(in[t]);
+			expectedIndex[t] = RnnEncDec.indexOf(expectedOut[t]);
+		}
+		return learn(inIndex, expectedIndex, h_in);
+	}
+
+	@Override
+	public Matrix[] learn(int[] in, int[] expectedIndex, Matrix h_in) {
+		if(in.length != expectedIndex.length){
+			throw new IllegalArgumentException("Array dimensions must agree!");
+		}
+		int inputs = in.length;
+
+		setH(h_in);
+		learnWindow(in, expectedIndex, inputs - 1);
+		if(outputs == null || outputs.length < inputs){
+			outputs = new Matrix[inputs];
+			for(int t = 0; t < inputs; t++)
+				outputs[t] = new ColumnVectorDense(xy_size);
+		}
+		double[][] ys = ys();
+		for(int t = 1; t < inputs; t++)
+			for(int k = 0; k < xy_size; k++)
+				outputs[t].setValueAt(k, ys[t][k]);
+		//return predicted values for live sampling, owned by this instance until the next call
+		return outputs;
+	}
+
+	@Override
+	public boolean truncates(){
+		return true;
+	}
+
+	@Override
+	public double learnTruncated(int[] window, int fresh){
+		if(fresh < 1 || fresh >= window.length)
+			throw new IllegalArgumentException("Must learn from 1 to " + (window.length - 1) + " steps of the window!");
+		return learnWindow(window, window, fresh);
+	}
+
+	/**Learn from the last fresh steps of a window, backpropagating through all of it, and carry the recurrent
+	 * state past all but the last input. The states of the earlier steps are slid on from the previous window,
+	 * or the whole window is learned if there is none of the same length.
+	 * @return the mean loss per fresh step
+	 * */
+	private double learnWindow(int[] in, int[] expectedIndex, int fresh){
+		fresh = slide(in.length, fresh);
+		double loss = backpropWindow(in, expectedIndex, fresh, state) / fresh;
+
+		update(gradients(), loss);
+		learnedSteps += fresh;
+		Metrics.learned(fresh);
+		return loss;
+	}
+
+	/**Adjust the learning rate and loss estimates, then apply the gradients.
+	 * @param loss mean loss per step of the chunk the gradients stem from
+	 * */
+	void update(double[][] gradients, double loss){
+		adapt(loss);
+		applyGradients(gradients);
+	}
+
+	/**Adjust the learning rate and loss estimates after learning from a chunk.
+	 * Not safe to call from several threads at once.
+	 * @param loss mean loss per step of the chunk
+	 * */
+	void adapt(double loss){
+		if(optimizer != null)
+			learning_rate = optimizer.adapt(learning_rate, loss, last_loss);
+		else
+			learning_rate = Optimizer.adaptive(learning_rate, loss, last_loss);
+		last_loss = loss;
+		smooth_loss = smooth_loss * 0.9 + loss * 0.1;
+		Metrics.observe(smooth_loss, learning_rate);
+	}
+
+	/**Apply the gradients at the current learning rate. Only the parameters and the optimizer state
+	 * are written, without locking them, so Hogwild workers may call this at once.
+	 * @param gradients the gradients, in the order of {@link #parameters()}
+	 * */
+	void applyGradients(double[][] gradients){
+		long start = System.nanoTime();
+		optimizer.update((double[][]) parameters(), gradients, learning_rate);
+		Metrics.UPDATE.since(start);
+	}
+
+	@Override
+	public List<Matrix> sample(Matrix h, Matrix[] seed, int n) {
+		setH(h);
+		ArrayList<Matrix> ret = new ArrayList<>();
+		for(int i = 0; i < seed.length-1; i++){
+			stepInto(RnnEncDec.indexOf(seed[i]));
+			ret.add(seed[i]);
+		}
+
+		Matrix r = seed[seed.length-1];
+		ret.add(r);
+		int symbol = RnnEncDec.indexOf(r);
+
+		for(int i = 0; i < n; i++){
+			symbol = Sampler.sample(stepInto(symbol), xy_size, beta, ThreadLocalRandom.current().nextDouble());
+			r = Matrix.zeroesLike(r, true);
+			r.setValueAt(symbol, 1.0);
+			ret.add(r);
+		}
+		return ret;
+	}
+
+	static Matrix toMatrix(double[] values){
+		Matrix m = new ColumnVectorDense(values.length);
+		for(int i = 0; i < values.length; i++)
+			m.setValueAt(i, values[i]);
+		return m;
+	}
+
+	@Override
+	public int getHiddenSize() {
+		return h_size;
+	}
+
+	@Override
+	public int getStateSize() {
+		return state.length;
+	}
+
+	@Override
+	public int getVocabSize() {
+		return xy_size;
+	}
+
+	@Override
+	public double getLastLoss() {
+		return smooth_loss;
+	}
+
+	@Override
+	public Matrix getH() {
+		return toMatrix(state);
+	}
+
+	@Override
+	public void setH(Matrix h) {
+		for(int i = 0; i < state.length; i++)
+			this.state[i] = h.getValueAt(i);
+	}
+
+	@Override
+	public double getLearningRate() {
+		return learning_rate;
+	}
+
+	@Override
+	public void setLearningRate(double learningRate) {
+		learning_rate = learningRate;
+	}
+
+	/**Set the prediction Temperature
+	 * @param t Temperature, positive.
+	 * */
+	public void setTemperature(double t){
+		if(t > 0)
+			beta = 1/t;
+		else
+			throw new IllegalArgumentException("Argument must be positive");
+	}
+
+	public double getTemperature(){
+		return 1/beta;
+	}
+
+	public double getDropout() {
+		return dropout;
+	}
+
+	public void setDropout(double dropout) {
+		this.dropout = Util.clamp(0d, 1d, dropout);
+	}
+}
@@ -0,0 +1,221 @@
+package ch.dajay42.rnn;
+
+import java.util.Arrays;
+
+/**Deterministic decoding by beam search: keeps the width most likely continuations found so far,
+ * extends each by every symbol, and keeps the width most likely of those, until n symbols are decoded.
+ * With a width of one this is greedy decoding.
+ * <p>
+ * The hidden states of all beams live in one h_size x width block, so every step advances all beams with
+ * a single {@link FlatRnn#forwardBatch}. Forking a beam copies a column between two pooled blocks, and the
+ * decoded symbols are kept as back-pointers per step, so nothing is allocated while decoding.
+ * <p>
+ * Optionally a stop symbol ends a hypothesis, which then competes with the others by its score normalized
+ * for length, so that short hypotheses are not favoured merely for having fewer factors in their
+ * probability. A decoder is not safe for use by several threads at once.
+ * */
+final class BeamDecoder {
+
+	private final FlatRnn model;
+	private final int width;
+	private final int h_size;
+	private final int xy_size;
+
+	private int stop = -1;
+	private double lengthPenalty = 0;
+
+	//pooled state, one column per beam
+	private double[] h; //h_size x beams
+	private double[] hFork;
+	private final double[] y; //xy_size x beams
+	private final double[] scores; //log-probability of each beam
+	private final int[] tokens; //last symbol of each beam
+	private final int[] entries; //entry of each beam in the back-pointers of its step
+	private final int[] previousEntries;
+	private final int[] forkFrom; //beam of the previous step each beam continues
+
+	//candidates of one step, width x xy_size
+	private final double[] candidates;
+	private final int[] order;
+
+	//back-pointers per step and entry, grown to the longest decoding
+	private int[][] parent = new int[0][];
+	private int[][] token = new int[0][];
+
+	//best hypothesis so far
+	private int bestStep;
+	private int bestEntry;
+	private double bestScore;
+
+	/**@param width number of hypotheses kept at each step, one for greedy decoding
+	 * */
+	BeamDecoder(FlatRnn model, int width){
+		if(width < 1)
+			throw new IllegalArgumentException("Width must be positive");
+		this.model = model;
+		this.width = width;
+		h_size = model.getStateSize();
+		xy_size = model.getVocabSize();
+		h = new double[h_size * width];
+		hFork = new double[h_size * width];
+		y = new double[xy_size * width];
+		scores = new double[width];
+		tokens = new int[width];
+		entries = new int[width];
+		previousEntries = new int[width];
+		forkFrom = new int[width];
+		candidates = new double[width * xy_size];
+		order = new int[width * xy_size];
+	}
+
+	/**@param symbol symbol that ends a hypothesis, or -1 to always decode the full length*/
+	void setStop(int symbol){
+		stop = symbol;
+	}
+
+	/**@param alpha exponent of the length normalization, 0 for none, typically below 1*/
+	void setLengthPenalty(double alpha){
+		if(alpha < 0)
+			throw new IllegalArgumentException("Argument must not be negative");
+		lengthPenalty = alpha;
+	}
+
+	/**Decode the most likely continuation of seed.
+	 * @param seed symbols to start from, at least one
+	 * @param n maximum number of symbols to decode
+	 * @return the decoded symbols, ending with the stop symbol if one was reached
+	 * */
+	int[] decode(int[] seed, int n){
+		if(seed.length == 0)
+			throw new IllegalArgumentException("Need a seed");
+		if(parent.length < n){
+			parent = new int[n][width];
+			token = new int[n][width];
+		}
+
+		// prime a single beam with the seed
+		Arrays.fill(h, 0, h_size, 0d);
+		for(int symbol : seed){
+			model.forward(symbol, h, hFork, y);
+			System.arraycopy(hFork, 0, h, 0, h_size);
+		}
+		int count = 1;
+		scores[0] = 0;
+		entries[0] = -1;
+		bestStep = -1;
+		bestScore = Double.NEGATIVE_INFINITY;
+
+		int t = 0;
+		for(; t < n && count > 0; t++){
+			int previous = count;
+			count = extend(t, count);
+			if(lengthPenalty == 0 && count > 0 && bestScore >= scores[0]){
+				// scores only fall as hypotheses grow, so no running beam can overtake the finished one
+				count = 0;
+				break;
+			}
+
+			// fork the hidden states of the surviving beams, then feed every beam its new symbol
+			for(int j = 0; j < count; j++){
+				int from = forkFrom[j];
+				for(int i = 0; i < h_size; i++)
+					hFork[i * count + j] = h[i * previous + from];
+			}
+			if(count > 0)
+				model.forwardBatch(count, tokens, hFork, h, y);
+		}
+
+		// beams still running compete at the length they reached
+		for(int j = 0; j < count; j++)
+			consider(t - 1, entries[j], scores[j]);
+		return backtrack();
+	}
+
+	/**Score every extension of the current beams and keep the best of them as the beams of step t.
+	 * @param count number of current beams, also the stride of y
+	 * @return the number of beams continuing
+	 * */
+	private int extend(int t, int count){
+		for(int b = 0; b < count; b++){
+			double max = Double.NEGATIVE_INFINITY;
+			for(int k = 0; k < xy_size; k++)
+				if(y[k * count + b] > max) max = y[k * count + b];
+			double sum = 0;
+			for(int k = 0; k < xy_size; k++)
+				sum += Math.exp(y[k * count + b] - max);
+			double offset = scores[b] - max - Math.log(sum); // log-softmax plus the score so far
+			int row = b * xy_size;
+			for(int k = 0; k < xy_size; k++)
+				candidates[row + k] = y[k * count + b] + offset;
+		}
+
+		int total = count * xy_size;
+		int keep = Math.min(width, total);
+		for(int c = 0; c < total; c++)
+			order[c] = c;
+		Sampler.select(candidates, order, keep, total);
+		sortDescending(keep);
+
+		System.arraycopy(entries, 0, previousEntries, 0, count);
+		int next = 0;
+		for(int e = 0; e < keep; e++){
+			int candidate = order[e];
+			int beam = candidate / xy_size, symbol = candidate % xy_size;
+			parent[t][e] = previousEntries[beam];
+			token[t][e] = symbol;
+			if(symbol == stop){
+				consider(t, e, candidates[candidate]);
+			}else{
+				forkFrom[next] = beam;
+				tokens[next] = symbol;
+				scores[next] = candidates[candidate];
+				entries[next] = e;
+				next++;
+			}
+		}
+		return next;
+	}
+
+	/**Remember the hypothesis ending with entry e of step t if it beats the best one so far.
+	 * */
+	private void consider(int t, int e, double score){
+		if(t < 0)
+			return;
+		double normalized = score / lengthNorm(t + 1);
+		if(normalized > bestScore){
+			bestScore = normalized;
+			bestStep = t;
+			bestEntry = e;
+		}
+	}
+
+	/**@return the length normalization of Wu et al., ((5 + length) / 6)^alpha*/
+	private double lengthNorm(int length){
+		return lengthPenalty == 0 ? 1 : Math.pow((5 + length) / 6.0, lengthPenalty);
+	}
+
+	private int[] backtrack(){
+		int[] result = new int[bestStep + 1];
+		int e = bestEntry;
+		for(int t = bestStep; t >= 0; t--){
+			result[t] = token[t][e];
+			e = parent[t][e];
+		}
+		return result;
+	}
+
+	/**Insertion sort of the first k candidate indices by descending score; k is at most the width.
+	 * */
+	private void sortDescending(int k){
+		for(int i = 1; i < k; i++){
+			int c = order[i];
+			double s = candidates[c];
+			int j = i - 1;
+			while(j >= 0 && candidates[order[j]] < s){
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = c;
+		}
+	}
+}
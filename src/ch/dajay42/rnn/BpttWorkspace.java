@@ -0,0 +1,153 @@
+package ch.dajay42.rnn;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import ch.dajay42.math.linAlg.ColumnVectorDense;
+import ch.dajay42.math.linAlg.Matrix;
+
+/**Preallocated buffers for backpropagation through time over a chunk of up to {@link #capacity} steps,
+ * for {@link #batch} aligned sequences at once.
+ * <p>
+ * All matrices are stored row-major in flat arrays. Per-step activations hold one column per sequence,
+ * so hs[t] is an h_size x batch matrix; with a batch of one they are plain vectors. A workspace is reused
+ * across calls to {@code learn}, so the forward and backward passes write into it in place instead of
+ * allocating temporaries.
+ * */
+final class BpttWorkspace {
+
+	final int h_size;
+	final int xy_size;
+	final int capacity;
+	final int batch;
+
+	//forward pass
+	final double[][] hs; //hidden states, hs[0] is the initial state
+	final double[][] ys; //unnormalized outputs
+	final double[][] ps; //output probabilities
+	final Matrix[] outputs; //unnormalized outputs as matrices, returned for live sampling, only for a batch of one
+	final int[] x; //inputs of the current step, one per sequence
+
+	//backward pass
+	final double[] dy;
+	final double[] dh;
+	final double[] dhnext;
+	final double[] colMax; //per-sequence scratch for the softmax
+	final double[] colSum;
+
+	//gradients, same layout as the parameters
+	final double[] dWxh;
+	final double[] dWhh;
+	final double[] dWhy;
+	final double[] dbh;
+	final double[] dby;
+	final double[][] gradients; //all of the above, in the order of the parameters of a FusedRnn
+
+	/**drop-out mask for Why, each entry either 0 or 1*/
+	final double[] whyMask;
+
+	/**length of the window whose states hs holds, or 0 if they cannot be slid on*/
+	int window = 0;
+
+	BpttWorkspace(int h_size, int xy_size, int capacity) {
+		this(h_size, xy_size, capacity, 1);
+	}
+
+	BpttWorkspace(int h_size, int xy_size, int capacity, int batch) {
+		this.h_size = h_size;
+		this.xy_size = xy_size;
+		this.capacity = capacity;
+		this.batch = batch;
+
+		hs = new double[capacity][h_size * batch];
+		ys = new double[capacity][xy_size * batch];
+		ps = new double[capacity][xy_size * batch];
+		if(batch == 1){
+			outputs = new Matrix[capacity];
+			for(int t = 0; t < capacity; t++)
+				outputs[t] = new ColumnVectorDense(xy_size);
+		}else{
+			outputs = null;
+		}
+		x = new int[batch];
+
+		dy = new double[xy_size * batch];
+		dh = new double[h_size * batch];
+		dhnext = new double[h_size * batch];
+		colMax = new double[batch];
+		colSum = new double[batch];
+
+		dWxh = new double[h_size * xy_size];
+		dWhh = new double[h_size * h_size];
+		dWhy = new double[xy_size * h_size];
+		dbh = new double[h_size];
+		dby = new double[xy_size];
+		gradients = new double[][]{dWxh, dWhh, dWhy, dbh, dby};
+
+		whyMask = new double[xy_size * h_size];
+	}
+
+	/**@return whether this workspace can be used for a model of the given dimensions and a chunk of the given length*/
+	boolean fits(int h_size, int xy_size, int inputs){
+		return fits(h_size, xy_size, inputs, 1);
+	}
+
+	/**@return whether this workspace can be used for a model of the given dimensions and a batch of chunks of the given length*/
+	boolean fits(int h_size, int xy_size, int inputs, int batch){
+		return this.h_size == h_size && this.xy_size == xy_size && inputs <= capacity && this.batch == batch;
+	}
+
+	void clearGradients(){
+		Arrays.fill(dWxh, 0d);
+		Arrays.fill(dWhh, 0d);
+		Arrays.fill(dWhy, 0d);
+		Arrays.fill(dbh, 0d);
+		Arrays.fill(dby, 0d);
+		Arrays.fill(dhnext, 0d);
+	}
+
+	void scaleGradients(double factor){
+		scale(dWxh, factor);
+		scale(dWhh, factor);
+		scale(dWhy, factor);
+		scale(dbh, factor);
+		scale(dby, factor);
+	}
+
+	private static void scale(double[] a, double factor){
+		for(int i = 0; i < a.length; i++)
+			a[i] *= factor;
+	}
+
+	/**Slide the states of the previous window of window symbols on by fresh steps, so that hs[t] holds
+	 * what hs[t + fresh] held, in place.
+	 * */
+	void slide(int fresh){
+		slide(hs, window, fresh);
+	}
+
+	/**Rotate the first length entries of steps left by the given distance, without allocating.
+	 * */
+	static void slide(double[][] steps, int length, int distance){
+		reverse(steps, 0, distance);
+		reverse(steps, distance, length);
+		reverse(steps, 0, length);
+	}
+
+	private static void reverse(double[][] a, int from, int to){
+		for(int i = from, j = to - 1; i < j; i++, j--){
+			double[] t = a[i];
+			a[i] = a[j];
+			a[j] = t;
+		}
+	}
+
+	/**Redraw the drop-out mask in place.
+	 * @param p chance of each entry being 1
+	 * */
+	void drawDropout(double p){
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for(int i = 0; i < whyMask.length; i++)
+			whyMask[i] = random.nextDouble() < p ? 1d : 0d;
+	}
+}
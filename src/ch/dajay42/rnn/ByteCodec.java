@@ -0,0 +1,110 @@
+package ch.dajay42.rnn;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**Maps bytes to symbol indices and back through two plain tables, the byte alphabet of an {@link RnnEncDec}
+ * without its boxing and hashing.
+ * <p>
+ * Whole ranges of bytes are encoded into symbol arrays and symbol arrays decoded into bytes in a single
+ * loop each, reading straight from and writing straight into arrays and buffers. Nothing is allocated,
+ * except by the conveniences returning a new array. A codec is immutable and safe to share between threads.
+ * */
+final class ByteCodec {
+
+	private static final int BYTES = 256;
+
+	private final int[] symbolOf; //symbol of every byte value, indexed by the unsigned byte
+	private final byte[] byteOf; //byte value of every symbol
+
+	/**number of symbols*/
+	final int classes;
+
+	/**@param symbolOf symbol of every byte value, indexed by the unsigned byte
+	 * @param byteOf byte value of every symbol
+	 * */
+	ByteCodec(int[] symbolOf, byte[] byteOf){
+		if(symbolOf.length != BYTES)
+			throw new IllegalArgumentException("Need a symbol for every byte value");
+		for(int symbol : symbolOf)
+			if(symbol < 0 || symbol >= byteOf.length)
+				throw new IllegalArgumentException("Symbol " + symbol + " out of range");
+		this.symbolOf = symbolOf.clone();
+		this.byteOf = byteOf.clone();
+		classes = byteOf.length;
+	}
+
+	/**Tabulate an encoder over bytes. Bytes the encoder does not know are read as the replacement byte instead.
+	 * */
+	static ByteCodec of(RnnEncDec<Byte> encDec, byte replacement){
+		int fallback = encDec.encodeIndex(replacement);
+		if(fallback < 0)
+			throw new IllegalArgumentException("Replacement is not part of the alphabet: " + replacement);
+		int[] symbolOf = new int[BYTES];
+		for(int b = 0; b < BYTES; b++){
+			int symbol = encDec.encodeIndex((byte) b);
+			symbolOf[b] = symbol >= 0 ? symbol : fallback;
+		}
+		byte[] byteOf = new byte[encDec.classes];
+		for(int i = 0; i < byteOf.length; i++)
+			byteOf[i] = encDec.decodeIndex(i);
+		return new ByteCodec(symbolOf, byteOf);
+	}
+
+	int encode(byte b){
+		return symbolOf[b & 0xFF];
+	}
+
+	byte decode(int symbol){
+		return byteOf[symbol];
+	}
+
+	int[] encode(byte[] src){
+		int[] dst = new int[src.length];
+		encode(src, 0, src.length, dst, 0);
+		return dst;
+	}
+
+	/**Encode count bytes of src from index from on into dst from index at on.
+	 * */
+	void encode(byte[] src, int from, int count, int[] dst, int at){
+		for(int i = 0; i < count; i++)
+			dst[at + i] = symbolOf[src[from + i] & 0xFF];
+	}
+
+	/**Encode count bytes of src from the absolute index from on into dst from index at on,
+	 * leaving the position of src alone, so that several threads may read the same buffer.
+	 * */
+	void encode(ByteBuffer src, int from, int count, int[] dst, int at){
+		for(int i = 0; i < count; i++)
+			dst[at + i] = symbolOf[src.get(from + i) & 0xFF];
+	}
+
+	byte[] decode(int[] src){
+		byte[] dst = new byte[src.length];
+		decode(src, 0, src.length, dst, 0);
+		return dst;
+	}
+
+	/**Decode count symbols of src from index from on into dst from index at on.
+	 * */
+	void decode(int[] src, int from, int count, byte[] dst, int at){
+		for(int i = 0; i < count; i++)
+			dst[at + i] = byteOf[src[from + i]];
+	}
+
+	/**Decode count symbols of src from index from on into dst at its position, advancing it.
+	 * */
+	void decode(int[] src, int from, int count, ByteBuffer dst){
+		if(dst.hasArray()){
+			int position = dst.position();
+			if(count > dst.remaining())
+				throw new BufferOverflowException();
+			decode(src, from, count, dst.array(), dst.arrayOffset() + position);
+			dst.position(position + count);
+		}else{
+			for(int i = 0; i < count; i++)
+				dst.put(byteOf[src[from + i]]);
+		}
+	}
+}
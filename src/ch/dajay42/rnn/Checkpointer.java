@@ -0,0 +1,119 @@
+package ch.dajay42.rnn;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**Writes {@link Snapshot}s of a training {@link FlatRnn} in the background.
+ * <p>
+ * The training thread only copies the model into a spare instance, which is then written on a
+ * separate thread to a temporary file and atomically renamed to {@code <prefix>-ckpt-<steps>.rnn}.
+ * A crash mid-write thus never leaves a broken checkpoint behind. Only the newest checkpoints
+ * are kept, and only files named like checkpoints are ever pruned, so RNNs stored by hand next to
+ * them are left alone. If the previous checkpoint is still being written, new ones are skipped rather than
+ * stalling training.
+ * */
+final class Checkpointer implements AutoCloseable {
+
+	/**marks checkpoints, between the prefix and the steps*/
+	static final String SUFFIX = "-ckpt-";
+
+	private final Path directory;
+	private final String name;
+	private final Pattern pattern;
+	private final int keep;
+
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "rnn-checkpoint");
+		t.setDaemon(true);
+		return t;
+	});
+	private final AtomicBoolean busy = new AtomicBoolean(false);
+	private FlatRnn spare;
+
+	/**@param prefix path and file name prefix of the checkpoints
+	 * @param keep number of checkpoints to keep, at least one
+	 * */
+	Checkpointer(String prefix, int keep){
+		Path path = FileSystems.getDefault().getPath(prefix).toAbsolutePath();
+		directory = path.getParent();
+		name = path.getFileName().toString();
+		pattern = Pattern.compile(Pattern.quote(name) + SUFFIX + "(\\d+)\\.rnn");
+		this.keep = Math.max(1, keep);
+	}
+
+	/**Copy rnn and schedule writing it, unless a checkpoint is still being written.
+	 * @param offset position in the training text
+	 * @return whether a checkpoint was scheduled
+	 * */
+	boolean offer(FlatRnn rnn, long offset){
+		if(!busy.compareAndSet(false, true))
+			return false;
+		if(spare == null || spare.getClass() != rnn.getClass() || !rnn.compatibleWith(spare))
+			spare = rnn.blank();
+		rnn.copyTo(spare);
+		FlatRnn copy = spare;
+		writer.execute(() -> {
+			try {
+				write(copy, offset);
+			} catch (IOException e) {
+				System.err.print("Error: Could not write checkpoint due to ");
+				System.err.print(e.toString());
+				System.err.println();
+			} finally {
+				busy.set(false);
+			}
+		});
+		return true;
+	}
+
+	private void write(FlatRnn rnn, long offset) throws IOException {
+		Path target = directory.resolve(name + SUFFIX + rnn.getLearnedSteps() + ".rnn");
+		Path temp = directory.resolve(name + SUFFIX + rnn.getLearnedSteps() + ".rnn.tmp");
+		Snapshot.write(rnn, temp, true, offset);
+		Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		prune();
+	}
+
+	/**Delete all but the newest checkpoints.
+	 * */
+	private void prune() throws IOException {
+		List<Path> found = new ArrayList<>();
+		List<Long> steps = new ArrayList<>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, name + SUFFIX + "*.rnn")){
+			for(Path p : stream){
+				Matcher m = pattern.matcher(p.getFileName().toString());
+				if(m.matches()){
+					found.add(p);
+					steps.add(Long.parseLong(m.group(1)));
+				}
+			}
+		}
+		while(found.size() > keep){
+			int oldest = 0;
+			for(int i = 1; i < steps.size(); i++)
+				if(steps.get(i) < steps.get(oldest)) oldest = i;
+			Files.deleteIfExists(found.remove(oldest));
+			steps.remove(oldest);
+		}
+	}
+
+	/**Wait for a pending checkpoint to be written.
+	 * */
+	@Override
+	public void close(){
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package ch.dajay42.rnn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**A text file mapped into memory and read as symbol indices on demand.
+ * <p>
+ * Nothing is decoded ahead of time, so the size of the corpus is only limited by the address space,
+ * not by the heap. Files larger than 2GB are mapped in several segments.
+ * Reads are safe from several threads at once.
+ * <p>
+ * A corpus is either raw text, each byte mapped to a symbol through a {@link ByteCodec}, or a token file holding
+ * the symbols of a text already encoded with a {@link Vocabulary}. Layout of a token file, all little-endian:
+ * <pre>
+ * offset size
+ *  0      4   magic "JTOK"
+ *  4      4   format version
+ *  8      4   vocabulary size
+ * 12      4   bytes per symbol, 2
+ * 16      8   vocabulary hash
+ * 24      8   number of symbols
+ * 32          symbols, unsigned
+ * </pre>
+ * */
+final class Corpus implements AutoCloseable {
+
+	static final int MAGIC = 0x4B4F544A; // "JTOK" read as a little-endian int
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer[] segments;
+	private final ByteCodec codec;
+	/**bytes per symbol, 1 for raw text*/
+	private final int width;
+
+	/**number of symbols*/
+	final long length;
+	/**hash of the vocabulary a token file was encoded with, 0 for raw text*/
+	final long vocabularyHash;
+
+	/**@param codec the symbol of every byte value
+	 * */
+	Corpus(Path path, ByteCodec codec) throws IOException {
+		this(FileChannel.open(path, StandardOpenOption.READ), 0, codec, 1, 0);
+	}
+
+	private Corpus(FileChannel channel, long start, ByteCodec codec, int width, long vocabularyHash) throws IOException {
+		this.channel = channel;
+		this.codec = codec;
+		this.width = width;
+		this.vocabularyHash = vocabularyHash;
+		long bytes = channel.size() - start;
+		length = bytes / width;
+		if(length == 0){
+			channel.close();
+			throw new IOException("File is empty");
+		}
+
+		int count = (int) ((bytes + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+		segments = new MappedByteBuffer[count];
+		for(int i = 0; i < count; i++){
+			long offset = (long) i << SEGMENT_BITS;
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(SEGMENT_SIZE, bytes - offset));
+			segments[i].order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**A view of the first length symbols of whole, sharing its mapping.
+	 * */
+	private Corpus(Corpus whole, long length){
+		channel = whole.channel;
+		segments = whole.segments;
+		codec = whole.codec;
+		width = whole.width;
+		vocabularyHash = whole.vocabularyHash;
+		this.length = length;
+	}
+
+	/**@return a view of the first length symbols, which wraps around at its own end; it shares the mapping of
+	 * this corpus, so closing either closes both
+	 * */
+	Corpus head(long length){
+		if(length < 1 || length > this.length)
+			throw new IllegalArgumentException("Length must be from 1 to " + this.length);
+		return new Corpus(this, length);
+	}
+
+	/**Map a token file written by {@link #tokenize}.
+	 * */
+	static Corpus tokens(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while(header.hasRemaining() && channel.read(header) >= 0);
+			if(header.hasRemaining() || header.getInt(0) != MAGIC)
+				throw new IOException("Not a token file");
+			int version = header.getInt(4);
+			if(version != VERSION)
+				throw new IOException("Unsupported token file version " + version);
+			if(header.getInt(12) != Character.BYTES)
+				throw new IOException("Unsupported symbol width " + header.getInt(12));
+			long expected = HEADER_SIZE + header.getLong(24) * Character.BYTES;
+			if(channel.size() != expected)
+				throw new IOException("Token file truncated, expected " + expected + " bytes but found " + channel.size());
+			return new Corpus(channel, HEADER_SIZE, null, Character.BYTES, header.getLong(16));
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**@return whether the file starts with the token file magic number
+	 * */
+	static boolean isTokens(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+			ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+			return !buffer.hasRemaining() && buffer.getInt(0) == MAGIC;
+		}
+	}
+
+	/**Encode the raw text with the longest matching symbols of vocabulary into a token file at target,
+	 * streaming through small buffers.
+	 * @return the number of symbols written
+	 * */
+	static long tokenize(Corpus text, Vocabulary vocabulary, Path target) throws IOException {
+		if(text.width != 1)
+			throw new IllegalArgumentException("Can only tokenize raw text");
+		if(vocabulary.size > 1 << 16)
+			throw new IllegalArgumentException("Vocabulary too large for a token file");
+		try(FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.position(HEADER_SIZE);
+
+			// keep the longest symbol in view, so a match is never cut short by the end of the window
+			byte[] window = new byte[BUFFER_SIZE + vocabulary.maxLength];
+			long position = 0, count = 0;
+			int filled = 0, at = 0;
+			while(at < filled || position < text.length){
+				if(filled - at < vocabulary.maxLength && position < text.length){
+					System.arraycopy(window, at, window, 0, filled - at);
+					filled -= at;
+					at = 0;
+					while(filled < window.length && position < text.length)
+						window[filled++] = text.byteAt(position++);
+				}
+				int symbol = vocabulary.match(window, at, filled);
+				at += vocabulary.length(symbol);
+				if(!buffer.hasRemaining()){
+					buffer.flip();
+					while(buffer.hasRemaining())
+						out.write(buffer);
+					buffer.clear();
+				}
+				buffer.putChar((char) symbol);
+				count++;
+			}
+			buffer.flip();
+			while(buffer.hasRemaining())
+				out.write(buffer);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(vocabulary.size);
+			header.putInt(Character.BYTES);
+			header.putLong(vocabulary.hash);
+			header.putLong(count);
+			header.flip();
+			while(header.hasRemaining())
+				out.write(header, header.position());
+			out.force(true);
+			return count;
+		}
+	}
+
+	/**@return whether this is a token file rather than raw text*/
+	boolean isTokens(){
+		return width != 1;
+	}
+
+	/**@return the byte at position of raw text*/
+	byte byteAt(long position){
+		return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & SEGMENT_MASK));
+	}
+
+	int symbolAt(long position){
+		if(width == 1)
+			return codec.encode(byteAt(position));
+		long at = position * Character.BYTES;
+		return segments[(int) (at >>> SEGMENT_BITS)].getChar((int) (at & SEGMENT_MASK));
+	}
+
+	/**Fill dst with the symbols starting at position, wrapping around at the end of the corpus.
+	 * @return the position after the last symbol read
+	 * */
+	long read(long position, int[] dst){
+		return read(position, dst, 0, dst.length);
+	}
+
+	/**Fill count entries of dst from index from on with the symbols starting at position, wrapping around
+	 * at the end of the corpus. Raw text is encoded a run of bytes at a time, up to the end of a segment.
+	 * @return the position after the last symbol read
+	 * */
+	long read(long position, int[] dst, int from, int count){
+		if(width != 1){
+			for(int j = from; j < from + count; j++){
+				dst[j] = symbolAt(position);
+				if(++position == length)
+					position = 0;
+			}
+			return position;
+		}
+		while(count > 0){
+			MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+			int index = (int) (position & SEGMENT_MASK);
+			int run = (int) Math.min(Math.min(count, segment.limit() - index), length - position);
+			codec.encode(segment, index, run, dst, from);
+			from += run;
+			count -= run;
+			position += run;
+			if(position == length)
+				position = 0;
+		}
+		return position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,269 @@
+package ch.dajay42.rnn;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**Measures how well a training {@link FlatRnn} predicts a held-out validation range of the text, in the background.
+ * <p>
+ * Like a {@link Checkpointer}, the training thread only copies the model into a spare instance. The copy
+ * is then evaluated on a separate thread, forward only and without any gradients, while training goes on.
+ * The validation range is split into segments scored on several threads at once, each thread advancing
+ * a few segments together as one batch, so each weight is read once per step for all of them. A segment
+ * starts from a zero hidden state warmed up on the symbols before it, which are not scored, so the result
+ * is the exact cross-entropy of every symbol of the range, only with the context cut short at segment starts.
+ * <p>
+ * The result is given in bits per byte of the text the symbols stand for, which is bits per character for
+ * the byte alphabet, and comparable across vocabularies. The best copy seen so far can be kept as a
+ * {@link Snapshot}, atomically replaced whenever a better one comes along. A best snapshot left by an
+ * earlier run is scored first, so it is only replaced by a copy that beats it. If an evaluation is still
+ * running, new ones are skipped rather than stalling training.
+ * */
+final class Evaluator implements AutoCloseable {
+
+	/**segments a thread advances together*/
+	static final int LANES = 8;
+	/**symbols fed before a segment to warm up its hidden state*/
+	static final int WARMUP = 64;
+
+	private static final double LN2 = Math.log(2);
+
+	/**Outcome of one evaluation.*/
+	static final class Result {
+		/**learned steps of the evaluated model*/
+		final long steps;
+		/**bits per byte of the validation range*/
+		final double bits;
+		/**best bits per byte so far, and the learned steps of the model that had them*/
+		final double bestBits;
+		final long bestSteps;
+		/**number of evaluations since the best one*/
+		final int stale;
+
+		Result(long steps, double bits, double bestBits, long bestSteps, int stale){
+			this.steps = steps;
+			this.bits = bits;
+			this.bestBits = bestBits;
+			this.bestSteps = bestSteps;
+			this.stale = stale;
+		}
+	}
+
+	private final Corpus text;
+	private final Vocabulary vocabulary;
+	private final long from;
+	private final long to;
+	private final int threads;
+	private final Path best;
+
+	private final ExecutorService pool;
+	private final ExecutorService runner = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "rnn-evaluator");
+		t.setDaemon(true);
+		return t;
+	});
+	private final AtomicBoolean busy = new AtomicBoolean(false);
+	private final AtomicReference<Result> latest = new AtomicReference<>();
+	private FlatRnn spare;
+
+	//state of the evaluator thread
+	private double bestBits = Double.POSITIVE_INFINITY;
+	private long bestSteps = 0;
+	private int stale = 0;
+
+	/**@param text the corpus, read as symbols of vocabulary
+	 * @param from first position of the validation range
+	 * @param to position after the last one of the validation range
+	 * @param threads number of threads scoring segments
+	 * @param best file to keep the best model seen in, or null to keep none; if it exists, its model is
+	 * the one to beat
+	 * */
+	Evaluator(Corpus text, Vocabulary vocabulary, long from, long to, int threads, Path best){
+		if(threads < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		if(from < 0 || to <= from || to > text.length)
+			throw new IllegalArgumentException("Invalid validation range " + from + " to " + to);
+		this.text = text;
+		this.vocabulary = vocabulary;
+		this.from = from;
+		this.to = to;
+		this.threads = threads;
+		this.best = best != null ? best.toAbsolutePath() : null;
+		pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "rnn-evaluation");
+			t.setDaemon(true);
+			return t;
+		});
+		if(this.best != null && Files.exists(this.best))
+			runner.execute(this::scoreBest);
+	}
+
+	/**Take the score of the model in the best file as the one to beat, on the evaluator thread.
+	 * */
+	private void scoreBest(){
+		try {
+			FlatRnn rnn = Snapshot.read(best).rnn;
+			if(rnn.getVocabSize() != vocabulary.size)
+				throw new IOException("Best RNN has " + rnn.getVocabSize() + " symbols, the vocabulary " + vocabulary.size);
+			bestBits = evaluate(rnn);
+			bestSteps = rnn.getLearnedSteps();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException | RuntimeException e) {
+			System.err.print("Error: Could not score the best RNN so far due to ");
+			System.err.print(e.toString());
+			System.err.println();
+		}
+	}
+
+	/**Copy rnn and schedule evaluating it, unless an evaluation is still running.
+	 * @param offset position in the training text, recorded in the best snapshot
+	 * @return whether an evaluation was scheduled
+	 * */
+	boolean offer(FlatRnn rnn, long offset){
+		if(!busy.compareAndSet(false, true))
+			return false;
+		if(spare == null || spare.getClass() != rnn.getClass() || !rnn.compatibleWith(spare))
+			spare = rnn.blank();
+		rnn.copyTo(spare);
+		FlatRnn copy = spare;
+		runner.execute(() -> {
+			try {
+				run(copy, offset);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IOException | RuntimeException e) {
+				System.err.print("Error: Could not evaluate due to ");
+				System.err.print(e.toString());
+				System.err.println();
+			} finally {
+				busy.set(false);
+			}
+		});
+		return true;
+	}
+
+	private void run(FlatRnn rnn, long offset) throws InterruptedException, IOException {
+		double bits = evaluate(rnn);
+		if(bits < bestBits){
+			bestBits = bits;
+			bestSteps = rnn.getLearnedSteps();
+			stale = 0;
+			if(best != null){
+				Path temp = best.resolveSibling(best.getFileName() + ".tmp");
+				Snapshot.write(rnn, temp, true, offset);
+				Files.move(temp, best, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}else{
+			stale++;
+		}
+		Metrics.validated(bits);
+		latest.set(new Result(rnn.getLearnedSteps(), bits, bestBits, bestSteps, stale));
+	}
+
+	/**@return the result of the last evaluation finished since the previous call, or null if there is none
+	 * */
+	Result poll(){
+		return latest.getAndSet(null);
+	}
+
+	/**Score every symbol of the validation range on the threads of this evaluator, waiting for them.
+	 * Only reads the parameters of model, which need not be a {@link FlatRnn}; other models are stepped one
+	 * segment per thread.
+	 * @return the cross-entropy in bits per byte
+	 * */
+	double evaluate(Rnn model) throws InterruptedException {
+		long start = System.nanoTime();
+		int lanes = model instanceof FlatRnn ? LANES : 1;
+		long n = to - from;
+		int segments = (int) Math.min((long) threads * lanes, n);
+		long length = (n + segments - 1) / segments;
+		segments = (int) ((n + length - 1) / length);
+
+		List<Callable<double[]>> tasks = new ArrayList<>();
+		for(int s = 0; s < segments; s += lanes){
+			int first = s, count = Math.min(lanes, segments - s);
+			tasks.add(() -> score(model, first, count, length));
+		}
+		double nats = 0, bytes = 0;
+		for(Future<double[]> f : pool.invokeAll(tasks)){
+			try {
+				double[] r = f.get();
+				nats += r[0];
+				bytes += r[1];
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		Metrics.EVALUATE.since(start);
+		return nats / LN2 / bytes;
+	}
+
+	/**Score count consecutive segments of length symbols, the first being segment first, as one batch.
+	 * @return the summed cross-entropy in nats, and the number of bytes scored
+	 * */
+	private double[] score(Rnn model, int first, int count, long length){
+		int h_size = model.getStateSize(), xy_size = model.getVocabSize();
+		double[] h = new double[h_size * count], hNext = new double[h.length], y = new double[xy_size * count];
+		int[] x = new int[count];
+		long[] starts = new long[count];
+		for(int b = 0; b < count; b++)
+			starts[b] = from + (first + b) * length;
+
+		double nats = 0, bytes = 0;
+		for(long t = -WARMUP - 1; t < length - 1; t++){
+			for(int b = 0; b < count; b++)
+				x[b] = text.symbolAt(Math.floorMod(starts[b] + t, text.length));
+			if(model instanceof FlatRnn)
+				((FlatRnn) model).forwardBatch(count, x, h, hNext, y);
+			else
+				model.forward(x[0], h, hNext, y);
+			double[] swap = h;
+			h = hNext;
+			hNext = swap;
+
+			if(t + 1 < 0)
+				continue;
+			for(int b = 0; b < count; b++){
+				long target = starts[b] + t + 1;
+				if(target >= to)
+					continue;
+				double max = Double.NEGATIVE_INFINITY;
+				for(int k = 0; k < xy_size; k++)
+					max = Math.max(max, y[k * count + b]);
+				double z = 0;
+				for(int k = 0; k < xy_size; k++)
+					z += Math.exp(y[k * count + b] - max);
+				int symbol = text.symbolAt(target);
+				nats += max + Math.log(z) - y[symbol * count + b];
+				bytes += vocabulary.length(symbol);
+			}
+		}
+		return new double[]{nats, bytes};
+	}
+
+	/**Wait for a running evaluation to finish, taking no new ones.
+	 * @return the result of the last evaluation not yet {@link #poll() polled}, or null if there is none
+	 * */
+	Result finish(){
+		close();
+		return poll();
+	}
+
+	/**Wait for a running evaluation to finish.
+	 * */
+	@Override
+	public void close(){
+		runner.shutdown();
+		try {
+			runner.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		pool.shutdownNow();
+	}
+}
@@ -0,0 +1,116 @@
+package ch.dajay42.rnn;
+
+/**An {@link Rnn} whose whole state lives in flat primitive arrays, so that it can be copied cheaply
+ * and stored as a {@link Snapshot}.
+ * */
+interface FlatRnn extends Rnn {
+
+	/**@return the cell type recorded in snapshots, one of the {@code Snapshot.CELL_} constants*/
+	int cellType();
+
+	/**@return the number of stacked hidden layers*/
+	default int layers(){
+		return 1;
+	}
+
+	/**@return the model parameters, each a double[] or float[], in snapshot order*/
+	Object[] parameters();
+
+	/**@return the optimizer memories, each a double[] or float[], in snapshot order*/
+	Object[] memories();
+
+	/**@return whether {@link #learnTruncated} can slide on by fewer steps than a whole window*/
+	boolean truncates();
+
+	/**One update of truncated backpropagation through time, TBPTT(k1, k2), over a window sliding along a
+	 * stream of symbols. The window holds the last k2 + 1 symbols, each predicting the next. The hidden state
+	 * is carried past all but the last of them, so consecutive windows always overlap.
+	 * @param window the current window
+	 * @param fresh k1, the number of steps the window slid on since the previous call, which are forwarded
+	 * and learned from; the earlier steps are only backpropagated through. A whole window of
+	 * window.length - 1 steps starts over from the hidden state.
+	 * @return the mean loss per fresh step
+	 * @throws IllegalArgumentException if fresh is not from 1 to window.length - 1
+	 * */
+	double learnTruncated(int[] window, int fresh);
+
+	/**@return the optimizer applying the updates, or null for a model that always learns with Adagrad*/
+	default Optimizer getOptimizer(){
+		return null;
+	}
+
+	/**Replace the optimizer by a new one of the given type, with all of its state zero.
+	 * @param type one of the optimizer constants
+	 * @throws UnsupportedOperationException if the model always learns with Adagrad
+	 * */
+	void setOptimizer(int type);
+
+	/**@return the type of the optimizer applying the updates*/
+	default int optimizerType(){
+		Optimizer optimizer = getOptimizer();
+		return optimizer != null ? optimizer.type : Optimizer.ADAGRAD;
+	}
+
+	/**Batched {@link #forward} of several hidden states at once, stored as a hidden size x batch
+	 * row-major matrix with one column per sequence, so each weight is read once per step for all of them.
+	 * @param x the inputs, x[b] being the one of sequence b
+	 * @param yOut receives the unnormalized outputs as a vocabulary size x batch matrix
+	 * */
+	void forwardBatch(int batch, int[] x, double[] hPrev, double[] hOut, double[] yOut);
+
+	double getDropout();
+
+	void setDropout(double dropout);
+
+	void setLearnedSteps(long steps);
+
+	/**Restore the smoothed loss reported by {@link #getLastLoss()}.*/
+	void setLastLoss(double loss);
+
+	/**@return a model of the same shape and precision with all arrays zero*/
+	FlatRnn blank();
+
+	/**@return whether the arrays of other have the same types and lengths as the ones of this model*/
+	default boolean compatibleWith(FlatRnn other){
+		return optimizerType() == other.optimizerType()
+				&& compatible(parameters(), other.parameters()) && compatible(memories(), other.memories());
+	}
+
+	/**Copy all arrays and the training state into a compatible model, without allocating.
+	 * */
+	default void copyTo(FlatRnn target){
+		if(!compatibleWith(target))
+			throw new IllegalArgumentException("Dimensions must agree!");
+		copy(parameters(), target.parameters());
+		copy(memories(), target.memories());
+		if(getOptimizer() != null)
+			getOptimizer().copyTo(target.getOptimizer());
+		target.setLearningRate(getLearningRate());
+		target.setLearnedSteps(getLearnedSteps());
+		target.setLastLoss(getLastLoss());
+		target.setTemperature(getTemperature());
+		target.setDropout(getDropout());
+	}
+
+	private static boolean compatible(Object[] a, Object[] b){
+		if(a.length != b.length)
+			return false;
+		for(int i = 0; i < a.length; i++){
+			if(a[i].getClass() != b[i].getClass() || length(a[i]) != length(b[i]))
+				return false;
+		}
+		return true;
+	}
+
+	private static void copy(Object[] from, Object[] to){
+		for(int i = 0; i < from.length; i++)
+			System.arraycopy(from[i], 0, to[i], 0, length(from[i]));
+	}
+
+	/**@return the length of a double[] or float[]*/
+	static int length(Object array){
+		if(array instanceof double[])
+			return ((double[]) array).length;
+		return ((float[]) array).length;
+	}
+}
@@ -0,0 +1,376 @@
+package ch.dajay42.rnn;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**The same vanilla tanh RNN as {@link FusedRnn}, but with its parameters stored as floats.
+ * <p>
+ * Stepping and sampling are bound by streaming the weights through the matrix-vector products,
+ * so halving their size nearly halves the time per step, and lets twice the hidden size fit in cache.
+ * The hidden state, activations and gradients stay doubles, so every sum is still accumulated at full
+ * precision. The Adagrad memories are floats too, or optionally doubles, as they grow monotonically and
+ * small gradients would otherwise stop registering in them.
+ * */
+@SuppressWarnings("WeakerAccess")
+public class FloatRnn extends AbstractFlatRnn {
+
+	private static final long serialVersionUID = 1L;
+
+	//model parameters, row-major
+	final float[] Whh; //hidden to hidden, h_size x h_size
+	final float[] Wxh; //input to hidden, h_size x xy_size
+	final float[] Why; //hidden to output, xy_size x h_size
+
+	final float[] bh; // hidden bias
+	final float[] by; // output bias
+
+	//memory variables for Adagrad, in the order of the parameters; exactly one of them is set
+	private final float[][] memories;
+	private final double[][] wideMemories;
+
+	private transient BpttWorkspace workspace; //reused by learn
+
+	/**@param wideMemories whether to keep the Adagrad memories as doubles*/
+	public FloatRnn(int hiddensize, int paramsize, boolean wideMemories) {
+		this(hiddensize, paramsize, wideMemories, true);
+	}
+
+	/**@param randomize whether to initialize the weights randomly, or leave them zero to be filled in*/
+	FloatRnn(int hiddensize, int paramsize, boolean wideMemories, boolean randomize) {
+		super(hiddensize, paramsize, hiddensize);
+		Whh = new float[h_size * h_size];
+		Wxh = new float[h_size * xy_size];
+		Why = new float[xy_size * h_size];
+		if(randomize){
+			randomize(Whh, -0.01f, 0.01f);
+			randomize(Wxh, -0.01f, 0.01f);
+			randomize(Why, -0.01f, 0.01f);
+		}
+
+		bh = new float[h_size];
+		by = new float[xy_size];
+
+		float[][] parameters = parameters();
+		if(wideMemories){
+			this.memories = null;
+			this.wideMemories = new double[parameters.length][];
+			for(int i = 0; i < parameters.length; i++)
+				this.wideMemories[i] = new double[parameters[i].length];
+		}else{
+			this.memories = new float[parameters.length][];
+			this.wideMemories = null;
+			for(int i = 0; i < parameters.length; i++)
+				this.memories[i] = new float[parameters[i].length];
+		}
+	}
+
+	private static void randomize(float[] a, float min, float max){
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for(int i = 0; i < a.length; i++)
+			a[i] = (float) random.nextDouble(min, max);
+	}
+
+	@Override
+	public int cellType(){
+		return Snapshot.CELL_VANILLA;
+	}
+
+	@Override
+	public float[][] parameters(){
+		return new float[][]{Wxh, Whh, Why, bh, by};
+	}
+
+	/**@return the Adagrad memories, in the same order as {@link #parameters()}, either all float[] or all double[]*/
+	@Override
+	public Object[] memories(){
+		return memories != null ? memories : wideMemories;
+	}
+
+	@Override
+	public void setOptimizer(int type){
+		if(type != Optimizer.ADAGRAD)
+			throw new UnsupportedOperationException(getClass().getSimpleName() + " only learns with Adagrad");
+	}
+
+	@Override
+	public FloatRnn blank(){
+		return new FloatRnn(h_size, xy_size, wideMemories != null, false);
+	}
+
+	// fused kernels, as in FusedRnn but reading float weights
+
+	/**hOut = tanh(Wxh[:,x] + Whh*hPrev + bh), in a single pass over Whh.
+	 * */
+	static void forwardHidden(float[] Wxh, float[] Whh, float[] bh, int h_size, int xy_size,
+			int x, double[] hPrev, double[] hOut){
+		for(int i = 0; i < h_size; i++){
+			int row = i * h_size;
+			double a = bh[i] + Wxh[i * xy_size + x];
+			for(int j = 0; j < h_size; j++)
+				a += Whh[row + j] * hPrev[j];
+			hOut[i] = Math.tanh(a);
+		}
+	}
+
+	/**yOut = Why*hT + by.
+	 * */
+	static void forwardOutput(float[] Why, float[] by, int h_size, int xy_size, double[] hT, double[] yOut){
+		for(int k = 0; k < xy_size; k++){
+			int row = k * h_size;
+			double a = by[k];
+			for(int j = 0; j < h_size; j++)
+				a += Why[row + j] * hT[j];
+			yOut[k] = a;
+		}
+	}
+
+	/**Batched hOut = tanh(Wxh[:,x] + Whh*hPrev + bh) for hidden states stored as h_size x batch matrices.
+	 * @param x the inputs, x[b] being the one of sequence b
+	 * */
+	static void forwardHiddenBatch(float[] Wxh, float[] Whh, float[] bh, int h_size, int xy_size, int batch,
+			int[] x, double[] hPrev, double[] hOut){
+		for(int i = 0; i < h_size; i++){
+			int row = i * h_size, out = i * batch;
+			for(int b = 0; b < batch; b++)
+				hOut[out + b] = bh[i] + Wxh[i * xy_size + x[b]];
+			for(int j = 0; j < h_size; j++){
+				double w = Whh[row + j];
+				int col = j * batch;
+				for(int b = 0; b < batch; b++)
+					hOut[out + b] += w * hPrev[col + b];
+			}
+			for(int b = 0; b < batch; b++)
+				hOut[out + b] = Math.tanh(hOut[out + b]);
+		}
+	}
+
+	/**Batched yOut = Why*hT + by for hidden states stored as h_size x batch matrices.
+	 * */
+	static void forwardOutputBatch(float[] Why, float[] by, int h_size, int xy_size, int batch,
+			double[] hT, double[] yOut){
+		for(int k = 0; k < xy_size; k++){
+			int row = k * h_size, out = k * batch;
+			Arrays.fill(yOut, out, out + batch, by[k]);
+			for(int j = 0; j < h_size; j++){
+				double w = Why[row + j];
+				int col = j * batch;
+				for(int b = 0; b < batch; b++)
+					yOut[out + b] += w * hT[col + b];
+			}
+		}
+	}
+
+	/**yOut = (mask.*Why)*hT / p + by, followed by pOut = softmax(yOut).
+	 * @param mask drop-out mask for Why, or null
+	 * @param p chance of a mask entry being 1
+	 * @param expected index of the expected output
+	 * @return the cross-entropy loss of expected
+	 * */
+	static double forwardSoftmaxLoss(float[] Why, float[] by, double[] mask, double p, int h_size, int xy_size,
+			double[] hT, double[] yOut, double[] pOut, int expected){
+		double max = Double.NEGATIVE_INFINITY;
+		for(int k = 0; k < xy_size; k++){
+			int row = k * h_size;
+			double a = 0;
+			if(mask != null){
+				for(int j = 0; j < h_size; j++)
+					a += Why[row + j] * mask[row + j] * hT[j];
+				a /= p;
+			}else{
+				for(int j = 0; j < h_size; j++)
+					a += Why[row + j] * hT[j];
+			}
+			a += by[k];
+			yOut[k] = a;
+			if(a > max) max = a;
+		}
+		double sum = 0;
+		for(int k = 0; k < xy_size; k++){
+			double e = Math.exp(yOut[k] - max);
+			pOut[k] = e;
+			sum += e;
+		}
+		double inv = 1.0 / sum;
+		for(int k = 0; k < xy_size; k++)
+			pOut[k] *= inv;
+		return Math.log(sum) + max - yOut[expected];
+	}
+
+	/**Clip the gradient, accumulate it into the Adagrad memory and update the parameter, in one pass.
+	 * */
+	static void clipAdagrad(float[] param, float[] mem, double[] dparam, double learningRate){
+		double limit = Optimizer.gradient_limit;
+		for(int i = 0; i < param.length; i++){
+			double d = dparam[i];
+			d = d > limit ? limit : (d < -limit ? -limit : d);
+			float m = (float) (mem[i] + d * d);
+			mem[i] = m;
+			param[i] -= (float) (learningRate * d / Math.sqrt(m + 1e-8));
+		}
+	}
+
+	/**Clip the gradient, accumulate it into the wide Adagrad memory and update the parameter, in one pass.
+	 * */
+	static void clipAdagrad(float[] param, double[] mem, double[] dparam, double learningRate){
+		double limit = Optimizer.gradient_limit;
+		for(int i = 0; i < param.length; i++){
+			double d = dparam[i];
+			d = d > limit ? limit : (d < -limit ? -limit : d);
+			double m = mem[i] + d * d;
+			mem[i] = m;
+			param[i] -= (float) (learningRate * d / Math.sqrt(m + 1e-8));
+		}
+	}
+
+	// Rnn
+
+	@Override
+	public void forward(int symbol, double[] hPrev, double[] hOut, double[] yOut){
+		forwardHidden(Wxh, Whh, bh, h_size, xy_size, symbol, hPrev, hOut);
+		forwardOutput(Why, by, h_size, xy_size, hOut, yOut);
+	}
+
+	@Override
+	public void forwardBatch(int batch, int[] x, double[] hPrev, double[] hOut, double[] yOut){
+		forwardHiddenBatch(Wxh, Whh, bh, h_size, xy_size, batch, x, hPrev, hOut);
+		forwardOutputBatch(Why, by, h_size, xy_size, batch, hOut, yOut);
+	}
+
+	@Override
+	int slide(int inputs, int fresh){
+		BpttWorkspace ws = workspace;
+		if(ws == null || !ws.fits(h_size, xy_size, inputs)){
+			ws = new BpttWorkspace(h_size, xy_size, inputs);
+			workspace = ws;
+		}
+		if(ws.window != inputs)
+			return inputs - 1;
+		if(fresh < inputs - 1)
+			ws.slide(fresh);
+		return fresh;
+	}
+
+	@Override
+	double backpropWindow(int[] in, int[] expectedIndex, int fresh, double[] s){
+		BpttWorkspace ws = workspace;
+		int inputs = in.length;
+		System.arraycopy(s, 0, ws.hs[inputs - 1 - fresh], 0, h_size);
+		double loss = backprop(in, expectedIndex, inputs, fresh, ws);
+		System.arraycopy(ws.hs[inputs - 1], 0, s, 0, h_size);
+		ws.window = inputs;
+		return loss;
+	}
+
+	@Override
+	double[][] gradients(){
+		return workspace.gradients;
+	}
+
+	@Override
+	double[][] ys(){
+		return workspace.ys;
+	}
+
+	/**Run the forward pass over the last fresh steps of a chunk, starting from ws.hs[inputs - 1 - fresh],
+	 * and the backward pass over the whole chunk, as {@link FusedRnn#backprop(int[], int[], int, int, BpttWorkspace)}
+	 * does, but reading float weights.
+	 * @return the summed cross-entropy loss of the fresh steps
+	 * */
+	double backprop(int[] in, int[] expectedIndex, int inputs, int fresh, BpttWorkspace ws){
+		long start = System.nanoTime();
+		ws.clearGradients();
+		int first = inputs - fresh;
+
+		// drop-out mask
+		boolean doDropout = dropout > 0;
+		double p = 1-dropout; //chance of being 1
+		double[] mask = null;
+		if(doDropout){
+			ws.drawDropout(p);
+			mask = ws.whyMask;
+		}
+
+		double[][] hs = ws.hs,
+				   ys = ws.ys,
+				   ps = ws.ps;
+		double[] dy = ws.dy;
+		double loss = 0;
+
+		// forward pass
+		for(int t = first; t < inputs; t++){
+			forwardHidden(Wxh, Whh, bh, h_size, xy_size, in[t-1], hs[t-1], hs[t]);
+			loss += forwardSoftmaxLoss(Why, by, mask, p, h_size, xy_size, hs[t], ys[t], ps[t], expectedIndex[t]);
+		}
+
+		long mark = Metrics.FORWARD.since(start);
+
+		// backward pass
+		double[] dWxh = ws.dWxh,
+				 dWhh = ws.dWhh,
+				 dWhy = ws.dWhy,
+				 dbh = ws.dbh,
+				 dby = ws.dby,
+				 dhnext = ws.dhnext,
+				 dh = ws.dh;
+
+		for(int t = inputs-1; t > 0; t--){ //reverse iteration
+			double[] hT = hs[t], hPrev = hs[t-1];
+			int x = in[t-1];
+
+			//dh = dhnext, plus the gradient through the output for the fresh steps
+			System.arraycopy(dhnext, 0, dh, 0, h_size);
+			if(t >= first){
+				//dy = ps[t] - onehot(expected)
+				System.arraycopy(ps[t], 0, dy, 0, xy_size);
+				dy[expectedIndex[t]] -= 1.0;
+
+				//dh += (Why^T)*dy, dWhy += dy*(hs[t]^T), dby += dy
+				for(int k = 0; k < xy_size; k++){
+					double d = dy[k];
+					dby[k] += d;
+					int row = k * h_size;
+					for(int j = 0; j < h_size; j++)
+						dWhy[row + j] += d * hT[j];
+					if(mask != null){
+						for(int j = 0; j < h_size; j++)
+							dh[j] += Why[row + j] * mask[row + j] * d;
+					}else{
+						for(int j = 0; j < h_size; j++)
+							dh[j] += Why[row + j] * d;
+					}
+				}
+			}
+
+			//dhraw = (1 - hs[t].^2) .* dh, dbh += dhraw, dWxh[:,x] += dhraw,
+			//dWhh += dhraw*(hs[t-1]^T), dhnext = (Whh^T)*dhraw
+			Arrays.fill(dhnext, 0d);
+			for(int i = 0; i < h_size; i++){
+				double d = dh[i] * (1 - hT[i] * hT[i]);
+				dbh[i] += d;
+				dWxh[i * xy_size + x] += d;
+				int row = i * h_size;
+				for(int j = 0; j < h_size; j++){
+					dWhh[row + j] += d * hPrev[j];
+					dhnext[j] += Whh[row + j] * d;
+				}
+			}
+		}
+		Metrics.BACKWARD.since(mark);
+		return loss;
+	}
+
+	/**Apply the gradients with Adagrad, the memories being floats or doubles.
+	 * */
+	@Override
+	void applyGradients(double[][] gradients){
+		long start = System.nanoTime();
+		float[][] parameters = parameters();
+		for(int i = 0; i < parameters.length; i++){
+			if(memories != null)
+				clipAdagrad(parameters[i], memories[i], gradients[i], learning_rate);
+			else
+				clipAdagrad(parameters[i], wideMemories[i], gradients[i], learning_rate);
+		}
+		Metrics.UPDATE.since(start);
+	}
+}
@@ -0,0 +1,540 @@
+package ch.dajay42.rnn;
+
+import java.util.Arrays;
+
+import ch.dajay42.math.linAlg.Matrix;
+
+/**The same vanilla tanh RNN as {@link MinimalRnn}, but with its parameters stored in flat row-major
+ * arrays and every pass written as one fused primitive loop.
+ * <p>
+ * Avoiding the generic element-wise operations of {@link Matrix} keeps the hot loops free of
+ * functional interfaces, so the JIT can inline and vectorize them.
+ * */
+@SuppressWarnings("WeakerAccess")
+public class FusedRnn extends AbstractFlatRnn {
+
+	private static final long serialVersionUID = 1L;
+
+	//model parameters, row-major
+	final double[] Whh; //hidden to hidden, h_size x h_size
+	final double[] Wxh; //input to hidden, h_size x xy_size
+	final double[] Why; //hidden to output, xy_size x h_size
+
+	final double[] bh; // hidden bias
+	final double[] by; // output bias
+
+	private transient BpttWorkspace workspace; //reused by learn
+
+	public FusedRnn(int hiddensize, int paramsize) {
+		this(hiddensize, paramsize, true);
+	}
+
+	/**@param randomize whether to initialize the weights randomly, or leave them zero to be filled in*/
+	FusedRnn(int hiddensize, int paramsize, boolean randomize) {
+		super(hiddensize, paramsize, hiddensize);
+		Whh = new double[h_size * h_size];
+		Wxh = new double[h_size * xy_size];
+		Why = new double[xy_size * h_size];
+		if(randomize){
+			randomize(Whh, -0.01, 0.01);
+			randomize(Wxh, -0.01, 0.01);
+			randomize(Why, -0.01, 0.01);
+		}
+
+		bh = new double[h_size];
+		by = new double[xy_size];
+
+		optimizer = Optimizer.create(Optimizer.ADAGRAD, parameters());
+	}
+
+	/**Copy the weights, Adagrad memories and training state of a {@link MinimalRnn}.
+	 * */
+	static FusedRnn of(MinimalRnn rnn){
+		FusedRnn f = new FusedRnn(rnn.h_size, rnn.xy_size, false);
+		copy(rnn.Wxh, f.Wxh, rnn.xy_size);
+		copy(rnn.Whh, f.Whh, rnn.h_size);
+		copy(rnn.Why, f.Why, rnn.h_size);
+		copy(rnn.bh, f.bh, 1);
+		copy(rnn.by, f.by, 1);
+		double[][] memories = f.optimizer.state();
+		copy(rnn.mWxh, memories[0], rnn.xy_size);
+		copy(rnn.mWhh, memories[1], rnn.h_size);
+		copy(rnn.mWhy, memories[2], rnn.h_size);
+		copy(rnn.mbh, memories[3], 1);
+		copy(rnn.mby, memories[4], 1);
+		f.learning_rate = rnn.getLearningRate();
+		f.learnedSteps = rnn.getLearnedSteps();
+		f.setLastLoss(rnn.getLastLoss());
+		f.beta = rnn.beta;
+		f.setDropout(rnn.getDropout());
+		return f;
+	}
+
+	private static void copy(Matrix m, double[] a, int cols){
+		for(int i = 0; i < a.length; i++)
+			a[i] = m.getValueAt(i / cols, i % cols);
+	}
+
+	@Override
+	public int cellType(){
+		return Snapshot.CELL_VANILLA;
+	}
+
+	@Override
+	public double[][] parameters(){
+		return new double[][]{Wxh, Whh, Why, bh, by};
+	}
+
+	@Override
+	public FusedRnn blank(){
+		FusedRnn blank = new FusedRnn(h_size, xy_size, false);
+		blank.setOptimizer(optimizer.type);
+		return blank;
+	}
+
+	// fused kernels
+
+	/**hOut = tanh(Wxh[:,x] + Whh*hPrev + bh), in a single pass over Whh.
+	 * */
+	static void forwardHidden(double[] Wxh, double[] Whh, double[] bh, int h_size, int xy_size,
+			int x, double[] hPrev, double[] hOut){
+		for(int i = 0; i < h_size; i++){
+			int row = i * h_size;
+			double a = bh[i] + Wxh[i * xy_size + x];
+			for(int j = 0; j < h_size; j++)
+				a += Whh[row + j] * hPrev[j];
+			hOut[i] = Math.tanh(a);
+		}
+	}
+
+	/**yOut = Why*hT + by.
+	 * */
+	static void forwardOutput(double[] Why, double[] by, int h_size, int xy_size, double[] hT, double[] yOut){
+		for(int k = 0; k < xy_size; k++){
+			int row = k * h_size;
+			double a = by[k];
+			for(int j = 0; j < h_size; j++)
+				a += Why[row + j] * hT[j];
+			yOut[k] = a;
+		}
+	}
+
+	/**yOut = (mask.*Why)*hT / p + by, followed by pOut = softmax(yOut).
+	 * @param mask drop-out mask for Why, or null
+	 * @param p chance of a mask entry being 1
+	 * @param expected index of the expected output
+	 * @return the cross-entropy loss of expected
+	 * */
+	static double forwardSoftmaxLoss(double[] Why, double[] by, double[] mask, double p, int h_size, int xy_size,
+			double[] hT, double[] yOut, double[] pOut, int expected){
+		double max = Double.NEGATIVE_INFINITY;
+		for(int k = 0; k < xy_size; k++){
+			int row = k * h_size;
+			double a = 0;
+			if(mask != null){
+				for(int j = 0; j < h_size; j++)
+					a += Why[row + j] * mask[row + j] * hT[j];
+				a /= p;
+			}else{
+				for(int j = 0; j < h_size; j++)
+					a += Why[row + j] * hT[j];
+			}
+			a += by[k];
+			yOut[k] = a;
+			if(a > max) max = a;
+		}
+		// subtracting the maximum leaves the softmax unchanged but keeps exp from overflowing
+		double sum = 0;
+		for(int k = 0; k < xy_size; k++){
+			double e = Math.exp(yOut[k] - max);
+			pOut[k] = e;
+			sum += e;
+		}
+		double inv = 1.0 / sum;
+		for(int k = 0; k < xy_size; k++)
+			pOut[k] *= inv;
+		return Math.log(sum) + max - yOut[expected];
+	}
+
+	/**Batched hOut = tanh(Wxh[:,x] + Whh*hPrev + bh) for hidden states stored as h_size x batch matrices.
+	 * Each weight is loaded once and applied to every sequence of the batch.
+	 * @param x the inputs, x[b] being the one of sequence b
+	 * */
+	static void forwardHiddenBatch(double[] Wxh, double[] Whh, double[] bh, int h_size, int xy_size, int batch,
+			int[] x, double[] hPrev, double[] hOut){
+		for(int i = 0; i < h_size; i++){
+			int row = i * h_size, out = i * batch;
+			for(int b = 0; b < batch; b++)
+				hOut[out + b] = bh[i] + Wxh[i * xy_size + x[b]];
+			for(int j = 0; j < h_size; j++){
+				double w = Whh[row + j];
+				int col = j * batch;
+				for(int b = 0; b < batch; b++)
+					hOut[out + b] += w * hPrev[col + b];
+			}
+			for(int b = 0; b < batch; b++)
+				hOut[out + b] = Math.tanh(hOut[out + b]);
+		}
+	}
+
+	/**Batched yOut = Why*hT + by for hidden states stored as h_size x batch matrices.
+	 * */
+	static void forwardOutputBatch(double[] Why, double[] by, int h_size, int xy_size, int batch,
+			double[] hT, double[] yOut){
+		for(int k = 0; k < xy_size; k++){
+			int row = k * h_size, out = k * batch;
+			Arrays.fill(yOut, out, out + batch, by[k]);
+			for(int j = 0; j < h_size; j++){
+				double w = Why[row + j];
+				int col = j * batch;
+				for(int b = 0; b < batch; b++)
+					yOut[out + b] += w * hT[col + b];
+			}
+		}
+	}
+
+	/**Batched variant of {@link #forwardSoftmaxLoss}, with outputs stored as xy_size x batch matrices.
+	 * @param expected the expected outputs, expected[b][t] being the one of sequence b
+	 * @param t the step whose expected outputs to use
+	 * @return the summed cross-entropy loss over the batch
+	 * */
+	static double forwardSoftmaxLossBatch(double[] Why, double[] by, double[] mask, double p, int h_size, int xy_size,
+			int batch, double[] hT, double[] yOut, double[] pOut, int[][] expected, int t, double[] colMax, double[] colSum){
+		double scale = mask != null ? 1 / p : 1;
+		for(int k = 0; k < xy_size; k++){
+			int row = k * h_size, out = k * batch;
+			Arrays.fill(yOut, out, out + batch, 0d);
+			for(int j = 0; j < h_size; j++){
+				double w = mask != null ? Why[row + j] * mask[row + j] : Why[row + j];
+				int col = j * batch;
+				for(int b = 0; b < batch; b++)
+					yOut[out + b] += w * hT[col + b];
+			}
+			for(int b = 0; b < batch; b++)
+				yOut[out + b] = yOut[out + b] * scale + by[k];
+		}
+
+		Arrays.fill(colMax, Double.NEGATIVE_INFINITY);
+		Arrays.fill(colSum, 0d);
+		for(int k = 0; k < xy_size; k++){
+			int out = k * batch;
+			for(int b = 0; b < batch; b++)
+				if(yOut[out + b] > colMax[b]) colMax[b] = yOut[out + b];
+		}
+		for(int k = 0; k < xy_size; k++){
+			int out = k * batch;
+			for(int b = 0; b < batch; b++){
+				double e = Math.exp(yOut[out + b] - colMax[b]);
+				pOut[out + b] = e;
+				colSum[b] += e;
+			}
+		}
+		double loss = 0;
+		for(int b = 0; b < batch; b++){
+			loss += Math.log(colSum[b]) + colMax[b] - yOut[expected[b][t] * batch + b];
+			colSum[b] = 1.0 / colSum[b];
+		}
+		for(int k = 0; k < xy_size; k++){
+			int out = k * batch;
+			for(int b = 0; b < batch; b++)
+				pOut[out + b] *= colSum[b];
+		}
+		return loss;
+	}
+
+	// Rnn
+
+	@Override
+	public void forward(int symbol, double[] hPrev, double[] hOut, double[] yOut){
+		forwardHidden(Wxh, Whh, bh, h_size, xy_size, symbol, hPrev, hOut);
+		forwardOutput(Why, by, h_size, xy_size, hOut, yOut);
+	}
+
+	@Override
+	public void forwardBatch(int batch, int[] x, double[] hPrev, double[] hOut, double[] yOut){
+		forwardHiddenBatch(Wxh, Whh, bh, h_size, xy_size, batch, x, hPrev, hOut);
+		forwardOutputBatch(Why, by, h_size, xy_size, batch, hOut, yOut);
+	}
+
+	@Override
+	int slide(int inputs, int fresh){
+		BpttWorkspace ws = workspace;
+		if(ws == null || !ws.fits(h_size, xy_size, inputs)){
+			ws = new BpttWorkspace(h_size, xy_size, inputs);
+			workspace = ws;
+		}
+		if(ws.window != inputs)
+			return inputs - 1;
+		if(fresh < inputs - 1)
+			ws.slide(fresh);
+		return fresh;
+	}
+
+	@Override
+	double backpropWindow(int[] in, int[] expectedIndex, int fresh, double[] s){
+		BpttWorkspace ws = workspace;
+		int inputs = in.length;
+		System.arraycopy(s, 0, ws.hs[inputs - 1 - fresh], 0, h_size);
+		double loss = backprop(in, expectedIndex, inputs, fresh, ws);
+		System.arraycopy(ws.hs[inputs - 1], 0, s, 0, h_size);
+		ws.window = inputs;
+		return loss;
+	}
+
+	@Override
+	double[][] gradients(){
+		return workspace.gradients;
+	}
+
+	@Override
+	double[][] ys(){
+		return workspace.ys;
+	}
+
+	/**Run the forward and backward pass over a chunk starting from ws.hs[0], leaving the gradients in ws.
+	 * @return the summed cross-entropy loss
+	 * */
+	double backprop(int[] in, int[] expectedIndex, int inputs, BpttWorkspace ws){
+		return backprop(in, expectedIndex, inputs, inputs - 1, ws);
+	}
+
+	/**Run the forward pass over the last fresh steps of a chunk, starting from ws.hs[inputs - 1 - fresh],
+	 * and the backward pass over the whole chunk, through the states of the earlier steps already in ws.
+	 * Only the fresh steps contribute to the loss. Leaves the gradients in ws.
+	 * @return the summed cross-entropy loss of the fresh steps
+	 * */
+	double backprop(int[] in, int[] expectedIndex, int inputs, int fresh, BpttWorkspace ws){
+		long start = System.nanoTime();
+		ws.clearGradients();
+		int first = inputs - fresh;
+
+		// drop-out mask
+		boolean doDropout = dropout > 0;
+		double p = 1-dropout; //chance of being 1
+		double[] mask = null;
+		if(doDropout){
+			ws.drawDropout(p);
+			mask = ws.whyMask;
+		}
+
+		double[][] hs = ws.hs,
+				   ys = ws.ys,
+				   ps = ws.ps;
+		double[] dy = ws.dy;
+		double loss = 0;
+
+		// forward pass
+		for(int t = first; t < inputs; t++){
+			forwardHidden(Wxh, Whh, bh, h_size, xy_size, in[t-1], hs[t-1], hs[t]);
+			loss += forwardSoftmaxLoss(Why, by, mask, p, h_size, xy_size, hs[t], ys[t], ps[t], expectedIndex[t]);
+		}
+
+		long mark = Metrics.FORWARD.since(start);
+
+		// backward pass
+		double[] dWxh = ws.dWxh,
+				 dWhh = ws.dWhh,
+				 dWhy = ws.dWhy,
+				 dbh = ws.dbh,
+				 dby = ws.dby,
+				 dhnext = ws.dhnext,
+				 dh = ws.dh;
+
+		for(int t = inputs-1; t > 0; t--){ //reverse iteration
+			double[] hT = hs[t], hPrev = hs[t-1];
+			int x = in[t-1];
+
+			//dh = dhnext, plus the gradient through the output for the fresh steps
+			System.arraycopy(dhnext, 0, dh, 0, h_size);
+			if(t >= first){
+				//dy = ps[t] - onehot(expected)
+				System.arraycopy(ps[t], 0, dy, 0, xy_size);
+				dy[expectedIndex[t]] -= 1.0;
+
+				//dh += (Why^T)*dy, dWhy += dy*(hs[t]^T), dby += dy
+				for(int k = 0; k < xy_size; k++){
+					double d = dy[k];
+					dby[k] += d;
+					int row = k * h_size;
+					for(int j = 0; j < h_size; j++)
+						dWhy[row + j] += d * hT[j];
+					if(mask != null){
+						for(int j = 0; j < h_size; j++)
+							dh[j] += Why[row + j] * mask[row + j] * d;
+					}else{
+						for(int j = 0; j < h_size; j++)
+							dh[j] += Why[row + j] * d;
+					}
+				}
+			}
+
+			//dhraw = (1 - hs[t].^2) .* dh, dbh += dhraw, dWxh[:,x] += dhraw,
+			//dWhh += dhraw*(hs[t-1]^T), dhnext = (Whh^T)*dhraw
+			Arrays.fill(dhnext, 0d);
+			for(int i = 0; i < h_size; i++){
+				double d = dh[i] * (1 - hT[i] * hT[i]);
+				dbh[i] += d;
+				dWxh[i * xy_size + x] += d;
+				int row = i * h_size;
+				for(int j = 0; j < h_size; j++){
+					dWhh[row + j] += d * hPrev[j];
+					dhnext[j] += Whh[row + j] * d;
+				}
+			}
+		}
+		Metrics.BACKWARD.since(mark);
+		return loss;
+	}
+
+	/**Train on a batch of aligned sequences, advancing each one's hidden state past all but the last symbol
+	 * of its chunk, which the next chunk of the sequence should start with.
+	 * @param in the sequences, in[b] holding the inputs of sequence b; all must have the same length
+	 * @param expectedIndex the expected outputs, laid out like in
+	 * @param h hidden states as an h_size x batch row-major matrix, one column per sequence; updated in place
+	 * @return the mean loss per step and sequence
+	 * */
+	double learnBatch(int[][] in, int[][] expectedIndex, double[] h){
+		int batch = in.length;
+		int inputs = in[0].length;
+		for(int b = 0; b < batch; b++){
+			if(in[b].length != inputs || expectedIndex[b].length != inputs)
+				throw new IllegalArgumentException("Array dimensions must agree!");
+		}
+		if(h.length != h_size * batch)
+			throw new IllegalArgumentException("Hidden state must be h_size x batch!");
+
+		BpttWorkspace ws = workspace;
+		if(ws == null || !ws.fits(h_size, xy_size, inputs, batch)){
+			ws = new BpttWorkspace(h_size, xy_size, inputs, batch);
+			workspace = ws;
+		}
+
+		System.arraycopy(h, 0, ws.hs[0], 0, h.length);
+		double loss = backpropBatch(in, expectedIndex, inputs, ws) / ((double) (inputs - 1) * batch);
+		ws.scaleGradients(1.0 / batch);
+		System.arraycopy(ws.hs[inputs-1], 0, h, 0, h.length);
+		ws.window = 0;
+
+		update(ws.gradients, loss);
+		learnedSteps += (long) (inputs - 1) * batch;
+		Metrics.learned((long) (inputs - 1) * batch);
+		return loss;
+	}
+
+	/**Batched variant of {@link #backprop}, running every step as a matrix-matrix product over the batch.
+	 * @return the summed cross-entropy loss
+	 * */
+	double backpropBatch(int[][] in, int[][] expectedIndex, int inputs, BpttWorkspace ws){
+		long start = System.nanoTime();
+		ws.clearGradients();
+		int batch = ws.batch;
+
+		// drop-out mask, shared by all sequences
+		boolean doDropout = dropout > 0;
+		double p = 1-dropout; //chance of being 1
+		double[] mask = null;
+		if(doDropout){
+			ws.drawDropout(p);
+			mask = ws.whyMask;
+		}
+
+		double[][] hs = ws.hs,
+				   ys = ws.ys,
+				   ps = ws.ps;
+		double loss = 0;
+
+		// forward pass
+		for(int t = 1; t < inputs; t++){
+			gather(in, t-1, ws.x);
+			forwardHiddenBatch(Wxh, Whh, bh, h_size, xy_size, batch, ws.x, hs[t-1], hs[t]);
+			loss += forwardSoftmaxLossBatch(Why, by, mask, p, h_size, xy_size, batch, hs[t], ys[t], ps[t],
+					expectedIndex, t, ws.colMax, ws.colSum);
+		}
+
+		long mark = Metrics.FORWARD.since(start);
+
+		// backward pass
+		double[] dWxh = ws.dWxh,
+				 dWhh = ws.dWhh,
+				 dWhy = ws.dWhy,
+				 dbh = ws.dbh,
+				 dby = ws.dby,
+				 dhnext = ws.dhnext,
+				 dh = ws.dh,
+				 dy = ws.dy;
+
+		for(int t = inputs-1; t > 0; t--){ //reverse iteration
+			double[] hT = hs[t], hPrev = hs[t-1];
+
+			//dy = ps[t] - onehot(expected)
+			System.arraycopy(ps[t], 0, dy, 0, xy_size * batch);
+			for(int b = 0; b < batch; b++)
+				dy[expectedIndex[b][t] * batch + b] -= 1.0;
+
+			//dWhy += dy*(hs[t]^T), dby += dy
+			for(int k = 0; k < xy_size; k++){
+				int row = k * h_size, out = k * batch;
+				double db = 0;
+				for(int b = 0; b < batch; b++)
+					db += dy[out + b];
+				dby[k] += db;
+				for(int j = 0; j < h_size; j++){
+					int col = j * batch;
+					double a = 0;
+					for(int b = 0; b < batch; b++)
+						a += dy[out + b] * hT[col + b];
+					dWhy[row + j] += a;
+				}
+			}
+
+			//dh = (Why^T)*dy + dhnext
+			System.arraycopy(dhnext, 0, dh, 0, h_size * batch);
+			for(int k = 0; k < xy_size; k++){
+				int row = k * h_size, out = k * batch;
+				for(int j = 0; j < h_size; j++){
+					double w = mask != null ? Why[row + j] * mask[row + j] : Why[row + j];
+					int col = j * batch;
+					for(int b = 0; b < batch; b++)
+						dh[col + b] += w * dy[out + b];
+				}
+			}
+
+			//dhraw = (1 - hs[t].^2) .* dh, dbh += dhraw, dWxh[:,x] += dhraw
+			for(int i = 0; i < h_size; i++){
+				int col = i * batch;
+				double db = 0;
+				for(int b = 0; b < batch; b++){
+					double d = dh[col + b] * (1 - hT[col + b] * hT[col + b]);
+					dh[col + b] = d;
+					db += d;
+					dWxh[i * xy_size + in[b][t-1]] += d;
+				}
+				dbh[i] += db;
+			}
+
+			//dWhh += dhraw*(hs[t-1]^T), dhnext = (Whh^T)*dhraw
+			Arrays.fill(dhnext, 0d);
+			for(int i = 0; i < h_size; i++){
+				int row = i * h_size, col = i * batch;
+				for(int j = 0; j < h_size; j++){
+					int prev = j * batch;
+					double w = Whh[row + j];
+					double a = 0;
+					for(int b = 0; b < batch; b++){
+						a += dh[col + b] * hPrev[prev + b];
+						dhnext[prev + b] += w * dh[col + b];
+					}
+					dWhh[row + j] += a;
+				}
+			}
+		}
+		Metrics.BACKWARD.since(mark);
+		return loss;
+	}
+
+	/**x[b] = in[b][t]*/
+	private static void gather(int[][] in, int t, int[] x){
+		for(int b = 0; b < x.length; b++)
+			x[b] = in[b][t];
+	}
+}
@@ -0,0 +1,320 @@
+package ch.dajay42.rnn;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**Common base of the gated cells {@link LstmRnn} and {@link GruRnn}, which only differ in the arithmetic
+ * of their gates.
+ * <p>
+ * The input and recurrent weights of all gates are stacked into one matrix each, with the rows of the gates
+ * of a unit next to each other, so a single pass over Whg computes every gate of every unit. Everything
+ * but the arithmetic of the cell is shared here and in {@link AbstractFlatRnn}.
+ * */
+@SuppressWarnings("WeakerAccess")
+abstract class GatedRnn extends AbstractFlatRnn {
+
+	private static final long serialVersionUID = 1L;
+
+	/**gate pre-activations of one unit for a whole batch, per thread, as several threads may step at once*/
+	private static final ThreadLocal<double[]> GATE_BUFFERS = ThreadLocal.withInitial(() -> new double[0]);
+
+	//model parameters, row-major, the row of gate g of unit i being i * gates + g
+	final double[] Wxg; //input to gates, (h_size * gates) x xy_size
+	final double[] Whg; //hidden to gates, (h_size * gates) x h_size
+	final double[] Why; //hidden to output, xy_size x h_size
+
+	final double[] bg; // gate bias
+	final double[] by; // output bias
+
+	//hyperparameters
+	final int gates; // gates per unit
+	final int s_size; // recurrent state size
+	final int a_size; // activations per step kept for the backward pass
+
+	private transient Workspace workspace; //reused by learn
+
+	/**Preallocated buffers for backpropagation through time over a chunk of up to capacity steps.
+	 * */
+	static final class Workspace {
+		final int capacity;
+
+		//forward pass
+		final double[][] states; //recurrent states, states[0] is the initial state
+		final double[][] activations; //gate activations, as laid out by the cell
+		final double[][] ys; //unnormalized outputs
+		final double[][] ps; //output probabilities
+
+		//backward pass
+		final double[] dy;
+		final double[] ds;
+		final double[] dsNext;
+		final double[] dgx; //gradient of the gate pre-activations through Wxg and bg
+		final double[] dgh; //gradient of the gate pre-activations through Whg
+
+		//gradients, same layout as the parameters
+		final double[] dWxg;
+		final double[] dWhg;
+		final double[] dWhy;
+		final double[] dbg;
+		final double[] dby;
+		final double[][] gradients; //all of the above, in the order of the parameters
+
+		/**drop-out mask for Why, each entry either 0 or 1*/
+		final double[] whyMask;
+
+		/**length of the window whose states are held, or 0 if they cannot be slid on*/
+		int window = 0;
+
+		Workspace(GatedRnn rnn, int capacity){
+			this.capacity = capacity;
+			states = new double[capacity][rnn.s_size];
+			activations = new double[capacity][rnn.a_size];
+			ys = new double[capacity][rnn.xy_size];
+			ps = new double[capacity][rnn.xy_size];
+
+			dy = new double[rnn.xy_size];
+			ds = new double[rnn.s_size];
+			dsNext = new double[rnn.s_size];
+			dgx = new double[rnn.bg.length];
+			dgh = new double[rnn.bg.length];
+
+			dWxg = new double[rnn.Wxg.length];
+			dWhg = new double[rnn.Whg.length];
+			dWhy = new double[rnn.Why.length];
+			dbg = new double[rnn.bg.length];
+			dby = new double[rnn.by.length];
+			gradients = new double[][]{dWxg, dWhg, dWhy, dbg, dby};
+			whyMask = new double[rnn.Why.length];
+		}
+
+		void clearGradients(){
+			Arrays.fill(dWxg, 0d);
+			Arrays.fill(dWhg, 0d);
+			Arrays.fill(dWhy, 0d);
+			Arrays.fill(dbg, 0d);
+			Arrays.fill(dby, 0d);
+			Arrays.fill(dsNext, 0d);
+		}
+
+		/**Slide the states and activations of the previous window on by fresh steps, in place.
+		 * */
+		void slide(int fresh){
+			BpttWorkspace.slide(states, window, fresh);
+			BpttWorkspace.slide(activations, window, fresh);
+		}
+
+		/**Redraw the drop-out mask in place.
+		 * @param p chance of each entry being 1
+		 * */
+		void drawDropout(double p){
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for(int i = 0; i < whyMask.length; i++)
+				whyMask[i] = random.nextDouble() < p ? 1d : 0d;
+		}
+	}
+
+	/**@param gates gates per unit
+	 * @param s_size size of the recurrent state, at least h_size
+	 * @param a_size activations per step the cell keeps for its backward pass
+	 * @param randomize whether to initialize the weights randomly, or leave them zero to be filled in
+	 * */
+	GatedRnn(int hiddensize, int paramsize, int gates, int s_size, int a_size, boolean randomize) {
+		super(hiddensize, paramsize, s_size);
+		this.gates = gates;
+		this.s_size = s_size;
+		this.a_size = a_size;
+		Wxg = new double[h_size * gates * xy_size];
+		Whg = new double[h_size * gates * h_size];
+		Why = new double[xy_size * h_size];
+		if(randomize){
+			randomize(Wxg, -0.01, 0.01);
+			randomize(Whg, -0.01, 0.01);
+			randomize(Why, -0.01, 0.01);
+		}
+
+		bg = new double[h_size * gates];
+		by = new double[xy_size];
+
+		optimizer = Optimizer.create(Optimizer.ADAGRAD, parameters());
+	}
+
+	static double sigmoid(double a){
+		return 1 / (1 + Math.exp(-a));
+	}
+
+	// cell
+
+	/**Advance a recurrent state by one symbol.
+	 * @param act receives the activations needed by {@link #backwardState}, or null when not learning
+	 * */
+	abstract void forwardState(int x, double[] sPrev, double[] sOut, double[] act);
+
+	/**Batched {@link #forwardState} for recurrent states stored as s_size x batch matrices.
+	 * */
+	abstract void forwardStateBatch(int batch, int[] x, double[] sPrev, double[] sOut);
+
+	/**@return a buffer of at least the given size for the gate pre-activations of {@link #forwardStateBatch},
+	 * owned by the calling thread
+	 * */
+	static double[] gateBuffer(int size){
+		double[] buffer = GATE_BUFFERS.get();
+		if(buffer.length < size){
+			buffer = new double[size];
+			GATE_BUFFERS.set(buffer);
+		}
+		return buffer;
+	}
+
+	/**Backpropagate through the gate arithmetic of one step.
+	 * @param ds gradient of the loss with respect to the state after the step
+	 * @param dgx receives the gradient of the gate pre-activations through Wxg and bg
+	 * @param dgh receives the gradient of the gate pre-activations through Whg
+	 * @param dsPrev receives the gradient with respect to the state before the step, apart from the part through Whg
+	 * */
+	abstract void backwardState(double[] ds, double[] sPrev, double[] act, double[] dgx, double[] dgh, double[] dsPrev);
+
+	@Override
+	public double[][] parameters(){
+		return new double[][]{Wxg, Whg, Why, bg, by};
+	}
+
+	// Rnn
+
+	@Override
+	public void forward(int symbol, double[] hPrev, double[] hOut, double[] yOut){
+		forwardState(symbol, hPrev, hOut, null);
+		FusedRnn.forwardOutput(Why, by, h_size, xy_size, hOut, yOut);
+	}
+
+	@Override
+	public void forwardBatch(int batch, int[] x, double[] hPrev, double[] hOut, double[] yOut){
+		forwardStateBatch(batch, x, hPrev, hOut);
+		FusedRnn.forwardOutputBatch(Why, by, h_size, xy_size, batch, hOut, yOut);
+	}
+
+	@Override
+	int slide(int inputs, int fresh){
+		Workspace ws = workspace;
+		if(ws == null || ws.capacity < inputs){
+			ws = new Workspace(this, inputs);
+			workspace = ws;
+		}
+		if(ws.window != inputs)
+			return inputs - 1;
+		if(fresh < inputs - 1)
+			ws.slide(fresh);
+		return fresh;
+	}
+
+	@Override
+	double backpropWindow(int[] in, int[] expectedIndex, int fresh, double[] s){
+		Workspace ws = workspace;
+		int inputs = in.length;
+		System.arraycopy(s, 0, ws.states[inputs - 1 - fresh], 0, s_size);
+		double loss = backprop(in, expectedIndex, inputs, fresh, ws);
+		System.arraycopy(ws.states[inputs - 1], 0, s, 0, s_size);
+		ws.window = inputs;
+		return loss;
+	}
+
+	@Override
+	double[][] gradients(){
+		return workspace.gradients;
+	}
+
+	@Override
+	double[][] ys(){
+		return workspace.ys;
+	}
+
+	/**Run the forward pass over the last fresh steps of a chunk, starting from ws.states[inputs - 1 - fresh],
+	 * and the backward pass over the whole chunk, through the states of the earlier steps already in ws.
+	 * Only the fresh steps contribute to the loss. Leaves the gradients in ws.
+	 * @return the summed cross-entropy loss of the fresh steps
+	 * */
+	double backprop(int[] in, int[] expectedIndex, int inputs, int fresh, Workspace ws){
+		long start = System.nanoTime();
+		ws.clearGradients();
+		int first = inputs - fresh;
+
+		// drop-out mask
+		boolean doDropout = dropout > 0;
+		double p = 1-dropout; //chance of being 1
+		double[] mask = null;
+		if(doDropout){
+			ws.drawDropout(p);
+			mask = ws.whyMask;
+		}
+
+		double[][] states = ws.states,
+				   acts = ws.activations,
+				   ys = ws.ys,
+				   ps = ws.ps;
+		double loss = 0;
+
+		// forward pass, the output layer only reads the h at the start of each state
+		for(int t = first; t < inputs; t++){
+			forwardState(in[t-1], states[t-1], states[t], acts[t]);
+			loss += FusedRnn.forwardSoftmaxLoss(Why, by, mask, p, h_size, xy_size, states[t], ys[t], ps[t], expectedIndex[t]);
+		}
+
+		long mark = Metrics.FORWARD.since(start);
+
+		// backward pass
+		double[] dWxg = ws.dWxg,
+				 dWhg = ws.dWhg,
+				 dWhy = ws.dWhy,
+				 dbg = ws.dbg,
+				 dby = ws.dby,
+				 dy = ws.dy,
+				 dgx = ws.dgx,
+				 dgh = ws.dgh;
+		double[] ds = ws.ds, dsNext = ws.dsNext;
+		int rows = h_size * gates;
+
+		for(int t = inputs-1; t > 0; t--){ //reverse iteration
+			double[] sT = states[t], sPrev = states[t-1];
+			int x = in[t-1];
+
+			//ds = dsNext, plus the gradient through the output for the fresh steps
+			System.arraycopy(dsNext, 0, ds, 0, s_size);
+			if(t >= first){
+				//dy = ps[t] - onehot(expected)
+				System.arraycopy(ps[t], 0, dy, 0, xy_size);
+				dy[expectedIndex[t]] -= 1.0;
+
+				//dh += (Why^T)*dy, dWhy += dy*(h^T), dby += dy
+				for(int k = 0; k < xy_size; k++){
+					double d = dy[k];
+					dby[k] += d;
+					int row = k * h_size;
+					for(int j = 0; j < h_size; j++)
+						dWhy[row + j] += d * sT[j];
+					if(mask != null){
+						for(int j = 0; j < h_size; j++)
+							ds[j] += Why[row + j] * mask[row + j] * d;
+					}else{
+						for(int j = 0; j < h_size; j++)
+							ds[j] += Why[row + j] * d;
+					}
+				}
+			}
+
+			backwardState(ds, sPrev, acts[t], dgx, dgh, dsNext);
+
+			//dbg += dgx, dWxg[:,x] += dgx, dWhg += dgh*(hPrev^T), dhPrev += (Whg^T)*dgh
+			for(int r = 0; r < rows; r++){
+				dbg[r] += dgx[r];
+				dWxg[r * xy_size + x] += dgx[r];
+				double d = dgh[r];
+				int row = r * h_size;
+				for(int j = 0; j < h_size; j++){
+					dWhg[row + j] += d * sPrev[j];
+					dsNext[j] += Whg[row + j] * d;
+				}
+			}
+		}
+		Metrics.BACKWARD.since(mark);
+		return loss;
+	}
+}
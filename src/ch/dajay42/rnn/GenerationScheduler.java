@@ -0,0 +1,235 @@
+package ch.dajay42.rnn;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.IntConsumer;
+
+/**Advances the {@link Session}s of many concurrent generation requests together, one symbol per tick.
+ * <p>
+ * Stepping each session on its own streams the whole of Whh and Why through the cache once per session
+ * and symbol. Here the hidden states of all active requests are gathered into one h_size x batch block,
+ * so each tick is a single matrix-matrix product that reads every weight once for the whole batch.
+ * Every request still samples with the temperature and random number generator of its own session.
+ * Requests are admitted and retired between ticks, so a long request never holds up a short one, and
+ * a request waits at most for the batch to have room for it.
+ * <p>
+ * All work happens on one scheduler thread, including calls to the sinks of the requests, which must
+ * therefore not block.
+ * */
+final class GenerationScheduler implements AutoCloseable {
+
+	private final FlatRnn model;
+	private final int capacity;
+	private final int h_size;
+	private final int xy_size;
+
+	private final BlockingQueue<Request> pending = new LinkedBlockingQueue<>();
+	private final Thread thread;
+
+	//only touched by the scheduler thread
+	private Request[] active;
+	private Request[] next;
+	private final int[] from;
+	private int batch = 0;
+	private double[] h; //hidden states, h_size x batch
+	private double[] hNext;
+	private final double[] y; //outputs, xy_size x batch
+	private final double[] column; //output of one request
+	private final int[] x; //inputs of the current tick
+
+	private static final class Request {
+		final Session session;
+		final int[] seed;
+		final IntConsumer sink;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		int seedPosition = 0;
+		int remaining;
+		int last = -1; //last symbol drawn, to be fed next
+
+		Request(Session session, int[] seed, int n, IntConsumer sink){
+			this.session = session;
+			this.seed = seed;
+			this.remaining = n;
+			this.sink = sink;
+		}
+	}
+
+	/**@param capacity maximum number of requests advanced at once
+	 * */
+	GenerationScheduler(FlatRnn model, int capacity){
+		if(capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive");
+		this.model = model;
+		this.capacity = capacity;
+		h_size = model.getStateSize();
+		xy_size = model.getVocabSize();
+		active = new Request[capacity];
+		next = new Request[capacity];
+		from = new int[capacity];
+		h = new double[h_size * capacity];
+		hNext = new double[h_size * capacity];
+		y = new double[xy_size * capacity];
+		column = new double[xy_size];
+		x = new int[capacity];
+
+		thread = new Thread(this::run, "rnn-scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**Feed seed to session, then draw n symbols from it, passing each to sink as it is drawn.
+	 * The session must belong to the model of this scheduler, and must not be used elsewhere until the
+	 * returned future completes. Afterwards it continues from the last symbol drawn, as if it had been
+	 * fed seed and its n symbols itself. Cancelling the future stops the request, leaving the session
+	 * where it was when submitted.
+	 * @param seed symbols to feed before drawing; may be empty if the session has been fed before
+	 * @return a future completing once all symbols have been passed to sink
+	 * */
+	CompletableFuture<Void> submit(Session session, int[] seed, int n, IntConsumer sink){
+		if(session.getModel() != model)
+			throw new IllegalArgumentException("Session belongs to another model");
+		if(seed.length == 0 && !session.isPrimed())
+			throw new IllegalArgumentException("Session must be fed a seed first");
+		Request request = new Request(session, seed, n, sink);
+		pending.add(request);
+		if(!thread.isAlive())
+			request.done.completeExceptionally(new CancellationException("Scheduler closed"));
+		return request.done;
+	}
+
+	int getCapacity(){
+		return capacity;
+	}
+
+	private void run(){
+		try {
+			while(!Thread.currentThread().isInterrupted()){
+				Request first = batch == 0 ? pending.take() : null;
+				reschedule(first);
+				if(batch > 0)
+					tick();
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} finally {
+			for(int b = 0; b < batch; b++)
+				active[b].done.completeExceptionally(new CancellationException("Scheduler closed"));
+			Request r;
+			while((r = pending.poll()) != null)
+				r.done.completeExceptionally(new CancellationException("Scheduler closed"));
+		}
+	}
+
+	/**Drop finished requests, admit pending ones and repack the hidden states into a block of the new batch size.
+	 * */
+	private void reschedule(Request first){
+		int n = 0;
+		for(int b = 0; b < batch; b++){
+			if(!active[b].done.isDone()){
+				next[n] = active[b];
+				from[n++] = b;
+			}
+		}
+		Request r = first;
+		while(n < capacity && (r != null || (r = pending.poll()) != null)){
+			if(start(r)){
+				next[n] = r;
+				from[n++] = -1;
+			}
+			r = null;
+		}
+
+		for(int c = 0; c < n; c++){
+			int b = from[c];
+			if(b >= 0){
+				for(int i = 0; i < h_size; i++)
+					hNext[i * n + c] = h[i * batch + b];
+			}else{
+				next[c].session.storeHidden(hNext, n, c);
+			}
+		}
+		double[] t = h;
+		h = hNext;
+		hNext = t;
+		Request[] s = active;
+		active = next;
+		next = s;
+		for(int c = n; c < batch; c++)
+			active[c] = null;
+		batch = n;
+	}
+
+	/**Prepare a request for its first tick.
+	 * @return whether it needs any ticks at all
+	 * */
+	private boolean start(Request r){
+		if(r.seed.length > 0)
+			return !r.done.isDone();
+		if(r.remaining == 0){
+			r.done.complete(null);
+			return false;
+		}
+		// the session already holds the output to draw the first symbol from; a cancelled request must
+		// leave it untouched, so check right before drawing
+		return !r.done.isDone() && emit(r, r.session.draw());
+	}
+
+	private void tick(){
+		long start = System.nanoTime();
+		for(int b = 0; b < batch; b++){
+			Request r = active[b];
+			x[b] = r.seedPosition < r.seed.length ? r.seed[r.seedPosition++] : r.last;
+		}
+
+		model.forwardBatch(batch, x, h, hNext, y);
+		double[] t = h;
+		h = hNext;
+		hNext = t;
+
+		for(int b = 0; b < batch; b++){
+			Request r = active[b];
+			if(r.done.isDone() || r.seedPosition < r.seed.length)
+				continue;
+			if(r.remaining == 0){
+				r.session.loadState(h, y, batch, b);
+				r.done.complete(null);
+				continue;
+			}
+			for(int k = 0; k < xy_size; k++)
+				column[k] = y[k * batch + b];
+			emit(r, r.session.draw(column));
+		}
+		// every session advanced by the tick waited for all of it
+		Metrics.STEP.since(start);
+	}
+
+	/**Pass a drawn symbol to the sink of a request.
+	 * @return whether the request is still running
+	 * */
+	private static boolean emit(Request r, int symbol){
+		try {
+			r.sink.accept(symbol);
+		} catch (RuntimeException e) {
+			r.done.completeExceptionally(e);
+			return false;
+		}
+		r.last = symbol;
+		r.remaining--;
+		Metrics.sampled();
+		return true;
+	}
+
+	/**Stop the scheduler, failing all requests not yet complete.
+	 * */
+	@Override
+	public void close(){
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
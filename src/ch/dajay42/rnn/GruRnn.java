@@ -0,0 +1,116 @@
+package ch.dajay42.rnn;
+
+/**A gated recurrent unit RNN, a lighter gated cell than {@link LstmRnn} with three gates instead of four
+ * and no separate cell state.
+ * <p>
+ * Per unit, with the reset and update gates r and z and the candidate n:
+ * <pre>
+ * n  = tanh(Wxn*x + bn + r .* (Whn*h))
+ * h' = (1 - z) .* n + z .* h
+ * </pre>
+ * The recurrent state is just h.
+ * */
+@SuppressWarnings("WeakerAccess")
+public class GruRnn extends GatedRnn {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int GATES = 3; // r, z, n
+	private static final int ACTIVATIONS = 4; // r, z, n, Whn*h
+
+	public GruRnn(int hiddensize, int paramsize) {
+		this(hiddensize, paramsize, true);
+	}
+
+	/**@param randomize whether to initialize the weights randomly, or leave them zero to be filled in*/
+	GruRnn(int hiddensize, int paramsize, boolean randomize) {
+		super(hiddensize, paramsize, GATES, hiddensize, ACTIVATIONS * hiddensize, randomize);
+	}
+
+	@Override
+	public int cellType(){
+		return Snapshot.CELL_GRU;
+	}
+
+	@Override
+	public GruRnn blank(){
+		GruRnn blank = new GruRnn(h_size, xy_size, false);
+		blank.setOptimizer(getOptimizer().type);
+		return blank;
+	}
+
+	/**All three gates of a unit in a single pass over its rows of Whg.
+	 * */
+	@Override
+	void forwardState(int x, double[] sPrev, double[] sOut, double[] act){
+		for(int i = 0; i < h_size; i++){
+			int r = i * GATES;
+			double ar = bg[r] + Wxg[r * xy_size + x];
+			double az = bg[r + 1] + Wxg[(r + 1) * xy_size + x];
+			double an = bg[r + 2] + Wxg[(r + 2) * xy_size + x];
+			double hn = 0;
+			int wr = r * h_size, wz = wr + h_size, wn = wz + h_size;
+			for(int j = 0; j < h_size; j++){
+				double hj = sPrev[j];
+				ar += Whg[wr + j] * hj;
+				az += Whg[wz + j] * hj;
+				hn += Whg[wn + j] * hj;
+			}
+			double rg = sigmoid(ar), zg = sigmoid(az);
+			double n = Math.tanh(an + rg * hn);
+			sOut[i] = (1 - zg) * n + zg * sPrev[i];
+			if(act != null){
+				int a = i * ACTIVATIONS;
+				act[a] = rg;
+				act[a + 1] = zg;
+				act[a + 2] = n;
+				act[a + 3] = hn;
+			}
+		}
+	}
+
+	@Override
+	void forwardStateBatch(int batch, int[] x, double[] sPrev, double[] sOut){
+		double[] acc = gateBuffer(GATES * batch);
+		for(int i = 0; i < h_size; i++){
+			int r = i * GATES;
+			for(int g = 0; g < GATES; g++){
+				int out = g * batch, in = (r + g) * xy_size, row = (r + g) * h_size;
+				// the input part of the candidate is added once the reset gate is known
+				for(int b = 0; b < batch; b++)
+					acc[out + b] = g < 2 ? bg[r + g] + Wxg[in + x[b]] : 0;
+				for(int j = 0; j < h_size; j++){
+					double w = Whg[row + j];
+					int col = j * batch;
+					for(int b = 0; b < batch; b++)
+						acc[out + b] += w * sPrev[col + b];
+				}
+			}
+			int h = i * batch, in = (r + 2) * xy_size;
+			for(int b = 0; b < batch; b++){
+				double rg = sigmoid(acc[b]), zg = sigmoid(acc[batch + b]);
+				double n = Math.tanh(bg[r + 2] + Wxg[in + x[b]] + rg * acc[2 * batch + b]);
+				sOut[h + b] = (1 - zg) * n + zg * sPrev[h + b];
+			}
+		}
+	}
+
+	@Override
+	void backwardState(double[] ds, double[] sPrev, double[] act, double[] dgx, double[] dgh, double[] dsPrev){
+		for(int i = 0; i < h_size; i++){
+			int a = i * ACTIVATIONS, r = i * GATES;
+			double rg = act[a], zg = act[a + 1], n = act[a + 2], hn = act[a + 3];
+			double dh = ds[i];
+			double dn = dh * (1 - zg) * (1 - n * n);
+			double dz = dh * (sPrev[i] - n) * zg * (1 - zg);
+			double dr = dn * hn * rg * (1 - rg);
+			dgx[r] = dr;
+			dgx[r + 1] = dz;
+			dgx[r + 2] = dn;
+			dgh[r] = dr;
+			dgh[r + 1] = dz;
+			dgh[r + 2] = dn * rg;
+			dsPrev[i] = dh * zg;
+		}
+	}
+}
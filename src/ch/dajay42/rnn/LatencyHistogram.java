@@ -0,0 +1,109 @@
+package ch.dajay42.rnn;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**A distribution of durations in nanoseconds, recorded from any number of threads without locking.
+ * <p>
+ * Like an HdrHistogram, every power of two is split into {@value #SUB} equal buckets, so a recorded value
+ * is known to within an eighth of itself, from single nanoseconds up to centuries, in a fixed
+ * {@value #BUCKETS} counters. Recording is a few bit operations and an atomic increment.
+ * */
+final class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	static final int SUB = 1 << SUB_BITS;
+	static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**@return the bucket holding value, for a non-negative value*/
+	static int bucket(long value){
+		if(value < SUB)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+		return (exponent - SUB_BITS + 1) * SUB + sub;
+	}
+
+	/**@return the smallest value in bucket*/
+	static long lowest(int bucket){
+		if(bucket < SUB)
+			return bucket;
+		int exponent = bucket / SUB + SUB_BITS - 1;
+		return (long) (SUB + bucket % SUB) << (exponent - SUB_BITS);
+	}
+
+	/**@return the largest value in bucket*/
+	static long highest(int bucket){
+		return bucket + 1 < BUCKETS ? lowest(bucket + 1) - 1 : Long.MAX_VALUE;
+	}
+
+	/**Record one duration; negative ones, from a clock going backwards, count as 0.*/
+	void record(long nanos){
+		if(nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(bucket(nanos));
+		sum.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**Record the time since start, as taken from {@link System#nanoTime()}.
+	 * @return the current time, to start the next measurement from
+	 * */
+	long since(long start){
+		long now = System.nanoTime();
+		record(now - start);
+		return now;
+	}
+
+	long count(){
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	/**@return the total of all durations recorded*/
+	long sum(){
+		return sum.sum();
+	}
+
+	long max(){
+		return max.get();
+	}
+
+	/**@return the durations below which the fractions qs of all recorded ones lie, each as the largest value
+	 * of its bucket, but at most the largest duration recorded; 0 if none were
+	 * */
+	long[] quantiles(double... qs){
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++)
+			total += snapshot[i] = counts.get(i);
+		long[] values = new long[qs.length];
+		if(total == 0)
+			return values;
+		long largest = max();
+		for(int q = 0; q < qs.length; q++){
+			long rank = Math.max(1, (long) Math.ceil(qs[q] * total));
+			long seen = 0;
+			int i = 0;
+			while(i < BUCKETS - 1 && (seen += snapshot[i]) < rank)
+				i++;
+			values[q] = Math.min(highest(i), largest);
+		}
+		return values;
+	}
+
+	/**Forget everything recorded. Durations recorded meanwhile may be partly kept.*/
+	void reset(){
+		for(int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		sum.reset();
+		max.reset();
+	}
+}
@@ -0,0 +1,125 @@
+package ch.dajay42.rnn;
+
+/**A long short-term memory RNN, whose additive cell state lets gradients flow across many more steps
+ * than through the squashed state of a vanilla cell.
+ * <p>
+ * Per unit, with the input, forget and output gates i, f, o and the candidate g:
+ * <pre>
+ * c' = f .* c + i .* g
+ * h' = o .* tanh(c')
+ * </pre>
+ * The recurrent state is h followed by c, twice the hidden size.
+ * */
+@SuppressWarnings("WeakerAccess")
+public class LstmRnn extends GatedRnn {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int GATES = 4; // i, f, o, g
+	private static final int ACTIVATIONS = 5; // i, f, o, g, tanh(c')
+
+	public LstmRnn(int hiddensize, int paramsize) {
+		this(hiddensize, paramsize, true);
+	}
+
+	/**@param randomize whether to initialize the weights randomly, or leave them zero to be filled in*/
+	LstmRnn(int hiddensize, int paramsize, boolean randomize) {
+		super(hiddensize, paramsize, GATES, 2 * hiddensize, ACTIVATIONS * hiddensize, randomize);
+		if(randomize){
+			// start out remembering, so that gradients reach back from the first chunk on
+			for(int i = 0; i < h_size; i++)
+				bg[i * GATES + 1] = 1;
+		}
+	}
+
+	@Override
+	public int cellType(){
+		return Snapshot.CELL_LSTM;
+	}
+
+	@Override
+	public LstmRnn blank(){
+		LstmRnn blank = new LstmRnn(h_size, xy_size, false);
+		blank.setOptimizer(getOptimizer().type);
+		return blank;
+	}
+
+	/**All four gates of a unit in a single pass over its rows of Whg.
+	 * */
+	@Override
+	void forwardState(int x, double[] sPrev, double[] sOut, double[] act){
+		for(int i = 0; i < h_size; i++){
+			int r = i * GATES;
+			double ai = bg[r] + Wxg[r * xy_size + x];
+			double af = bg[r + 1] + Wxg[(r + 1) * xy_size + x];
+			double ao = bg[r + 2] + Wxg[(r + 2) * xy_size + x];
+			double ag = bg[r + 3] + Wxg[(r + 3) * xy_size + x];
+			int wi = r * h_size, wf = wi + h_size, wo = wf + h_size, wg = wo + h_size;
+			for(int j = 0; j < h_size; j++){
+				double hj = sPrev[j];
+				ai += Whg[wi + j] * hj;
+				af += Whg[wf + j] * hj;
+				ao += Whg[wo + j] * hj;
+				ag += Whg[wg + j] * hj;
+			}
+			double ig = sigmoid(ai), fg = sigmoid(af), og = sigmoid(ao), gg = Math.tanh(ag);
+			double c = fg * sPrev[h_size + i] + ig * gg;
+			double tc = Math.tanh(c);
+			sOut[i] = og * tc;
+			sOut[h_size + i] = c;
+			if(act != null){
+				int a = i * ACTIVATIONS;
+				act[a] = ig;
+				act[a + 1] = fg;
+				act[a + 2] = og;
+				act[a + 3] = gg;
+				act[a + 4] = tc;
+			}
+		}
+	}
+
+	@Override
+	void forwardStateBatch(int batch, int[] x, double[] sPrev, double[] sOut){
+		double[] acc = gateBuffer(GATES * batch);
+		for(int i = 0; i < h_size; i++){
+			int r = i * GATES;
+			for(int g = 0; g < GATES; g++){
+				int out = g * batch, in = (r + g) * xy_size, row = (r + g) * h_size;
+				for(int b = 0; b < batch; b++)
+					acc[out + b] = bg[r + g] + Wxg[in + x[b]];
+				for(int j = 0; j < h_size; j++){
+					double w = Whg[row + j];
+					int col = j * batch;
+					for(int b = 0; b < batch; b++)
+						acc[out + b] += w * sPrev[col + b];
+				}
+			}
+			int h = i * batch, c = (h_size + i) * batch;
+			for(int b = 0; b < batch; b++){
+				double ig = sigmoid(acc[b]), fg = sigmoid(acc[batch + b]);
+				double og = sigmoid(acc[2 * batch + b]), gg = Math.tanh(acc[3 * batch + b]);
+				double cell = fg * sPrev[c + b] + ig * gg;
+				sOut[h + b] = og * Math.tanh(cell);
+				sOut[c + b] = cell;
+			}
+		}
+	}
+
+	@Override
+	void backwardState(double[] ds, double[] sPrev, double[] act, double[] dgx, double[] dgh, double[] dsPrev){
+		for(int i = 0; i < h_size; i++){
+			int a = i * ACTIVATIONS, r = i * GATES;
+			double ig = act[a], fg = act[a + 1], og = act[a + 2], gg = act[a + 3], tc = act[a + 4];
+			double dh = ds[i];
+			double dc = ds[h_size + i] + dh * og * (1 - tc * tc);
+			dgx[r] = dc * gg * ig * (1 - ig);
+			dgx[r + 1] = dc * sPrev[h_size + i] * fg * (1 - fg);
+			dgx[r + 2] = dh * tc * og * (1 - og);
+			dgx[r + 3] = dc * ig * (1 - gg * gg);
+			dsPrev[i] = 0;
+			dsPrev[h_size + i] = dc * fg;
+		}
+		// every gate sees the same sum of input and recurrent contributions
+		System.arraycopy(dgx, 0, dgh, 0, dgx.length);
+	}
+}
@@ -0,0 +1,296 @@
+package ch.dajay42.rnn;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**Counters and latency distributions of learning and sampling, shared by the whole process.
+ * <p>
+ * The models time the forward pass, backward pass and weight update of every chunk they learn from, and
+ * count the symbols, while sessions time every symbol they draw. Recording is lock-free and costs a few
+ * calls to {@link System#nanoTime()} per chunk, or one per sampled symbol, so it is always on.
+ * <p>
+ * The metrics are read over JMX through {@link MetricsMXBean}, and as Prometheus text, which
+ * {@link #export} rewrites into a file periodically for a node exporter's textfile collector or any
+ * other scraper to pick up. Along with the own metrics, garbage collections and allocated bytes are
+ * read from the platform MXBeans whenever the metrics are.
+ * */
+final class Metrics implements MetricsMXBean {
+
+	static final String JMX_NAME = "ch.dajay42.rnn:type=Metrics";
+
+	/**forward pass of a learned chunk, until its loss is known*/
+	static final LatencyHistogram FORWARD = new LatencyHistogram();
+	/**backward pass of a learned chunk*/
+	static final LatencyHistogram BACKWARD = new LatencyHistogram();
+	/**weight update after a learned chunk*/
+	static final LatencyHistogram UPDATE = new LatencyHistogram();
+	/**drawing and feeding back one sampled symbol*/
+	static final LatencyHistogram STEP = new LatencyHistogram();
+	/**answering one request for samples, from priming the seed to writing the last byte*/
+	static final LatencyHistogram SAMPLE = new LatencyHistogram();
+	/**scoring a validation range once*/
+	static final LatencyHistogram EVALUATE = new LatencyHistogram();
+
+	private static final LongAdder learned = new LongAdder();
+	private static final LongAdder chunks = new LongAdder();
+	private static final LongAdder sampled = new LongAdder();
+	private static volatile double smoothedLoss = Double.NaN;
+	private static volatile double learningRate = Double.NaN;
+	private static volatile double validationBits = Double.NaN;
+
+	private static final Metrics INSTANCE = new Metrics();
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private Metrics(){}
+
+	/**Count a learned chunk of symbols.*/
+	static void learned(long symbols){
+		learned.add(symbols);
+		chunks.increment();
+	}
+
+	/**Count a sampled symbol.*/
+	static void sampled(){
+		sampled.increment();
+	}
+
+	/**Note the state of a model after an update.*/
+	static void observe(double smoothedLoss, double learningRate){
+		Metrics.smoothedLoss = smoothedLoss;
+		Metrics.learningRate = learningRate;
+	}
+
+	/**Note the bits per byte of the last evaluation of a validation range.*/
+	static void validated(double bits){
+		validationBits = bits;
+	}
+
+	static long learnedSymbols(){
+		return learned.sum();
+	}
+
+	/**Register the metrics with the platform MBean server, unless they already are.
+	 * @throws JMException if that fails
+	 * */
+	static void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(JMX_NAME);
+		if(!server.isRegistered(name))
+			server.registerMBean(INSTANCE, name);
+	}
+
+	/**@return the total time spent collecting garbage, in milliseconds*/
+	static long gcMillis(){
+		long millis = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			millis += Math.max(0, gc.getCollectionTime());
+		return millis;
+	}
+
+	static long gcCollections(){
+		long count = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	/**@return the bytes allocated by the threads still alive, or -1 where the JVM does not tell*/
+	static long allocatedBytes(){
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+		if(!allocation.isThreadAllocatedMemorySupported() || !allocation.isThreadAllocatedMemoryEnabled())
+			return -1;
+		long bytes = 0;
+		for(long allocated : allocation.getThreadAllocatedBytes(threads.getAllThreadIds()))
+			bytes += Math.max(0, allocated);
+		return bytes;
+	}
+
+	/**@return all metrics in the Prometheus text exposition format*/
+	static String prometheus(){
+		StringBuilder builder = new StringBuilder(4096);
+		counter(builder, "jayrnn_learned_symbols_total", "Symbols learned from.", learned.sum());
+		counter(builder, "jayrnn_learned_chunks_total", "Chunks learned from, each one update of the weights.", chunks.sum());
+		counter(builder, "jayrnn_sampled_symbols_total", "Symbols sampled.", sampled.sum());
+		gauge(builder, "jayrnn_loss_smoothed", "Smoothed loss per step of the most recently updated RNN.", smoothedLoss);
+		gauge(builder, "jayrnn_learning_rate", "Learning rate of the most recently updated RNN.", learningRate);
+		gauge(builder, "jayrnn_validation_bits_per_byte", "Cross-entropy of the validation text at the last evaluation.", validationBits);
+		summary(builder, "jayrnn_learn_forward_seconds", "Forward pass of a learned chunk.", FORWARD);
+		summary(builder, "jayrnn_learn_backward_seconds", "Backward pass of a learned chunk.", BACKWARD);
+		summary(builder, "jayrnn_learn_update_seconds", "Weight update after a learned chunk.", UPDATE);
+		summary(builder, "jayrnn_sample_step_seconds", "Drawing and feeding back one sampled symbol.", STEP);
+		summary(builder, "jayrnn_sample_request_seconds", "Answering one request for samples.", SAMPLE);
+		summary(builder, "jayrnn_evaluate_seconds", "Scoring the validation text once.", EVALUATE);
+		counter(builder, "jayrnn_gc_collections_total", "Garbage collections.", gcCollections());
+		counter(builder, "jayrnn_gc_pause_seconds_total", "Time spent collecting garbage.", gcMillis() / 1e3);
+		long allocated = allocatedBytes();
+		if(allocated >= 0)
+			gauge(builder, "jayrnn_allocated_bytes", "Bytes allocated by the threads still alive.", allocated);
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		gauge(builder, "jayrnn_heap_used_bytes", "Heap in use.", memory.getHeapMemoryUsage().getUsed());
+		return builder.toString();
+	}
+
+	/**Write the metrics to path, replacing it at once, so that a scraper never reads half a file.
+	 * */
+	static void write(Path path) throws IOException {
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.write(temporary, prometheus().getBytes(StandardCharsets.UTF_8));
+		try {
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**Rewrite path with the metrics every seconds seconds, on a daemon thread, until closed.
+	 * Failures are reported, but do not stop the exporting.
+	 * */
+	static AutoCloseable export(Path path, int seconds){
+		ScheduledExecutorService exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "rnn-metrics");
+			t.setDaemon(true);
+			return t;
+		});
+		exporter.scheduleWithFixedDelay(() -> {
+			try {
+				write(path);
+			} catch (IOException | RuntimeException e) {
+				System.err.print("Error: Could not export metrics due to ");
+				System.err.print(e.toString());
+				System.err.println();
+			}
+		}, 0, seconds, TimeUnit.SECONDS);
+		return exporter::shutdownNow;
+	}
+
+	private static void counter(StringBuilder builder, String name, String help, double value){
+		header(builder, name, help, "counter");
+		builder.append(name).append(' ').append(format(value)).append('\n');
+	}
+
+	private static void gauge(StringBuilder builder, String name, String help, double value){
+		header(builder, name, help, "gauge");
+		builder.append(name).append(' ').append(format(value)).append('\n');
+	}
+
+	private static void summary(StringBuilder builder, String name, String help, LatencyHistogram histogram){
+		header(builder, name, help, "summary");
+		long[] values = histogram.quantiles(QUANTILES);
+		for(int q = 0; q < QUANTILES.length; q++)
+			builder.append(name).append("{quantile=\"").append(QUANTILES[q]).append("\"} ").append(format(values[q] / 1e9)).append('\n');
+		builder.append(name).append("_sum ").append(format(histogram.sum() / 1e9)).append('\n');
+		builder.append(name).append("_count ").append(histogram.count()).append('\n');
+	}
+
+	private static void header(StringBuilder builder, String name, String help, String type){
+		builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static String format(double value){
+		if(Double.isNaN(value))
+			return "NaN";
+		if(value == (long) value)
+			return Long.toString((long) value);
+		return String.format(Locale.ROOT, "%.9g", value);
+	}
+
+	@Override
+	public long getLearnedSymbols(){
+		return learned.sum();
+	}
+
+	@Override
+	public long getLearnedChunks(){
+		return chunks.sum();
+	}
+
+	@Override
+	public long getSampledSymbols(){
+		return sampled.sum();
+	}
+
+	@Override
+	public double getSmoothedLoss(){
+		return smoothedLoss;
+	}
+
+	@Override
+	public double getValidationBits(){
+		return validationBits;
+	}
+
+	@Override
+	public double getLearningRate(){
+		return learningRate;
+	}
+
+	@Override
+	public long getGcCollections(){
+		return gcCollections();
+	}
+
+	@Override
+	public long getGcMillis(){
+		return gcMillis();
+	}
+
+	@Override
+	public long getAllocatedBytes(){
+		return allocatedBytes();
+	}
+
+	@Override
+	public Map<String, Double> getLatencyMicros(){
+		Map<String, Double> latencies = new LinkedHashMap<>();
+		latency(latencies, "forward", FORWARD);
+		latency(latencies, "backward", BACKWARD);
+		latency(latencies, "update", UPDATE);
+		latency(latencies, "step", STEP);
+		latency(latencies, "sample", SAMPLE);
+		latency(latencies, "evaluate", EVALUATE);
+		return latencies;
+	}
+
+	private static void latency(Map<String, Double> latencies, String phase, LatencyHistogram histogram){
+		long[] values = histogram.quantiles(0.5, 0.99);
+		latencies.put(phase + ".p50", values[0] / 1e3);
+		latencies.put(phase + ".p99", values[1] / 1e3);
+		latencies.put(phase + ".max", histogram.max() / 1e3);
+	}
+
+	@Override
+	public void reset(){
+		learned.reset();
+		chunks.reset();
+		sampled.reset();
+		FORWARD.reset();
+		BACKWARD.reset();
+		UPDATE.reset();
+		STEP.reset();
+		SAMPLE.reset();
+		EVALUATE.reset();
+	}
+}
@@ -0,0 +1,43 @@
+package ch.dajay42.rnn;
+
+import java.util.Map;
+
+/**The {@link Metrics} of the process as seen over JMX, under the name {@value Metrics#JMX_NAME}.
+ * */
+public interface MetricsMXBean {
+
+	/**@return the number of symbols learned from*/
+	long getLearnedSymbols();
+
+	/**@return the number of chunks learned from, each one update of the weights*/
+	long getLearnedChunks();
+
+	/**@return the number of symbols sampled*/
+	long getSampledSymbols();
+
+	/**@return the loss per step, smoothed over the last chunks, of the most recently updated RNN*/
+	double getSmoothedLoss();
+
+	/**@return the bits per byte of the validation text at the last evaluation*/
+	double getValidationBits();
+
+	/**@return the learning rate of the most recently updated RNN*/
+	double getLearningRate();
+
+	/**@return the number of garbage collections so far*/
+	long getGcCollections();
+
+	/**@return the total time spent collecting garbage so far*/
+	long getGcMillis();
+
+	/**@return the bytes allocated so far by the threads still alive*/
+	long getAllocatedBytes();
+
+	/**@return the median, 99th percentile and largest duration in microseconds of every timed phase,
+	 * keyed by phase and statistic, like "forward.p50"
+	 * */
+	Map<String, Double> getLatencyMicros();
+
+	/**Forget all counts and durations recorded so far.*/
+	void reset();
+}
@@ -2,6 +2,7 @@ package ch.dajay42.rnn;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.*;
@@ -18,6 +19,8 @@ public class MinimalRnn implements Rnn, Serializable {
 	
 	private Matrix h; //hidden state
 	
+	private transient BpttWorkspace workspace; //reused by learn
+	
 	//model parameters
 	final Matrix Whh; //hidden to hidden
 	final Matrix Wxh; //input to hidden
@@ -93,113 +96,180 @@ public class MinimalRnn implements Rnn, Serializable {
 		return Why.multiplySimple(h).inplaceSum(by);
 	}
 
+	@Override
+	public Matrix step(int symbol) {
+		//update the hidden state
+		//h = tanh(Wxh[:,symbol] + Whh*h + bh)
+		h = Whh.multiplySimple(h).inplaceSum(bh);
+		gatherColumn(Wxh, symbol, h);
+		h.inplaceElementWise(Math::tanh);
+		//compute the output vector
+		//y = Why*h + by
+		return Why.multiplySimple(h).inplaceSum(by);
+	}
+
+	/**target += m[:,column], i.e. m*x for the one-hot x selecting column*/
+	static void gatherColumn(Matrix m, int column, Matrix target){
+		for(int i = 0; i < target.rows; i++)
+			target.modValueAt(i, m.getValueAt(i, column));
+	}
+
 	@Override
 	public Matrix[] learn(Matrix[] in, Matrix[] expectedOut, Matrix h_in) {
 		if(in.length != expectedOut.length){
 			throw new IllegalArgumentException("Array dimensions must agree!");
 		}
 		
-		//TODO: learning rate
-		
+		int[] inIndex = new int[in.length];
+		int[] expectedIndex = new int[expectedOut.length];
+		for(int t = 0; t < in.length; t++){
+			inIndex[t] = RnnEncDec.indexOf(in[t]);
+			expectedIndex[t] = RnnEncDec.indexOf(expectedOut[t]);
+		}
+		return learn(inIndex, expectedIndex, h_in);
+	}
+
+	@Override
+	public Matrix[] learn(int[] in, int[] expectedIndex, Matrix h_in) {
+		if(in.length != expectedIndex.length){
+			throw new IllegalArgumentException("Array dimensions must agree!");
+		}
 		
 		//loss function
 		int inputs = in.length;
 		
-		int[] expectedIndex = new int[inputs];
-		for(int t = 0; t < inputs; t++)
-			expectedIndex[t] = RnnEncDec.indexOf(expectedOut[t]);
+		BpttWorkspace ws = workspace;
+		if(ws == null || !ws.fits(h_size, xy_size, inputs)){
+			ws = new BpttWorkspace(h_size, xy_size, inputs);
+			workspace = ws;
+		}
+		ws.clearGradients();
 		
-		// drop-out matrices
+		// drop-out mask
 		boolean doDropout = dropout > 0;
 		double p = 1-dropout; //chance of being 1
-		Matrix pWhy = Why;
+		double[] mask = ws.whyMask;
 		
 		if(doDropout){
-			pWhy = Why.elementWise(Util::multiplication, Matrix.bernoulliLike(Why, p));
+			ws.drawDropout(p);
 		}
 		
-		Matrix[] xs = new Matrix[inputs],
-				 hs = new Matrix[inputs],
-				 ys = new Matrix[inputs],
-				 ps = new Matrix[inputs];
+		double[][] hs = ws.hs,
+				   ps = ws.ps;
+		Matrix[] ys = ws.outputs;
 		
-		h = h_in;
-		hs[0] = h;
+		for(int i = 0; i < h_size; i++)
+			hs[0][i] = h_in.getValueAt(i);
 		double loss = 0;
 		
-		
+		long start = System.nanoTime();
 		// forward pass
 		for(int t = 1; t < inputs; t++){
-			xs[t] = in[t-1];
+			int x = in[t-1];
+			double[] hPrev = hs[t-1], hT = hs[t], pT = ps[t];
 			
 			//hs[t] = tanh(Wxh*xs[t] + Whh*hs[t-1] + bh)
-		    hs[t] = Whh.multiplySimple(hs[t-1]).inplaceSum(Wxh.multiplySimple(xs[t])).inplaceSum(bh);
-		    hs[t].inplaceElementWise(Math::tanh);
-		    
-		    //ys[t] = Why*hs[t] + by
-		    ys[t] = pWhy.multiplySimple(hs[t]);
-		    if(doDropout) ys[t].scalarOp(Util::division, p);
-		    ys[t].inplaceSum(by); // unnormalized log probabilities for next chars
-		    
-		    //ps[t] = exp(ys[t]) / sum(exp(ys[t]))
-		    Matrix expYsT = ys[t].elementWise(Math::exp);
-		    ps[t] = expYsT.scalarOp(Util::division, expYsT.aggregateOp(Util::sum)); // probabilities for next chars
-		    
-		    // loss += -log(ps[t].value[indexOf(expectedOut[t])][0])
-		    loss += -Math.log(ps[t].getValueAt(expectedIndex[t])); // softmax (cross-entropy loss)
+			for(int i = 0; i < h_size; i++){
+				double a = bh.getValueAt(i) + Wxh.getValueAt(i, x);
+				for(int j = 0; j < h_size; j++)
+					a += Whh.getValueAt(i, j) * hPrev[j];
+				hT[i] = Math.tanh(a);
+			}
+			
+			//ys[t] = Why*hs[t] + by
+			//ps[t] = exp(ys[t]) / sum(exp(ys[t]))
+			double max = Double.NEGATIVE_INFINITY;
+			for(int k = 0; k < xy_size; k++){
+				double y = 0;
+				if(doDropout){
+					for(int j = 0; j < h_size; j++)
+						y += Why.getValueAt(k, j) * mask[k*h_size + j] * hT[j];
+					y /= p;
+				}else{
+					for(int j = 0; j < h_size; j++)
+						y += Why.getValueAt(k, j) * hT[j];
+				}
+				y += by.getValueAt(k); // unnormalized log probabilities for next chars
+				ys[t].setValueAt(k, y);
+				pT[k] = y;
+				if(y > max) max = y;
+			}
+			// subtracting the maximum leaves the softmax unchanged but keeps exp from overflowing
+			double sum = 0;
+			for(int k = 0; k < xy_size; k++){
+				pT[k] = Math.exp(pT[k] - max);
+				sum += pT[k];
+			}
+			for(int k = 0; k < xy_size; k++)
+				pT[k] /= sum; // probabilities for next chars
+			
+			// loss += -log(ps[t].value[indexOf(expectedOut[t])][0]), as log(sum) + max - ys[t][expected]
+			loss += Math.log(sum) + max - ys[t].getValueAt(expectedIndex[t]); // softmax (cross-entropy loss)
 		}
 
+		long mark = Metrics.FORWARD.since(start);
 		// backward pass: compute gradients going backwards
-		Matrix dWxh = Matrix.zeroesLike(Wxh), 
-				dWhh = Matrix.zeroesLike(Whh), 
-				dWhy = Matrix.zeroesLike(Why),
-				dbh = Matrix.zeroesLike(bh),
-				dby = Matrix.zeroesLike(by),
-				dhnext = Matrix.zeroesLike(h),
-				dy,
-				dh,
-				dhraw;
+		double[] dWxh = ws.dWxh,
+				 dWhh = ws.dWhh,
+				 dWhy = ws.dWhy,
+				 dbh = ws.dbh,
+				 dby = ws.dby,
+				 dhnext = ws.dhnext,
+				 dy = ws.dy,
+				 dh = ws.dh;
 		
 		for(int t = inputs-1; t > 0; t--){ //reverse iteration
-			//dy = copyOf(ps[t])
-			dy = ps[t].clone();
-			
-			dy.modValueAt(expectedIndex[t],  -1.0); // backprop into y. see http://cs231n.github.io/neural-networks-case-study/#grad if confused here
+			double[] hT = hs[t], hPrev = hs[t-1];
+			int x = in[t-1];
 			
-			//dWhy += dy*(hs[t]^T)
-			dWhy.inplaceSum(dy.multiplySimple(hs[t].transpose()));
-			
-			//dby += dy
-			dby.inplaceSum(dy);
+			//dy = copyOf(ps[t])
+			System.arraycopy(ps[t], 0, dy, 0, xy_size);
+			dy[expectedIndex[t]] -= 1.0; // backprop into y. see http://cs231n.github.io/neural-networks-case-study/#grad if confused here
 			
 			//dh = (Why^T)*dy + dhnext
-			dh = (pWhy.transpose().multiplySimple(dy)).inplaceSum(dhnext); // backprop into h
+			System.arraycopy(dhnext, 0, dh, 0, h_size);
+			for(int k = 0; k < xy_size; k++){
+				double d = dy[k];
+				//dby += dy
+				dby[k] += d;
+				int row = k*h_size;
+				for(int j = 0; j < h_size; j++){
+					//dWhy += dy*(hs[t]^T)
+					dWhy[row + j] += d * hT[j];
+					double w = Why.getValueAt(k, j);
+					dh[j] += (doDropout ? w * mask[row + j] : w) * d; // backprop into h
+				}
+			}
 			
 			//dhraw = (1 - hs[t].^2) .* dh //mind the operator precedence
-			dhraw = (hs[t].scalarOp(Math::pow, 2)).inplaceElementWise(a -> 1 - a).inplaceElementWise(Util::multiplication, dh); // backprop through tanh nonlinearity
-			
-			//dbh += dhraw
-			dbh.inplaceSum(dhraw);
+			for(int i = 0; i < h_size; i++)
+				dh[i] *= 1 - hT[i] * hT[i]; // backprop through tanh nonlinearity, dh now holds dhraw
 			
-			//dWxh += dhraw*(xs[t]^T)
-			dWxh.inplaceSum(dhraw.multiplySimple(xs[t].transpose()));
-			
-			//dWhh += dhraw*(hs[t-1]^T)
-			dWhh.inplaceSum(dhraw.multiplySimple(hs[t-1].transpose()));
-			
-			//dhnext = (Whh^T)*dhraw
-			dhnext = Whh.transpose().multiplySimple(dhraw);
+			Arrays.fill(dhnext, 0d);
+			for(int i = 0; i < h_size; i++){
+				double d = dh[i];
+				//dbh += dhraw
+				dbh[i] += d;
+				//dWxh += dhraw*(xs[t]^T)
+				dWxh[i*xy_size + x] += d;
+				int row = i*h_size;
+				for(int j = 0; j < h_size; j++){
+					//dWhh += dhraw*(hs[t-1]^T)
+					dWhh[row + j] += d * hPrev[j];
+					//dhnext = (Whh^T)*dhraw
+					dhnext[j] += Whh.getValueAt(i, j) * d;
+				}
+			}
 		}
-		 
-		// clip to mitigate exploding gradients
-		dWxh.inplaceElementWise(clip); 
-		dWhh.inplaceElementWise(clip);
-		dWhy.inplaceElementWise(clip); 
-		dbh.inplaceElementWise(clip);
-		dby.inplaceElementWise(clip);
+		
+		mark = Metrics.BACKWARD.since(mark);
+		
+		//carry the hidden state past all but the last input
+		for(int i = 0; i < h_size; i++)
+			h.setValueAt(i, hs[inputs-1][i]);
 		
 		//update loss + learning rate
-		loss /= inputs;
+		loss /= inputs - 1;
 		//*
 		if(loss > last_loss)
 			learning_rate *= 0.9998;
@@ -212,66 +282,83 @@ public class MinimalRnn implements Rnn, Serializable {
 		smooth_loss = smooth_loss * 0.9 + loss * 0.1;
 		
 		
-		// perform parameter update with Adagrad
-		mWxh.inplaceElementWise(Adagrad1, dWxh);
-		Wxh.inplaceElementWise(Adagrad2, dWxh, mWxh);
-		
-		mWhh.inplaceElementWise(Adagrad1, dWhh);
-		Whh.inplaceElementWise(Adagrad2, dWhh, mWhh);
-		
-		mWhy.inplaceElementWise(Adagrad1, dWhy);
-		Why.inplaceElementWise(Adagrad2, dWhy, mWhy);
-		
-		mbh.inplaceElementWise(Adagrad1, dbh);
-		bh.inplaceElementWise(Adagrad2, dbh, mbh);
-		
-		mby.inplaceElementWise(Adagrad1, dby);
-		by.inplaceElementWise(Adagrad2, dby, mby);
+		// clip to mitigate exploding gradients, then perform parameter update with Adagrad
+		adagrad(Wxh, mWxh, dWxh, xy_size);
+		adagrad(Whh, mWhh, dWhh, h_size);
+		adagrad(Why, mWhy, dWhy, h_size);
+		adagrad(bh, mbh, dbh, 1);
+		adagrad(by, mby, dby, 1);
 		//
+		Metrics.observe(smooth_loss, learning_rate);
+		Metrics.UPDATE.since(mark);
 		
-		learnedSteps += inputs;
-		//return predicted values for live sampling
+		learnedSteps += inputs - 1;
+		Metrics.learned(inputs - 1);
+		//return predicted values for live sampling, owned by the workspace until the next call
 		return ys;
 	}
 
+	/**Clip the gradient and apply one Adagrad step to a parameter, in place.
+	 * @param param the parameter matrix
+	 * @param mem its Adagrad memory
+	 * @param dparam the row-major gradient
+	 * @param cols number of columns of param
+	 * */
+	private void adagrad(Matrix param, Matrix mem, double[] dparam, int cols){
+		int rows = dparam.length / cols;
+		for(int i = 0; i < rows; i++){
+			for(int j = 0; j < cols; j++){
+				double d = clip.applyAsDouble(dparam[i*cols + j]);
+				double m = Adagrad1.applyAsDouble(mem.getValueAt(i, j), d);
+				mem.setValueAt(i, j, m);
+				param.setValueAt(i, j, Adagrad2.applyAsDouble(param.getValueAt(i, j), d, m));
+			}
+		}
+	}
+
 	@Override
 	public List<Matrix> sample(Matrix h, Matrix[] seed, int n) {
 		this.h = h;
 		ArrayList<Matrix> ret = new ArrayList<>();
 		for(int i = 0; i < seed.length-1; i++){
-			step(seed[i]);
+			step(RnnEncDec.indexOf(seed[i]));
 			ret.add(seed[i]);
 		}
 
 		Matrix r = seed[seed.length-1];
 		ret.add(r);
+		int symbol = RnnEncDec.indexOf(r);
 		
 		for(int i = 0; i < n; i++){
-			r = step(r);
-			r = softmax(r);
+			symbol = softmax(step(symbol));
+			r = Matrix.zeroesLike(r, true);
+			r.setValueAt(symbol, 1.0);
 			ret.add(r);
 		}
 		return ret;
 	}
 	
-	Matrix softmax(Matrix vector){
-		//x = beta * vector //temperature-adjusted probabilities
-		//v = exp(x) / sum(exp(x))
-		Matrix p = vector.scalarOp(Util::multiplication, beta).inplaceElementWise(Math::exp); //beware of overflows
-		double scalar = p.aggregateOp(Util::sum);
-		double[] v = p.scalarOp(Util::division, scalar).getValuesInColumn(0);
-		int index = 0;
-		double selection = ThreadLocalRandom.current().nextDouble();
-		for(int i = 0; i < v.length; i++){
-			selection -= v[i];
-			if(selection < 0){
-				index = i;
-				break;
-			}
+	/**The forward pass of {@link #step(int)}, on hidden states held by the caller.*/
+	@Override
+	public void forward(int symbol, double[] hPrev, double[] hOut, double[] yOut){
+		for(int i = 0; i < h_size; i++){
+			double a = bh.getValueAt(i) + Wxh.getValueAt(i, symbol);
+			for(int j = 0; j < h_size; j++)
+				a += Whh.getValueAt(i, j) * hPrev[j];
+			hOut[i] = Math.tanh(a);
 		}
-		Matrix x = Matrix.zeroesLike(vector, true);
-		x.setValueAt(index, 1.0);
-		return x;
+		for(int k = 0; k < xy_size; k++){
+			double a = by.getValueAt(k);
+			for(int j = 0; j < h_size; j++)
+				a += Why.getValueAt(k, j) * hOut[j];
+			yOut[k] = a;
+		}
+	}
+
+	/**@return the index of a symbol drawn from the temperature-adjusted distribution*/
+	int softmax(Matrix vector){
+		double[] v = vector.getValuesInColumn(0);
+		return Sampler.sample(v, v.length, beta, ThreadLocalRandom.current().nextDouble());
 	}
 
 	@Override
@@ -279,6 +366,11 @@ public class MinimalRnn implements Rnn, Serializable {
 		return h_size;
 	}
 
+	@Override
+	public int getVocabSize() {
+		return xy_size;
+	}
+
 	@Override
 	public double getLastLoss() {
 		return smooth_loss;
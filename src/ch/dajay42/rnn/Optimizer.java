@@ -0,0 +1,335 @@
+package ch.dajay42.rnn;
+
+import java.io.Serializable;
+
+/**Applies gradients to the flat double parameters of a model. Every optimizer makes one fused pass per
+ * parameter that clips the gradient, updates its state and steps the parameter, without temporaries.
+ * <p>
+ * The state is {@link #slots()} arrays per parameter, each laid out like its parameter, all arrays of the
+ * first slot coming first. For Adagrad this is exactly the memories models kept before optimizers were
+ * pluggable, so old snapshots load unchanged.
+ * <p>
+ * The learning rate of the model is the base rate; a schedule shapes the rate of each update from it and
+ * the number of updates made so far.
+ * */
+abstract class Optimizer implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int ADAGRAD = 0;
+	static final int RMSPROP = 1;
+	static final int ADAM = 2;
+	static final int MOMENTUM = 3;
+	/**names of the optimizers in settings, indexed by type*/
+	private static final String[] KEYS = {"adagrad", "rmsprop", "adam", "momentum"};
+	/**base rates each optimizer learns well from, indexed by type; the others take far smaller steps than Adagrad*/
+	private static final double[] DEFAULT_RATES = {0.1, 0.002, 0.002, 0.003};
+
+	/**nudge the base rate down by 0.02% after every update whose loss rose, and up by 0.01% otherwise*/
+	static final int SCHEDULE_ADAPTIVE = 0;
+	/**use the base rate as it is*/
+	static final int SCHEDULE_CONSTANT = 1;
+	/**halve the rate every half-life updates*/
+	static final int SCHEDULE_EXPONENTIAL = 2;
+	/**follow half a cosine from the base rate down to zero over the half-life, then restart*/
+	static final int SCHEDULE_COSINE = 3;
+	/**names of the schedules in settings, indexed by schedule*/
+	private static final String[] SCHEDULE_KEYS = {"adaptive", "constant", "exponential", "cosine"};
+
+	static final double gradient_limit = 5.0d;
+	static final double epsilon = 1e-8;
+
+	final int type;
+	final double[][] state;
+	private long updates = 0;
+
+	private int schedule = SCHEDULE_ADAPTIVE;
+	private int warmup = 0;
+	private int halfLife = 0;
+
+	private Optimizer(int type, double[][] parameters, int slots){
+		this.type = type;
+		state = new double[parameters.length * slots][];
+		for(int s = 0; s < slots; s++)
+			for(int i = 0; i < parameters.length; i++)
+				state[s * parameters.length + i] = new double[parameters[i].length];
+	}
+
+	/**@param type one of the optimizer constants
+	 * @param parameters the parameters to be optimized, in the order gradients will be passed
+	 * */
+	static Optimizer create(int type, double[][] parameters){
+		switch(type){
+			case ADAGRAD:
+				return new Adagrad(parameters);
+			case RMSPROP:
+				return new RmsProp(parameters);
+			case ADAM:
+				return new Adam(parameters);
+			case MOMENTUM:
+				return new Momentum(parameters);
+			default:
+				throw new IllegalArgumentException("Unknown optimizer " + type);
+		}
+	}
+
+	static String name(int type){
+		switch(type){
+			case ADAGRAD: return "Adagrad";
+			case RMSPROP: return "RMSProp";
+			case ADAM: return "Adam";
+			case MOMENTUM: return "momentum SGD";
+			default: return "optimizer " + type;
+		}
+	}
+
+	/**@return the name of an optimizer in settings*/
+	static String key(int type){
+		return KEYS[type];
+	}
+
+	/**@param key the name of an optimizer in settings, or its number
+	 * @return the optimizer constant
+	 * */
+	static int type(String key){
+		return lookup(KEYS, key, "optimizer");
+	}
+
+	/**@return the base rate the given optimizer learns well from*/
+	static double defaultRate(int type){
+		return DEFAULT_RATES[type];
+	}
+
+	/**@return the name of a schedule in settings*/
+	static String scheduleKey(int schedule){
+		return SCHEDULE_KEYS[schedule];
+	}
+
+	/**@param key the name of a schedule in settings, or its number
+	 * @return the schedule constant
+	 * */
+	static int schedule(String key){
+		return lookup(SCHEDULE_KEYS, key, "schedule");
+	}
+
+	private static int lookup(String[] keys, String key, String what){
+		String k = key.trim();
+		for(int i = 0; i < keys.length; i++){
+			// numbers were the only way to name them once, and may still be in saved settings
+			if(keys[i].equalsIgnoreCase(k) || Integer.toString(i).equals(k))
+				return i;
+		}
+		throw new IllegalArgumentException("Unknown " + what + " " + key + ", expected one of " + String.join(", ", keys));
+	}
+
+	/**@return the number of state arrays per parameter*/
+	abstract int slots();
+
+	/**Clip the gradient of parameter i, update its state and step it, in one pass.
+	 * @param rate learning rate of this update
+	 * @param t number of this update, starting at 1
+	 * */
+	abstract void apply(int i, double[] param, double[] grad, double rate, long t);
+
+	/**@return the optimizer state, for snapshots*/
+	double[][] state(){
+		return state;
+	}
+
+	long getUpdates(){
+		return updates;
+	}
+
+	void setUpdates(long updates){
+		this.updates = updates;
+	}
+
+	/**@param schedule one of the schedule constants
+	 * @param warmup number of updates over which the rate ramps up linearly from zero, or 0
+	 * @param halfLife number of updates the exponential and cosine schedules are measured in
+	 * */
+	void setSchedule(int schedule, int warmup, int halfLife){
+		if(schedule < SCHEDULE_ADAPTIVE || schedule > SCHEDULE_COSINE)
+			throw new IllegalArgumentException("Unknown schedule " + schedule);
+		this.schedule = schedule;
+		this.warmup = Math.max(0, warmup);
+		this.halfLife = Math.max(1, halfLife);
+	}
+
+	/**Copy the update count and schedule into another optimizer; the state is copied with the memories.
+	 * */
+	void copyTo(Optimizer target){
+		target.updates = updates;
+		target.schedule = schedule;
+		target.warmup = warmup;
+		target.halfLife = halfLife;
+	}
+
+	/**@return the base rate to keep after an update with the given loss*/
+	double adapt(double learningRate, double loss, double lastLoss){
+		if(schedule != SCHEDULE_ADAPTIVE)
+			return learningRate;
+		return adaptive(learningRate, loss, lastLoss);
+	}
+
+	/**@return the base rate to keep after an update with the given loss, on the {@link #SCHEDULE_ADAPTIVE adaptive} schedule*/
+	static double adaptive(double learningRate, double loss, double lastLoss){
+		if(loss > lastLoss)
+			learningRate *= 0.9998;
+		else
+			learningRate *= 1.0001;
+		return Math.max(learningRate, 1e-32);
+	}
+
+	/**@return the rate of the next update, given the base rate*/
+	double rate(double learningRate){
+		long t = updates;
+		double rate = learningRate;
+		if(warmup > 0 && t < warmup)
+			rate *= (t + 1) / (double) warmup;
+		switch(schedule){
+			case SCHEDULE_EXPONENTIAL:
+				rate *= Math.pow(0.5, t / (double) halfLife);
+				break;
+			case SCHEDULE_COSINE:
+				rate *= 0.5 * (1 + Math.cos(Math.PI * (t % halfLife) / halfLife));
+				break;
+			default:
+		}
+		return rate;
+	}
+
+	/**Apply one update to all parameters. Several threads may update at once: each update gets its own
+	 * number, while the parameters and the state are written without locking.
+	 * @param gradients the gradients, in the order of the parameters
+	 * @param learningRate the base rate
+	 * */
+	void update(double[][] parameters, double[][] gradients, double learningRate){
+		double rate;
+		long t;
+		synchronized(this){
+			rate = rate(learningRate);
+			t = ++updates;
+		}
+		for(int i = 0; i < parameters.length; i++)
+			apply(i, parameters[i], gradients[i], rate, t);
+	}
+
+	static double clip(double d){
+		return d > gradient_limit ? gradient_limit : (d < -gradient_limit ? -gradient_limit : d);
+	}
+
+	/**Per-entry rates shrinking with the sum of all squared gradients seen; the historic default.
+	 * */
+	private static final class Adagrad extends Optimizer {
+		private static final long serialVersionUID = 1L;
+
+		Adagrad(double[][] parameters){
+			super(ADAGRAD, parameters, 1);
+		}
+
+		@Override
+		int slots(){
+			return 1;
+		}
+
+		@Override
+		void apply(int i, double[] param, double[] grad, double rate, long t){
+			double[] mem = state[i];
+			for(int k = 0; k < param.length; k++){
+				double d = clip(grad[k]);
+				double m = mem[k] + d * d;
+				mem[k] = m;
+				param[k] -= rate * d / Math.sqrt(m + epsilon);
+			}
+		}
+	}
+
+	/**Like Adagrad, but with a decaying average of the squared gradients, so the rates never stall.
+	 * */
+	private static final class RmsProp extends Optimizer {
+		private static final long serialVersionUID = 1L;
+		private static final double decay = 0.9;
+
+		RmsProp(double[][] parameters){
+			super(RMSPROP, parameters, 1);
+		}
+
+		@Override
+		int slots(){
+			return 1;
+		}
+
+		@Override
+		void apply(int i, double[] param, double[] grad, double rate, long t){
+			double[] mem = state[i];
+			for(int k = 0; k < param.length; k++){
+				double d = clip(grad[k]);
+				double m = decay * mem[k] + (1 - decay) * d * d;
+				mem[k] = m;
+				param[k] -= rate * d / Math.sqrt(m + epsilon);
+			}
+		}
+	}
+
+	/**Decaying averages of both the gradients and their squares, corrected for their initial bias towards zero.
+	 * */
+	private static final class Adam extends Optimizer {
+		private static final long serialVersionUID = 1L;
+		private static final double beta1 = 0.9;
+		private static final double beta2 = 0.999;
+
+		private final int count;
+
+		Adam(double[][] parameters){
+			super(ADAM, parameters, 2);
+			count = parameters.length;
+		}
+
+		@Override
+		int slots(){
+			return 2;
+		}
+
+		@Override
+		void apply(int i, double[] param, double[] grad, double rate, long t){
+			double[] mean = state[i], square = state[count + i];
+			// fold both bias corrections into the rate
+			double corrected = rate * Math.sqrt(1 - Math.pow(beta2, t)) / (1 - Math.pow(beta1, t));
+			for(int k = 0; k < param.length; k++){
+				double d = clip(grad[k]);
+				double m = beta1 * mean[k] + (1 - beta1) * d;
+				double v = beta2 * square[k] + (1 - beta2) * d * d;
+				mean[k] = m;
+				square[k] = v;
+				param[k] -= corrected * m / (Math.sqrt(v) + epsilon);
+			}
+		}
+	}
+
+	/**Plain gradient descent along a decaying sum of the past gradients.
+	 * */
+	private static final class Momentum extends Optimizer {
+		private static final long serialVersionUID = 1L;
+		private static final double momentum = 0.9;
+
+		Momentum(double[][] parameters){
+			super(MOMENTUM, parameters, 1);
+		}
+
+		@Override
+		int slots(){
+			return 1;
+		}
+
+		@Override
+		void apply(int i, double[] param, double[] grad, double rate, long t){
+			double[] velocity = state[i];
+			for(int k = 0; k < param.length; k++){
+				double v = momentum * velocity[k] + clip(grad[k]);
+				velocity[k] = v;
+				param[k] -= rate * v;
+			}
+		}
+	}
+}
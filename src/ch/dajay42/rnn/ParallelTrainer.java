@@ -0,0 +1,155 @@
+package ch.dajay42.rnn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.LongToIntFunction;
+
+/**Data-parallel training of a {@link FusedRnn}.
+ * <p>
+ * Each worker runs backpropagation through time on its own stretch of the text, with its own
+ * hidden state carried from chunk to chunk. Consecutive chunks of a worker share one symbol, so that every
+ * step of its stretch is learned. The workers start evenly spaced across the text.
+ * <p>
+ * In synchronous mode all workers compute their gradients against the same weights, the gradients
+ * are averaged and applied as one update. In Hogwild mode every worker applies its own
+ * gradients to the shared parameters as soon as it has them, without any locking. The learned steps,
+ * loss and learning rate are still accounted once per round, so no count is lost to a race.
+ * */
+final class ParallelTrainer implements AutoCloseable {
+
+	private final FusedRnn rnn;
+	private final int threads;
+	private final int chunkSize;
+	private final boolean hogwild;
+
+	private final LongToIntFunction symbolAt;
+	private final long textLength;
+
+	private final ExecutorService pool;
+	private final List<Callable<Double>> chunkTasks = new ArrayList<>();
+	private final List<Callable<Object>> reduceTasks = new ArrayList<>();
+
+	private final BpttWorkspace[] workspaces;
+	private final double[][] hidden;
+	private final int[][] in;
+	private final long[] offsets;
+
+	/**@param symbolAt maps a position in the text to the index of its symbol
+	 * @param textLength number of symbols in the text
+	 * @param offset position of the first worker
+	 * */
+	ParallelTrainer(FusedRnn rnn, int threads, int chunkSize, boolean hogwild,
+			LongToIntFunction symbolAt, long textLength, long offset){
+		if(threads < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		this.rnn = rnn;
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+		this.hogwild = hogwild;
+		this.symbolAt = symbolAt;
+		this.textLength = textLength;
+
+		pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "rnn-trainer");
+			t.setDaemon(true);
+			return t;
+		});
+
+		workspaces = new BpttWorkspace[threads];
+		hidden = new double[threads][rnn.h_size];
+		in = new int[threads][chunkSize];
+		offsets = new long[threads];
+		for(int w = 0; w < threads; w++){
+			workspaces[w] = new BpttWorkspace(rnn.h_size, rnn.xy_size, chunkSize);
+			offsets[w] = (offset + w * (textLength / threads)) % textLength;
+			int worker = w;
+			chunkTasks.add(() -> chunk(worker));
+			reduceTasks.add(Executors.callable(() -> reduce(worker)));
+		}
+	}
+
+	/**Let every worker train on its next chunk. The learned steps, loss and learning rate of the model are
+	 * only updated here, on the calling thread, once all workers are done, even in Hogwild mode.
+	 * @return the mean loss per step over all workers
+	 * */
+	double round() throws InterruptedException {
+		double loss = 0;
+		for(Future<Double> f : pool.invokeAll(chunkTasks))
+			loss += get(f);
+		loss /= (double) threads * (chunkSize - 1);
+
+		if(hogwild){
+			rnn.adapt(loss);
+		}else{
+			pool.invokeAll(reduceTasks);
+			rnn.update(workspaces[0].gradients, loss);
+		}
+		rnn.learnedSteps += (long) threads * (chunkSize - 1);
+		Metrics.learned((long) threads * (chunkSize - 1));
+		return loss;
+	}
+
+	/**Position of the first worker in the text.
+	 * */
+	long getOffset(){
+		return offsets[0];
+	}
+
+	private double chunk(int worker){
+		BpttWorkspace ws = workspaces[worker];
+		int[] chunk = in[worker];
+		double[] h = hidden[worker];
+		long offset = offsets[worker];
+		for(int j = 0; j < chunkSize; j++)
+			chunk[j] = symbolAt.applyAsInt((offset + j) % textLength);
+		// the last symbol starts the next chunk
+		offsets[worker] = (offset + chunkSize - 1) % textLength;
+
+		System.arraycopy(h, 0, ws.hs[0], 0, rnn.h_size);
+		double loss = rnn.backprop(chunk, chunk, chunkSize, ws);
+		System.arraycopy(ws.hs[chunkSize-1], 0, h, 0, rnn.h_size);
+
+		if(hogwild)
+			rnn.applyGradients(ws.gradients);
+		return loss;
+	}
+
+	/**Average one slice of every gradient across all workspaces into the first workspace.
+	 * */
+	private void reduce(int slice){
+		BpttWorkspace target = workspaces[0];
+		reduce(target.dWxh, slice, w -> w.dWxh);
+		reduce(target.dWhh, slice, w -> w.dWhh);
+		reduce(target.dWhy, slice, w -> w.dWhy);
+		reduce(target.dbh, slice, w -> w.dbh);
+		reduce(target.dby, slice, w -> w.dby);
+	}
+
+	private void reduce(double[] target, int slice, Function<BpttWorkspace, double[]> gradient){
+		int from = (int) ((long) target.length * slice / threads);
+		int to = (int) ((long) target.length * (slice + 1) / threads);
+		double scale = 1.0 / threads;
+		for(int w = 1; w < threads; w++){
+			double[] source = gradient.apply(workspaces[w]);
+			for(int i = from; i < to; i++)
+				target[i] += source[i];
+		}
+		for(int i = from; i < to; i++)
+			target[i] *= scale;
+	}
+
+	private static double get(Future<Double> f) throws InterruptedException {
+		try {
+			return f.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Training worker failed", e.getCause());
+		}
+	}
+
+	@Override
+	public void close(){
+		pool.shutdownNow();
+	}
+}
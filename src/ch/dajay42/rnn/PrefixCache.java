@@ -0,0 +1,151 @@
+package ch.dajay42.rnn;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**A bounded least-recently-used cache of the state a {@link Session} is left in after being fed a seed.
+ * <p>
+ * Entries are keyed by the model, its number of learned steps as a version, and the seed, so a model that
+ * keeps learning never gets stale states back. Lookups find the longest cached prefix of a seed, so a seed
+ * extending a cached one only needs its new suffix fed. Prefixes are found by hashing: the hashes of all
+ * prefixes of a seed are computed in one pass, then probed from the longest down, so a lookup costs one map
+ * probe per seed symbol rather than one step of the model.
+ * <p>
+ * Safe for use by several threads at once.
+ * */
+final class PrefixCache {
+
+	private final int capacity;
+	private final Map<Key, State> entries;
+
+	private long hits = 0;
+	private long reused = 0;
+	private long fed = 0;
+
+	private static final class Key {
+		final Rnn model;
+		final long version;
+		int[] symbols;
+		int length;
+		int hash;
+
+		Key(Rnn model, long version, int[] symbols, int length, int hash){
+			this.model = model;
+			this.version = version;
+			this.symbols = symbols;
+			this.length = length;
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode(){
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return k.model == model && k.version == version && k.length == length
+					&& Arrays.equals(symbols, 0, length, k.symbols, 0, length);
+		}
+	}
+
+	private static final class State {
+		final double[] h;
+		final double[] y;
+
+		State(double[] h, double[] y){
+			this.h = h;
+			this.y = y;
+		}
+	}
+
+	/**@param capacity maximum number of cached states*/
+	PrefixCache(int capacity){
+		this.capacity = capacity;
+		entries = new LinkedHashMap<>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, State> eldest){
+				return size() > PrefixCache.this.capacity;
+			}
+		};
+	}
+
+	int getCapacity(){
+		return capacity;
+	}
+
+	/**Feed seed to a fresh session, starting from the state after the longest cached prefix of seed,
+	 * and cache the state the session is left in.
+	 * @return the number of seed symbols that did not need to be fed
+	 * */
+	int prime(Session session, int[] seed){
+		if(session.isPrimed())
+			throw new IllegalArgumentException("Session must be fresh");
+		if(seed.length == 0)
+			return 0;
+		Rnn model = session.getModel();
+		long version = model.getLearnedSteps();
+
+		int[] hashes = new int[seed.length + 1];
+		int hash = 1;
+		for(int i = 0; i < seed.length; i++){
+			hash = 31 * hash + seed[i];
+			hashes[i + 1] = hash ^ Long.hashCode(version) ^ System.identityHashCode(model);
+		}
+
+		int start = 0;
+		synchronized(this){
+			Key probe = new Key(model, version, seed, 0, 0);
+			for(int length = seed.length; length > 0; length--){
+				probe.length = length;
+				probe.hash = hashes[length];
+				State state = entries.get(probe);
+				if(state != null){
+					session.loadState(state.h, state.y, 1, 0);
+					start = length;
+					hits++;
+					break;
+				}
+			}
+			reused += start;
+			fed += seed.length - start;
+		}
+
+		for(int i = start; i < seed.length; i++)
+			session.feed(seed[i]);
+
+		if(start < seed.length){
+			double[] h = new double[model.getStateSize()];
+			double[] y = new double[model.getVocabSize()];
+			session.storeState(h, y, 1, 0);
+			Key key = new Key(model, version, Arrays.copyOf(seed, seed.length), seed.length, hashes[seed.length]);
+			synchronized(this){
+				entries.put(key, new State(h, y));
+			}
+		}
+		return start;
+	}
+
+	synchronized void clear(){
+		entries.clear();
+	}
+
+	/**@return the number of cached states*/
+	synchronized int size(){
+		return entries.size();
+	}
+
+	/**@return the number of lookups that found a prefix*/
+	synchronized long getHits(){
+		return hits;
+	}
+
+	/**@return the share of seed symbols that did not need to be fed, over all lookups*/
+	synchronized double getReuse(){
+		return reused + fed > 0 ? (double) reused / (reused + fed) : 0;
+	}
+}
@@ -0,0 +1,395 @@
+package ch.dajay42.rnn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import ch.dajay42.math.linAlg.ColumnVectorDense;
+import ch.dajay42.math.linAlg.Matrix;
+
+/**An inference-only copy of a trained vanilla tanh RNN, with its weights quantized to 8 bit integers.
+ * <p>
+ * Every row of Whh and Why is scaled by its own float so its largest weight becomes 127, and rounded to a
+ * byte. Wxh is stored transposed, so the column of each input symbol is a contiguous row with its own scale.
+ * The biases stay floats. The weights take an eighth of the memory of a {@link FusedRnn}, and a quarter of
+ * a {@link FloatRnn}, so stepping streams that much less through the caches. The hidden state, outputs and
+ * every sum stay doubles, the scale being applied once per row after summing the products.
+ * <p>
+ * Quantizing is done once, offline, from a trained model. The result only samples: it cannot learn.
+ * <p>
+ * Layout of a quantized file, all little-endian:
+ * <pre>
+ * offset size
+ *  0      4   magic "JQNT"
+ *  4      4   format version
+ *  8      4   hidden size
+ * 12      4   vocab size
+ * 16      8   learned steps
+ * 24      8   temperature
+ * 32      8   smoothed loss
+ * 40          Wxh transposed, Whh, Why as bytes, row-major,
+ *             then the scales of their rows, then bh and by, as floats
+ * </pre>
+ * */
+final class QuantizedRnn implements Rnn {
+
+	static final int MAGIC = 0x544E514A; // "JQNT" read as a little-endian int
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 40;
+
+	/**largest magnitude of a quantized weight*/
+	private static final int LEVELS = 127;
+
+	//quantized weights, row-major, and the scale of every row
+	private final byte[] Wxh; //input to hidden, transposed, xy_size x h_size
+	private final byte[] Whh; //hidden to hidden, h_size x h_size
+	private final byte[] Why; //hidden to output, xy_size x h_size
+	private final float[] sWxh;
+	private final float[] sWhh;
+	private final float[] sWhy;
+
+	private final float[] bh; // hidden bias
+	private final float[] by; // output bias
+
+	private final int h_size; // hidden size
+	private final int xy_size; // vocab size
+	private final long learnedSteps;
+	private final double smooth_loss;
+
+	/**inverse of prediction Temperature*/
+	private double beta = 1.0d;
+
+	private double[] h; //hidden state
+	private double[] hNext; //scratch for step
+	private double[] y; //output of step
+
+	private QuantizedRnn(int h_size, int xy_size, long learnedSteps, double smooth_loss){
+		this.h_size = h_size;
+		this.xy_size = xy_size;
+		this.learnedSteps = learnedSteps;
+		this.smooth_loss = smooth_loss;
+		Wxh = new byte[xy_size * h_size];
+		Whh = new byte[h_size * h_size];
+		Why = new byte[xy_size * h_size];
+		sWxh = new float[xy_size];
+		sWhh = new float[h_size];
+		sWhy = new float[xy_size];
+		bh = new float[h_size];
+		by = new float[xy_size];
+		h = new double[h_size];
+		hNext = new double[h_size];
+		y = new double[xy_size];
+	}
+
+	/**Quantize the weights of a trained single-layer vanilla RNN, keeping its temperature.
+	 * @param source a {@link FusedRnn} or {@link FloatRnn}; convert a {@link MinimalRnn} with {@link FusedRnn#of} first
+	 * @throws IllegalArgumentException for gated cells or several layers
+	 * */
+	static QuantizedRnn of(FlatRnn source){
+		if(source.cellType() != Snapshot.CELL_VANILLA || source.layers() != 1)
+			throw new IllegalArgumentException("Can only quantize a single layer of vanilla cells");
+		int h_size = source.getHiddenSize(), xy_size = source.getVocabSize();
+		QuantizedRnn q = new QuantizedRnn(h_size, xy_size, source.getLearnedSteps(), source.getLastLoss());
+		q.setTemperature(source.getTemperature());
+
+		Object[] parameters = source.parameters();
+		// Wxh is read by column, so quantize its transpose
+		double[] wxhT = new double[xy_size * h_size];
+		for(int i = 0; i < h_size; i++)
+			for(int x = 0; x < xy_size; x++)
+				wxhT[x * h_size + i] = valueAt(parameters[0], i * xy_size + x);
+		quantize(wxhT, xy_size, h_size, q.Wxh, q.sWxh);
+		quantize(widen(parameters[1]), h_size, h_size, q.Whh, q.sWhh);
+		quantize(widen(parameters[2]), xy_size, h_size, q.Why, q.sWhy);
+		for(int i = 0; i < h_size; i++)
+			q.bh[i] = (float) valueAt(parameters[3], i);
+		for(int k = 0; k < xy_size; k++)
+			q.by[k] = (float) valueAt(parameters[4], k);
+		return q;
+	}
+
+	private static double valueAt(Object array, int i){
+		return array instanceof float[] ? ((float[]) array)[i] : ((double[]) array)[i];
+	}
+
+	private static double[] widen(Object array){
+		if(array instanceof double[])
+			return (double[]) array;
+		float[] f = (float[]) array;
+		double[] d = new double[f.length];
+		for(int i = 0; i < f.length; i++)
+			d[i] = f[i];
+		return d;
+	}
+
+	/**Symmetric per-row quantization: q = round(w / scale), scale = max|w| / 127 over the row.
+	 * */
+	static void quantize(double[] w, int rows, int cols, byte[] q, float[] scale){
+		for(int r = 0; r < rows; r++){
+			int row = r * cols;
+			double max = 0;
+			for(int c = 0; c < cols; c++)
+				max = Math.max(max, Math.abs(w[row + c]));
+			float s = (float) (max / LEVELS);
+			scale[r] = s;
+			for(int c = 0; c < cols; c++)
+				q[row + c] = s > 0 ? (byte) Math.max(-LEVELS, Math.min(LEVELS, Math.round(w[row + c] / s))) : 0;
+		}
+	}
+
+	/**out = scale .* (q*x) + bias, for a rows x cols matrix of quantized weights.
+	 * */
+	static void matvec(byte[] q, float[] scale, float[] bias, int rows, int cols, double[] x, double[] out){
+		for(int r = 0; r < rows; r++){
+			int row = r * cols;
+			double a = 0;
+			for(int c = 0; c < cols; c++)
+				a += q[row + c] * x[c];
+			out[r] = bias[r] + scale[r] * a;
+		}
+	}
+
+	/**@return the bytes taken by the weights and biases*/
+	long weightBytes(){
+		return Wxh.length + Whh.length + Why.length
+				+ (long) Float.BYTES * (sWxh.length + sWhh.length + sWhy.length + bh.length + by.length);
+	}
+
+	/**@return the bytes taken by the parameters of a flat model*/
+	static long weightBytes(FlatRnn model){
+		long bytes = 0;
+		for(Object p : model.parameters())
+			bytes += p instanceof float[] ? (long) Float.BYTES * ((float[]) p).length : (long) Double.BYTES * ((double[]) p).length;
+		return bytes;
+	}
+
+	/**Mean cross-entropy of predicting every symbol from the ones before it, starting from a zero state.
+	 * Only reads the parameters of model.
+	 * @return the loss in nats per symbol; its exponential is the perplexity
+	 * */
+	static double loss(Rnn model, int[] symbols){
+		double[] hPrev = new double[model.getStateSize()], hOut = new double[hPrev.length];
+		double[] out = new double[model.getVocabSize()];
+		double sum = 0;
+		for(int t = 0; t + 1 < symbols.length; t++){
+			model.forward(symbols[t], hPrev, hOut, out);
+			double max = Double.NEGATIVE_INFINITY;
+			for(double v : out)
+				max = Math.max(max, v);
+			double z = 0;
+			for(double v : out)
+				z += Math.exp(v - max);
+			sum += max + Math.log(z) - out[symbols[t+1]];
+			double[] s = hPrev;
+			hPrev = hOut;
+			hOut = s;
+		}
+		return symbols.length > 1 ? sum / (symbols.length - 1) : 0;
+	}
+
+	// Rnn
+
+	@Override
+	public void forward(int symbol, double[] hPrev, double[] hOut, double[] yOut){
+		int col = symbol * h_size;
+		float s = sWxh[symbol];
+		for(int i = 0; i < h_size; i++){
+			int row = i * h_size;
+			double a = 0;
+			for(int j = 0; j < h_size; j++)
+				a += Whh[row + j] * hPrev[j];
+			hOut[i] = Math.tanh(bh[i] + s * Wxh[col + i] + sWhh[i] * a);
+		}
+		matvec(Why, sWhy, by, xy_size, h_size, hOut, yOut);
+	}
+
+	/**Advance the hidden state by one symbol.
+	 * @return the unnormalized output, owned by this instance until the next call
+	 * */
+	private double[] stepInto(int symbol){
+		forward(symbol, h, hNext, y);
+		double[] t = h;
+		h = hNext;
+		hNext = t;
+		return y;
+	}
+
+	@Override
+	public Matrix step(Matrix x) {
+		int symbol = RnnEncDec.indexOf(x);
+		if(symbol < 0)
+			throw new IllegalArgumentException("Input must be one-hot!");
+		return step(symbol);
+	}
+
+	@Override
+	public Matrix step(int symbol) {
+		return toMatrix(stepInto(symbol));
+	}
+
+	/**@throws UnsupportedOperationException always, a quantized RNN only samples*/
+	@Override
+	public Matrix[] learn(Matrix[] in, Matrix[] exout, Matrix h) {
+		throw new UnsupportedOperationException("A quantized RNN cannot learn");
+	}
+
+	/**@throws UnsupportedOperationException always, a quantized RNN only samples*/
+	@Override
+	public Matrix[] learn(int[] in, int[] exout, Matrix h) {
+		throw new UnsupportedOperationException("A quantized RNN cannot learn");
+	}
+
+	@Override
+	public List<Matrix> sample(Matrix h, Matrix[] seed, int n) {
+		setH(h);
+		ArrayList<Matrix> ret = new ArrayList<>();
+		for(int i = 0; i < seed.length-1; i++){
+			stepInto(RnnEncDec.indexOf(seed[i]));
+			ret.add(seed[i]);
+		}
+
+		Matrix r = seed[seed.length-1];
+		ret.add(r);
+		int symbol = RnnEncDec.indexOf(r);
+
+		for(int i = 0; i < n; i++){
+			symbol = Sampler.sample(stepInto(symbol), xy_size, beta, ThreadLocalRandom.current().nextDouble());
+			r = Matrix.zeroesLike(r, true);
+			r.setValueAt(symbol, 1.0);
+			ret.add(r);
+		}
+		return ret;
+	}
+
+	private static Matrix toMatrix(double[] values){
+		Matrix m = new ColumnVectorDense(values.length);
+		for(int i = 0; i < values.length; i++)
+			m.setValueAt(i, values[i]);
+		return m;
+	}
+
+	@Override
+	public int getHiddenSize() {
+		return h_size;
+	}
+
+	@Override
+	public int getVocabSize() {
+		return xy_size;
+	}
+
+	/**@return the smoothed loss of the model this was quantized from*/
+	@Override
+	public double getLastLoss() {
+		return smooth_loss;
+	}
+
+	@Override
+	public long getLearnedSteps() {
+		return learnedSteps;
+	}
+
+	/**@return 0, as nothing is learned*/
+	@Override
+	public double getLearningRate() {
+		return 0;
+	}
+
+	/**Has no effect, as nothing is learned.
+	 * */
+	@Override
+	public void setLearningRate(double learningRate) {
+	}
+
+	/**Set the prediction Temperature
+	 * @param t Temperature, positive.
+	 * */
+	@Override
+	public void setTemperature(double t){
+		if(t > 0)
+			beta = 1/t;
+		else
+			throw new IllegalArgumentException("Argument must be positive");
+	}
+
+	@Override
+	public double getTemperature(){
+		return 1/beta;
+	}
+
+	@Override
+	public Matrix getH() {
+		return toMatrix(h);
+	}
+
+	@Override
+	public void setH(Matrix h) {
+		for(int i = 0; i < h_size; i++)
+			this.h[i] = h.getValueAt(i);
+	}
+
+	// files
+
+	/**@return whether the file starts with the quantized magic number
+	 * */
+	static boolean isQuantized(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+			ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+			return !buffer.hasRemaining() && buffer.getInt(0) == MAGIC;
+		}
+	}
+
+	void write(Path path) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) (HEADER_SIZE + weightBytes())).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(h_size);
+		buffer.putInt(xy_size);
+		buffer.putLong(learnedSteps);
+		buffer.putDouble(getTemperature());
+		buffer.putDouble(smooth_loss);
+		buffer.put(Wxh).put(Whh).put(Why);
+		for(float[] a : new float[][]{sWxh, sWhh, sWhy, bh, by}){
+			buffer.asFloatBuffer().put(a);
+			buffer.position(buffer.position() + a.length * Float.BYTES);
+		}
+		Files.write(path, buffer.array());
+	}
+
+	static QuantizedRnn read(Path path) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			if(buffer.getInt() != MAGIC)
+				throw new IOException("Not a quantized RNN");
+			int version = buffer.getInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported quantized RNN version " + version);
+			int h_size = buffer.getInt(), xy_size = buffer.getInt();
+			if(h_size < 1 || xy_size < 1)
+				throw new IOException("Invalid sizes " + h_size + " x " + xy_size);
+			long learnedSteps = buffer.getLong();
+			double temperature = buffer.getDouble();
+			QuantizedRnn q = new QuantizedRnn(h_size, xy_size, learnedSteps, buffer.getDouble());
+			if(buffer.remaining() != q.weightBytes())
+				throw new IOException("Quantized RNN truncated, expected " + (HEADER_SIZE + q.weightBytes())
+						+ " bytes but found " + buffer.limit());
+			q.setTemperature(temperature);
+			buffer.get(q.Wxh).get(q.Whh).get(q.Why);
+			for(float[] a : new float[][]{q.sWxh, q.sWhh, q.sWhy, q.bh, q.by}){
+				buffer.asFloatBuffer().get(a);
+				buffer.position(buffer.position() + a.length * Float.BYTES);
+			}
+			return q;
+		} catch (RuntimeException e) {
+			throw new IOException("Broken quantized RNN", e);
+		}
+	}
+}
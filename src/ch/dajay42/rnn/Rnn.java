@@ -8,11 +8,43 @@ public interface Rnn{
 
 	Matrix step(Matrix x);
 
+	/**Advance the hidden state by a single one-hot input, given by its index.
+	 * @param symbol index of the active input
+	 * @return the unnormalized output vector
+	 * */
+	Matrix step(int symbol);
+
+	/**Advance a hidden state held outside the model by one symbol, without touching the state of the
+	 * model itself. Only reads the parameters, so any number of threads may call this at once.
+	 * @param hPrev the hidden state before the symbol, of the state size
+	 * @param hOut receives the hidden state after the symbol; must not be hPrev
+	 * @param yOut receives the unnormalized output, of the vocabulary size
+	 * */
+	void forward(int symbol, double[] hPrev, double[] hOut, double[] yOut);
+
+	/**Learn to predict exout[t] from in[0..t-1], for every t after the first, starting from the hidden state h.
+	 * Leaves the hidden state of the model past every input but the last, so the next chunk should start
+	 * with the last input of this one.
+	 * */
 	Matrix[] learn(Matrix[] in, Matrix[] exout, Matrix h);
 
+	/**Index-based variant of {@link #learn(Matrix[], Matrix[], Matrix)}, for one-hot inputs and outputs.
+	 * */
+	Matrix[] learn(int[] in, int[] exout, Matrix h);
+
 	List<Matrix> sample(Matrix h, Matrix seed[], int n);
 
 	int getHiddenSize();
+
+	/**@return the size of the recurrent state passed to {@link #forward} and {@link #setH}, which starts
+	 * with the hidden state and may carry more, like the cell state of an LSTM
+	 * */
+	default int getStateSize(){
+		return getHiddenSize();
+	}
+
+	/**@return the number of symbols in the vocabulary*/
+	int getVocabSize();
 	
 	double getLastLoss();
 	
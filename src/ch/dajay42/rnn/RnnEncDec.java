@@ -3,14 +3,13 @@ package ch.dajay42.rnn;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
 
-import ch.dajay42.math.Util;
 import ch.dajay42.math.linAlg.ColumnVectorSparse;
 import ch.dajay42.math.linAlg.Matrix;
 
 public class RnnEncDec<E extends Comparable<E>> {
 
 	private final Map<E, Integer> forward = new HashMap<>();
-	private final Map<Integer, E> backward = new HashMap<>();
+	private final Object[] backward; //element of every index
 	
 	final int classes;
 	
@@ -22,47 +21,47 @@ public class RnnEncDec<E extends Comparable<E>> {
 		Object[] elems = elements.toArray();
 		Arrays.sort(elems);
 		classes = elems.length;
+		backward = elems;
 		
-		for(Integer i = 0; i < classes; i++){
+		for(int i = 0; i < classes; i++){
 			forward.put((E) elems[i], i);
-			backward.put(i, (E) elems[i]);
 		}
 		
 	}
 	
+	/**@throws IllegalArgumentException if item is not part of the alphabet*/
 	Matrix encode(E item){
+		int e = encodeIndex(item);
+		if(e < 0)
+			throw new IllegalArgumentException("Not part of the alphabet: " + item);
+		return oneHot(e);
+	}
+	
+	/**@return the index of item, or -1 if it is not part of the alphabet*/
+	int encodeIndex(E item){
+		Integer e = forward.get(item);
+		return e != null ? e : -1;
+	}
+	
+	Matrix oneHot(int index){
 		Matrix v = new ColumnVectorSparse(classes);
-		int e = forward.get(item);
-		v.setValueAt(e, 1);
+		v.setValueAt(index, 1);
 		return v;
 	}
+	
+	@SuppressWarnings("unchecked")
+	E decodeIndex(int index){
+		return (E) backward[index];
+	}
 
 	E decode(Matrix vector){
-		//x = beta * vector //temperature-adjusted probabilities
-		//v = exp(x) / sum(exp(x))
-		Matrix p = vector.scalarOp(Util::multiplication, beta).inplaceElementWise(Math::exp); //beware of overflows
-		double scalar = p.aggregateOp(Util::sum);
-		double[] v = p.scalarOp(Util::division, scalar).getValuesInColumn(0);
-		
-		double selection = ThreadLocalRandom.current().nextDouble();
-		for(int i = 0; i < v.length; i++){
-			selection -= v[i];
-			if(selection < 0)
-				return backward.get(i);
-		}
-		return null;
+		double[] v = vector.getValuesInColumn(0);
+		return decodeIndex(Sampler.sample(v, v.length, beta, ThreadLocalRandom.current().nextDouble()));
 	}
 
 	E decodeMax(Matrix r){
-		double max = Double.MIN_VALUE;
-		int j = 0;
-		for(int i = 0; i < r.rows; i++){
-			if(r.getValueAt(i,0) > max){
-				max = r.getValueAt(i,0);
-				j = i;
-			}
-		}
-		return backward.get(j);
+		double[] v = r.getValuesInColumn(0);
+		return decodeIndex(Sampler.argmax(v, v.length));
 	}
 	
 	static int indexOf(Matrix vector){
@@ -1,9 +1,16 @@
 package ch.dajay42.rnn;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 
+import javax.management.JMException;
+
 import ch.dajay42.application.*;
 import ch.dajay42.application.config.*;
 import ch.dajay42.math.linAlg.*;
@@ -11,30 +18,97 @@ import ch.dajay42.math.linAlg.*;
 
 public class RnnMain {
 	
-	private static RnnEncDec<Byte> asciiEncDec;
+	private static Vocabulary vocabulary;
 
 	private static Rnn currentRnn = null;
 	private static String rnnLoadPath = "";
 	private static String rnnStorePath = "";
 	
 	private static String textPath = "";
-	private static byte[] text = null;
-	private static int textLength = 0;
-	private static Matrix[] textEncd = null;
-	private static int offset = 0;
+	private static Corpus text = null;
+	private static Corpus training = null; //the text without its validation range, set when learning starts
+	private static long offset = 0;
+	
+	private static SamplingServer server = null;
+	private static PrefixCache prefixCache = null;
 	
 	
 	private static int chunkSize = 32;
 	private static int autoSampleFrequency = 100;
 	private static int autoSampleSize = 256;
-	private static int blockSize = 256*1024;
+	private static int learnThreads = 1;
+	private static int batchSize = 1;
+	private static int checkpointFrequency = 0;
+	private static int checkpointSeconds = 0;
+	private static int checkpointKeep = 3;
+	private static int serveBatch = 0;
+	private static int topK = 0;
+	private static int topPercent = 100;
+	private static int completeStop = -1;
+	private static int lengthPenaltyPercent = 0;
+	private static int prefixCacheSize = 64;
+	private static int layers = 2;
+	private static int optimizer = Optimizer.ADAGRAD;
+	private static int schedule = Optimizer.SCHEDULE_ADAPTIVE;
+	private static int warmupUpdates = 0;
+	private static int halfLifeUpdates = 10000;
+	private static int bpttStride = 0;
+	private static int vocabSample = 1_000_000;
+	private static int printFrequency = 10;
+	private static int metricsSeconds = 15;
+	private static int heldOutSymbols = 10000;
+	private static int validationPercent = 0;
+	private static int evalFrequency = 0;
+	private static int evalSeconds = 0;
+	private static int evalThreads = 2;
+	private static int evalPatience = 0;
+	private static int keepBest = 1;
+	private static long lastCheckpoint = 0;
+	private static long lastEvaluated = 0;
+	private static Evaluator.Result validation = null;
+	
+	private static String metricsPath = "";
+	private static AutoCloseable metricsExport = null;
+	
+	//state of the learning progress report since it was last printed
+	private static long reportTime;
+	private static long reportSymbols;
+	private static long reportGcMillis;
+	private static double reportLoss;
+	private static int reportChunks;
 	
 	private final static Map<String, Setting> SETTING_MAP = new HashMap<>(){
 		{
 			put("chunkSize", new Setting<>(() -> chunkSize, i -> chunkSize = i, Parser.INTEGER_PARSER));
 			put("autoSampleFrequency", new Setting<>(() -> autoSampleFrequency, i -> autoSampleFrequency = i, Parser.INTEGER_PARSER));
 			put("autoSampleSize", new Setting<>(() -> autoSampleSize, i -> autoSampleSize = i, Parser.INTEGER_PARSER));
-			put("blockSize", new Setting<>(() -> blockSize, i -> blockSize = i, Parser.INTEGER_PARSER));
+			put("learnThreads", new Setting<>(() -> learnThreads, i -> learnThreads = i, Parser.INTEGER_PARSER));
+			put("batchSize", new Setting<>(() -> batchSize, i -> batchSize = i, Parser.INTEGER_PARSER));
+			put("checkpointFrequency", new Setting<>(() -> checkpointFrequency, i -> checkpointFrequency = i, Parser.INTEGER_PARSER));
+			put("checkpointSeconds", new Setting<>(() -> checkpointSeconds, i -> checkpointSeconds = i, Parser.INTEGER_PARSER));
+			put("checkpointKeep", new Setting<>(() -> checkpointKeep, i -> checkpointKeep = i, Parser.INTEGER_PARSER));
+			put("serveBatch", new Setting<>(() -> serveBatch, i -> serveBatch = i, Parser.INTEGER_PARSER));
+			put("topK", new Setting<>(() -> topK, i -> topK = i, Parser.INTEGER_PARSER));
+			put("topPercent", new Setting<>(() -> topPercent, i -> topPercent = i, Parser.INTEGER_PARSER));
+			put("completeStop", new Setting<>(() -> completeStop, i -> completeStop = i, Parser.INTEGER_PARSER));
+			put("lengthPenaltyPercent", new Setting<>(() -> lengthPenaltyPercent, i -> lengthPenaltyPercent = i, Parser.INTEGER_PARSER));
+			put("prefixCacheSize", new Setting<>(() -> prefixCacheSize, i -> prefixCacheSize = i, Parser.INTEGER_PARSER));
+			put("layers", new Setting<>(() -> layers, i -> layers = i, Parser.INTEGER_PARSER));
+			put("optimizer", new Setting<>(() -> Optimizer.key(optimizer), s -> optimizer = Optimizer.type(s), s -> Optimizer.key(Optimizer.type(s))));
+			put("schedule", new Setting<>(() -> Optimizer.scheduleKey(schedule), s -> schedule = Optimizer.schedule(s), s -> Optimizer.scheduleKey(Optimizer.schedule(s))));
+			put("warmupUpdates", new Setting<>(() -> warmupUpdates, i -> warmupUpdates = i, Parser.INTEGER_PARSER));
+			put("halfLifeUpdates", new Setting<>(() -> halfLifeUpdates, i -> halfLifeUpdates = i, Parser.INTEGER_PARSER));
+			put("bpttStride", new Setting<>(() -> bpttStride, i -> bpttStride = i, Parser.INTEGER_PARSER));
+			put("vocabSample", new Setting<>(() -> vocabSample, i -> vocabSample = i, Parser.INTEGER_PARSER));
+			put("printFrequency", new Setting<>(() -> printFrequency, i -> printFrequency = i, Parser.INTEGER_PARSER));
+			put("metricsSeconds", new Setting<>(() -> metricsSeconds, i -> metricsSeconds = i, Parser.INTEGER_PARSER));
+			put("heldOutSymbols", new Setting<>(() -> heldOutSymbols, i -> heldOutSymbols = i, Parser.INTEGER_PARSER));
+			put("validationPercent", new Setting<>(() -> validationPercent, i -> validationPercent = i, Parser.INTEGER_PARSER));
+			put("evalFrequency", new Setting<>(() -> evalFrequency, i -> evalFrequency = i, Parser.INTEGER_PARSER));
+			put("evalSeconds", new Setting<>(() -> evalSeconds, i -> evalSeconds = i, Parser.INTEGER_PARSER));
+			put("evalThreads", new Setting<>(() -> evalThreads, i -> evalThreads = i, Parser.INTEGER_PARSER));
+			put("evalPatience", new Setting<>(() -> evalPatience, i -> evalPatience = i, Parser.INTEGER_PARSER));
+			put("keepBest", new Setting<>(() -> keepBest, i -> keepBest = i, Parser.INTEGER_PARSER));
 		}
 	};
 	
@@ -45,9 +119,13 @@ public class RnnMain {
 	private final static String loadStr = "load";
 	private final static String storeStr = "store";
 	private final static String createStr = "create";
+	private final static String convertStr = "convert";
+	private final static String quantizeStr = "quantize";
 	
 	private final static String sampleStr = "sample";
+	private final static String completeStr = "complete";
 	private final static String learnStr = "learn";
+	private final static String hogwildStr = "hogwild";
 	
 	private final static String readStr = "read";
 	private final static String writeStr = "write";
@@ -55,38 +133,67 @@ public class RnnMain {
 	private final static String temperatureStr = "settemperature";
 	private final static String learnRateStr = "setlearnrate";
 	
+	private final static String minimalCellStr = "minimal";
+	private final static String fusedCellStr = "fused";
+	private final static String floatCellStr = "float";
+	private final static String mixedCellStr = "mixed";
+	private final static String lstmCellStr = "lstm";
+	private final static String gruCellStr = "gru";
+	private final static String stackedCellStr = "stacked";
+	
 	private final static String settingsFile = "jayrnn.ini";
+	private final static String checkpointStr = "checkpoint";
+	private final static String serveStr = "serve";
+	private final static String vocabStr = "vocab";
+	private final static String metricsStr = "metrics";
+	private final static String evalStr = "eval";
 
 	
-	private static void initEncDec(){
-		Set<Byte> charset = new HashSet<>();
-		for(byte s = 0; s >= 0; s++){
-			charset.add(s);
-		}
-		asciiEncDec = new RnnEncDec<>(charset);
+	private static int[] encodeSeed(String seedStr){
+		return vocabulary.encode(seedStr.getBytes());
+	}
+	
+	/**@return the file the vocabulary of the RNN in the file rnnPath, or of its checkpoints, is kept in*/
+	private static Path vocabularyPath(String rnnPath){
+		return FileSystems.getDefault().getPath(rnnPath.replaceFirst("("+Checkpointer.SUFFIX+"\\d+|-best)?\\.rnn$", "") + ".vocab");
 	}
 	
-	private static void loadTextBlock(){
-		textEncd = new Matrix[blockSize];
-		System.gc();
-		System.out.println("Preparing text segment...");
-		for(int j = 0; j < blockSize; j++){
-			int k = (j + offset) % textLength;
-			textEncd[j] = asciiEncDec.encode(text[k]);
-			if(j % 65536 == 0)
-				System.out.println(String.format("\r%.1f%%", (j*(100d/blockSize))));
+	/**Open the text at path as symbols of the current vocabulary. Raw text is read directly by a byte-level
+	 * vocabulary, and otherwise encoded into a token file next to it once, which is reused for as long as
+	 * it is newer than the text and was encoded with the same vocabulary.
+	 * */
+	private static Corpus openText(Path path) throws IOException {
+		if(Corpus.isTokens(path)){
+			Corpus corpus = Corpus.tokens(path);
+			if(corpus.vocabularyHash != vocabulary.hash){
+				corpus.close();
+				throw new IOException("Token file was encoded with a different vocabulary");
+			}
+			return corpus;
+		}
+		if(vocabulary.isByteLevel())
+			return new Corpus(path, vocabulary.codec());
+		
+		Path tokens = path.resolveSibling(path.getFileName() + ".tok");
+		if(Files.exists(tokens) && Files.getLastModifiedTime(tokens).compareTo(Files.getLastModifiedTime(path)) > 0
+				&& Corpus.isTokens(tokens)){
+			Corpus corpus = Corpus.tokens(tokens);
+			if(corpus.vocabularyHash == vocabulary.hash)
+				return corpus;
+			corpus.close();
 		}
-		System.out.println("Text segment prepared");
-		/*for(int t = 0; t < blockSize; t++){
-			System.out.print(asciiEncDec.decodeMax(textEncd[t]));
+		try(Corpus raw = new Corpus(path, vocabulary.codec())){
+			long count = Corpus.tokenize(raw, vocabulary, tokens);
+			System.out.println("Encoded "+raw.length+" bytes as "+count+" symbols into '"+tokens+"'.");
 		}
-		System.out.println();*/
+		return Corpus.tokens(tokens);
 	}
 	
 	private static void loadText(String filename){
 		System.out.println("Loading text from \""+filename+"\"...");
+		Corpus corpus;
 		try {
-			text = Files.readAllBytes(FileSystems.getDefault().getPath(filename));
+			corpus = openText(FileSystems.getDefault().getPath(filename));
 		} catch (IOException e) {
 			System.err.print("Error: Could not load text from file ");
 			System.err.print(filename);
@@ -96,13 +203,74 @@ public class RnnMain {
 			return;
 		}
 		
-		textLength = text.length;
+		if(text != null){
+			try {
+				text.close();
+			} catch (IOException e) {
+				System.err.println("Warning: Could not close previous text due to " + e.toString());
+			}
+		}
+		text = corpus;
 		offset = 0;
 		textPath = filename;
-		textEncd = null;
 		
 		System.out.println("Text file loaded.");
-		loadTextBlock();
+	}
+	
+	/**Learn a vocabulary of size symbols from the first vocabSample bytes of the loaded text, and read the
+	 * text anew with it. A size of 0 goes back to the byte alphabet.
+	 * */
+	private static void learnVocabulary(int size){
+		Vocabulary learned;
+		try {
+			Path path = FileSystems.getDefault().getPath(textPath);
+			if(size == 0){
+				learned = Vocabulary.ascii();
+			}else if(Corpus.isTokens(path)){
+				System.out.println("Cannot learn a vocabulary: Text is already encoded, read the raw text instead.");
+				return;
+			}else{
+				System.out.println("Learning a vocabulary of "+size+" symbols...");
+				try(Corpus raw = new Corpus(path, vocabulary.codec())){
+					learned = Vocabulary.learn(raw, Math.max(1, vocabSample), size);
+				}
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.print("Error: Could not learn a vocabulary due to ");
+			System.err.print(e.toString());
+			System.err.println();
+			return;
+		}
+		vocabulary = learned;
+		forgetPrefixes();
+		System.out.println("Vocabulary has "+vocabulary.size+" symbols of up to "+vocabulary.maxLength+" bytes.");
+		loadText(textPath);
+		if(currentRnn != null && currentRnn.getVocabSize() != vocabulary.size)
+			System.out.println("The current RNN has "+currentRnn.getVocabSize()+" symbols, create a new one to use this vocabulary.");
+	}
+	
+	/**@return whether the current RNN reads and writes the symbols of the current vocabulary, telling why not otherwise*/
+	private static boolean checkVocabulary(String action){
+		if(currentRnn.getVocabSize() == vocabulary.size)
+			return true;
+		System.out.println("Cannot "+action+": The RNN has "+currentRnn.getVocabSize()+" symbols, but the vocabulary "+vocabulary.size+".");
+		return false;
+	}
+	
+	/**@return whether the loaded text is read as symbols of the current vocabulary*/
+	private static boolean textFitsVocabulary(){
+		return text.isTokens() ? text.vocabularyHash == vocabulary.hash : vocabulary.isByteLevel();
+	}
+	
+	/**Write the vocabulary next to the RNN in the file rnnPath, or remove a stale one when it is the byte alphabet,
+	 * which needs no file.
+	 * */
+	private static void storeVocabulary(String rnnPath) throws IOException {
+		Path path = vocabularyPath(rnnPath);
+		if(vocabulary.isByteLevel())
+			Files.deleteIfExists(path);
+		else
+			vocabulary.write(path);
 	}
 	
 	private static void loadSettings(){
@@ -130,11 +298,25 @@ public class RnnMain {
 	}
 	
 	private static void loadRnn(String filename){
+		long position = 0;
+		Vocabulary loaded;
 		try {
-			byte[] bytes = Files.readAllBytes(FileSystems.getDefault().getPath(filename));
-			try(ObjectInputStream s = new ObjectInputStream(new ByteArrayInputStream(bytes))){
-				Object o = s.readObject();
-				currentRnn = (Rnn) o;
+			Path vocabularyPath = vocabularyPath(filename);
+			if(!Files.exists(vocabularyPath)) // checkpoints named <prefix>-<steps>.rnn by older versions
+				vocabularyPath = FileSystems.getDefault().getPath(filename.replaceFirst("-\\d+\\.rnn$", ".vocab"));
+			loaded = Files.exists(vocabularyPath) ? Vocabulary.read(vocabularyPath) : Vocabulary.ascii();
+			Path path = FileSystems.getDefault().getPath(filename);
+			if(Snapshot.isSnapshot(path)){
+				Snapshot snapshot = Snapshot.read(path);
+				currentRnn = snapshot.rnn;
+				position = snapshot.offset;
+			}else if(QuantizedRnn.isQuantized(path)){
+				currentRnn = QuantizedRnn.read(path);
+			}else{
+				try(ObjectInputStream s = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(path)))){
+					Object o = s.readObject();
+					currentRnn = (Rnn) o;
+				}
 			}
 		} catch (IOException | ClassNotFoundException e) {
 			System.err.print("Error: Could not load RNN from file ");
@@ -144,9 +326,26 @@ public class RnnMain {
 			System.err.println();
 			return;
 		}
-		offset = 0;
 		rnnLoadPath = filename;
 		rnnStorePath = "";
+		forgetPrefixes();
+		// go on learning with the optimizer the RNN was saved with, keeping its state
+		if(currentRnn instanceof FlatRnn && ((FlatRnn) currentRnn).optimizerType() != optimizer){
+			System.out.print("Changed setting optimizer="+Optimizer.key(optimizer));
+			optimizer = ((FlatRnn) currentRnn).optimizerType();
+			System.out.println(" to "+Optimizer.key(optimizer)+", the optimizer this RNN was saved with.");
+		}
+		
+		if(loaded.size != currentRnn.getVocabSize()){
+			System.out.println("Warning: Vocabulary of "+loaded.size+" symbols does not fit the RNN, using the byte alphabet.");
+			loaded = Vocabulary.ascii();
+		}
+		if(loaded.hash != vocabulary.hash){
+			vocabulary = loaded;
+			if(text != null)
+				loadText(textPath);
+		}
+		offset = text != null ? position % text.length : 0;
 
 		System.out.println("RNN loaded from '"+rnnLoadPath+"'.");
 	}
@@ -156,14 +355,16 @@ public class RnnMain {
 		if(!filename.endsWith(".rnn"))
 			filename = filename + ".rnn";
 		
-		try(ByteArrayOutputStream bs = new ByteArrayOutputStream()){
-			try(ObjectOutputStream s = new ObjectOutputStream(bs)){
-				s.writeObject(currentRnn);
-				s.flush();
-				byte[] bytes = bs.toByteArray();
-				Files.write(FileSystems.getDefault().getPath(filename), bytes);
-				
+		Path path = FileSystems.getDefault().getPath(filename);
+		try{
+			if(currentRnn instanceof QuantizedRnn){
+				((QuantizedRnn) currentRnn).write(path);
+			}else{
+				// a minimal RNN is stored as the fused RNN with the same weights, which it loads as
+				FlatRnn flat = currentRnn instanceof FlatRnn ? (FlatRnn) currentRnn : FusedRnn.of((MinimalRnn) currentRnn);
+				Snapshot.write(flat, path, true, offset);
 			}
+			storeVocabulary(filename);
 		} catch (IOException e) {
 			System.err.print("Error: Could not store RNN in file ");
 			System.err.print(filename);
@@ -176,67 +377,418 @@ public class RnnMain {
 		System.out.println("RNN stored to '"+rnnStorePath+"'.");
 	}
 	
-	private static void createRnn(int hiddenSize){
-		currentRnn = new MinimalRnn(hiddenSize, asciiEncDec.classes);
+	private static void convertRnn(String from, String to){
+		if(!to.endsWith(".rnn"))
+			to = to + ".rnn";
+		
+		try {
+			Snapshot.convert(FileSystems.getDefault().getPath(from), FileSystems.getDefault().getPath(to));
+		} catch (IOException | ClassNotFoundException e) {
+			System.err.print("Error: Could not convert RNN in file ");
+			System.err.print(from);
+			System.err.print(" due to ");
+			System.err.print(e.toString());
+			System.err.println();
+			return;
+		}
+		System.out.println("RNN converted from '"+from+"' to '"+to+"'.");
+	}
+	
+	/**Quantize the RNN in from into an inference-only RNN in to, taking its vocabulary along, and compare the
+	 * perplexity of both on the last heldOutSymbols symbols of the loaded text, if it fits them.
+	 * */
+	private static void quantizeRnn(String from, String to){
+		if(!to.endsWith(".rnn"))
+			to = to + ".rnn";
+		
+		FlatRnn source;
+		QuantizedRnn quantized;
+		try {
+			Path path = FileSystems.getDefault().getPath(from);
+			Rnn rnn;
+			if(Snapshot.isSnapshot(path)){
+				rnn = Snapshot.read(path).rnn;
+			}else{
+				try(ObjectInputStream s = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(path)))){
+					rnn = (Rnn) s.readObject();
+				}
+			}
+			if(rnn instanceof MinimalRnn)
+				rnn = FusedRnn.of((MinimalRnn) rnn);
+			if(!(rnn instanceof FlatRnn))
+				throw new IllegalArgumentException("Can only quantize a single layer of vanilla cells");
+			source = (FlatRnn) rnn;
+			quantized = QuantizedRnn.of(source);
+			quantized.write(FileSystems.getDefault().getPath(to));
+			
+			Path vocabularyFrom = vocabularyPath(from), vocabularyTo = vocabularyPath(to);
+			if(Files.exists(vocabularyFrom))
+				Files.copy(vocabularyFrom, vocabularyTo, StandardCopyOption.REPLACE_EXISTING);
+			else
+				Files.deleteIfExists(vocabularyTo);
+		} catch (IOException | ClassNotFoundException | IllegalArgumentException e) {
+			System.err.print("Error: Could not quantize RNN in file ");
+			System.err.print(from);
+			System.err.print(" due to ");
+			System.err.print(e.toString());
+			System.err.println();
+			return;
+		}
+		System.out.println("RNN quantized from '"+from+"' to '"+to+"', weights take "+QuantizedRnn.weightBytes(source)
+				+" bytes before and "+quantized.weightBytes()+" bytes after.");
+		
+		if(text == null || heldOutSymbols < 2 || !textFitsVocabulary() || source.getVocabSize() != vocabulary.size){
+			System.out.println("Read a text of the RNN's vocabulary to compare the perplexity before and after.");
+			return;
+		}
+		int[] heldOut = new int[(int) Math.min(heldOutSymbols, text.length)];
+		text.read(text.length - heldOut.length, heldOut);
+		double before = Math.exp(QuantizedRnn.loss(source, heldOut));
+		double after = Math.exp(QuantizedRnn.loss(quantized, heldOut));
+		System.out.println("Perplexity on the last "+heldOut.length+" symbols of the text: "+before+" before, "+after
+				+" after, "+String.format("%+.3f%%", 100 * (after - before) / before)+".");
+	}
+	
+	private static void createRnn(int hiddenSize, String cell){
+		switch(cell){
+			case minimalCellStr:
+				currentRnn = new MinimalRnn(hiddenSize, vocabulary.size);
+				break;
+			case fusedCellStr:
+				currentRnn = new FusedRnn(hiddenSize, vocabulary.size);
+				break;
+			case floatCellStr:
+				currentRnn = new FloatRnn(hiddenSize, vocabulary.size, false);
+				break;
+			case mixedCellStr:
+				currentRnn = new FloatRnn(hiddenSize, vocabulary.size, true);
+				break;
+			case lstmCellStr:
+				currentRnn = new LstmRnn(hiddenSize, vocabulary.size);
+				break;
+			case gruCellStr:
+				currentRnn = new GruRnn(hiddenSize, vocabulary.size);
+				break;
+			case stackedCellStr:
+				currentRnn = new StackedRnn(Math.max(1, layers), hiddenSize, vocabulary.size);
+				break;
+			default:
+				System.out.println("Cannot create RNN: Unknown cell type '"+cell+"'.");
+				return;
+		}
 		offset = 0;
 		rnnLoadPath = "";
 		rnnStorePath = "";
+		forgetPrefixes();
 		System.out.println("Created new RNN.");
 	}
 	
-	private static void learn(int chunks){
-		Matrix[] in = new Matrix[chunkSize];
-		Matrix[] exout = new Matrix[chunkSize];
+	private static Checkpointer openCheckpointer(){
+		if(checkpointFrequency <= 0 && checkpointSeconds <= 0)
+			return null;
+		if(!(currentRnn instanceof FlatRnn)){
+			System.out.println("Checkpoints require a "+fusedCellStr+", "+floatCellStr+", "+mixedCellStr+", "+lstmCellStr+", "+gruCellStr+" or "+stackedCellStr+" RNN, learning without.");
+			return null;
+		}
+		String prefix = checkpointPrefix();
+		try {
+			storeVocabulary(prefix);
+		} catch (IOException e) {
+			System.err.print("Error: Could not store the vocabulary of the checkpoints due to ");
+			System.err.print(e.toString());
+			System.err.println();
+		}
+		lastCheckpoint = System.nanoTime();
+		return new Checkpointer(prefix, checkpointKeep);
+	}
+	
+	/**@return the path and file name prefix of the checkpoints and the best RNN of the current RNN*/
+	private static String checkpointPrefix(){
+		String prefix = !rnnStorePath.isEmpty() ? rnnStorePath : (!rnnLoadPath.isEmpty() ? rnnLoadPath : checkpointStr);
+		return prefix.replaceFirst("("+Checkpointer.SUFFIX+"\\d+|-best)?\\.rnn$", "");
+	}
+	
+	/**@return the number of symbols at the end of the loaded text held out from learning to validate on,
+	 * validationPercent of it, leaving at least a chunk to learn from
+	 * */
+	private static long validationSymbols(){
+		if(text == null || validationPercent <= 0)
+			return 0;
+		long symbols = text.length * Math.min(validationPercent, 50) / 100;
+		return Math.max(0, Math.min(symbols, text.length - Math.max(chunkSize, 2)));
+	}
+	
+	/**Start evaluating the RNN on the validation range every evalFrequency chunks or evalSeconds seconds,
+	 * keeping the best one next to the checkpoints unless keepBest is 0.
+	 * @return the evaluator, or null if there is nothing to evaluate or no schedule
+	 * */
+	private static Evaluator openEvaluator(){
+		long validationSymbols = validationSymbols();
+		if(validationSymbols <= 0 || (evalFrequency <= 0 && evalSeconds <= 0))
+			return null;
+		if(!(currentRnn instanceof FlatRnn)){
+			System.out.println("Evaluation while learning requires a "+fusedCellStr+", "+floatCellStr+", "+mixedCellStr+", "+lstmCellStr+", "+gruCellStr+" or "+stackedCellStr+" RNN, learning without.");
+			return null;
+		}
+		Path best = null;
+		if(keepBest != 0){
+			String prefix = checkpointPrefix();
+			best = FileSystems.getDefault().getPath(prefix + "-best.rnn");
+			try {
+				storeVocabulary(prefix);
+			} catch (IOException e) {
+				System.err.print("Error: Could not store the vocabulary of the best RNN due to ");
+				System.err.print(e.toString());
+				System.err.println();
+			}
+		}
+		lastEvaluated = System.nanoTime();
+		return new Evaluator(text, vocabulary, text.length - validationSymbols, text.length, Math.max(1, evalThreads), best);
+	}
+	
+	/**Offer an evaluation if one is due after chunk i, and print the result of the last one finished.
+	 * @return whether to stop learning, as the last evalPatience evaluations did not improve on the best one
+	 * */
+	private static boolean evaluate(Evaluator evaluator, int i){
+		if(evaluator == null)
+			return false;
+		boolean due = (evalFrequency > 0 && (i + 1) % evalFrequency == 0)
+				|| (evalSeconds > 0 && System.nanoTime() - lastEvaluated >= evalSeconds * 1_000_000_000L);
+		if(due && evaluator.offer((FlatRnn) currentRnn, offset))
+			lastEvaluated = System.nanoTime();
 		
+		Evaluator.Result result = evaluator.poll();
+		if(result == null)
+			return false;
+		evaluated(result);
+		if(evalPatience <= 0 || result.stale < evalPatience)
+			return false;
+		System.out.println("Stopping early: Validation did not improve for "+result.stale+" evaluations."
+				+(keepBest != 0 ? " The best RNN is kept in '"+checkpointPrefix()+"-best.rnn'." : ""));
+		return true;
+	}
+	
+	/**Wait for a running evaluation once learning is over, and print its result.
+	 * */
+	private static void finishEvaluation(Evaluator evaluator){
+		if(evaluator == null)
+			return;
+		Evaluator.Result result = evaluator.finish();
+		if(result != null)
+			evaluated(result);
+	}
+	
+	private static void evaluated(Evaluator.Result result){
+		validation = result;
+		System.out.append("Validation bits/char: ").append(Double.toString(result.bits));
+		System.out.append(" at step ").append(Long.toString(result.steps));
+		System.out.append(", best: ").append(Double.toString(result.bestBits));
+		System.out.append(" at step ").append(Long.toString(result.bestSteps));
+		System.out.append('\n');
+		System.out.flush();
+	}
+	
+	/**Print the bits per character of the current RNN on the validation range, or on the whole text without one.
+	 * */
+	private static void evaluateRnn(){
+		long validationSymbols = validationSymbols();
+		long from = validationSymbols > 0 ? text.length - validationSymbols : 0;
+		try(Evaluator evaluator = new Evaluator(text, vocabulary, from, text.length, Math.max(1, evalThreads), null)){
+			long start = System.nanoTime();
+			double bits = evaluator.evaluate(currentRnn);
+			System.out.println("Bits/char on the last "+(text.length - from)+" symbols of the text: "+bits
+					+", in "+(System.nanoTime() - start) / 1_000_000+" ms.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println("Evaluation interrupted.");
+		}
+	}
+	
+	/**@return the position in the training text just before position*/
+	private static long before(long position){
+		return (position == 0 ? training.length : position) - 1;
+	}
+	
+	/**Offer a checkpoint if one is due after chunk i.*/
+	private static void checkpoint(Checkpointer checkpointer, int i){
+		if(checkpointer == null)
+			return;
+		boolean due = (checkpointFrequency > 0 && (i + 1) % checkpointFrequency == 0)
+				|| (checkpointSeconds > 0 && System.nanoTime() - lastCheckpoint >= checkpointSeconds * 1_000_000_000L);
+		if(due && checkpointer.offer((FlatRnn) currentRnn, offset))
+			lastCheckpoint = System.nanoTime();
+	}
+	
+	/**Truncated backpropagation through time along the text, TBPTT(k1, k2): every chunk slides a window of
+	 * chunkSize symbols on by k1 = bpttStride symbols and backpropagates through all k2 = chunkSize - 1 steps
+	 * of it. A bpttStride of 0 slides on by whole windows, which then share only their boundary symbol.
+	 * The hidden state is carried along the text by the learning itself, up to the symbol at offset, which
+	 * starts the next window.
+	 * */
+	private static void learn(int chunks){
+		int[] window = new int[chunkSize];
+		int steps = chunkSize - 1;
+		int stride = bpttStride > 0 && bpttStride < steps ? bpttStride : steps;
+		FlatRnn flat = currentRnn instanceof FlatRnn ? (FlatRnn) currentRnn : null;
+		if(stride < steps && (flat == null || !flat.truncates())){
+			System.out.println("This RNN only learns whole windows, ignoring bpttStride="+bpttStride+".");
+			stride = steps;
+		}
+		long position = offset;
 
 		System.out.append('\n');
-		for(int i = 0; i < chunks; i++){
-			
-			if((offset % blockSize) + chunkSize > blockSize){
-				loadTextBlock();
-				Matrix hmat = new ColumnVectorSparse(currentRnn.getHiddenSize());
-				currentRnn.setH(hmat);
+		startReport();
+		try(Checkpointer checkpointer = openCheckpointer();
+				Evaluator evaluator = openEvaluator()){
+			for(int i = 0; i < chunks; i++){
+				
+				// the first window starts over from the hidden state, the others slide on
+				int fresh = i == 0 ? steps : stride;
+				if(i == 0){
+					position = training.read(position, window);
+				}else{
+					System.arraycopy(window, fresh, window, 0, chunkSize - fresh);
+					position = training.read(position, window, chunkSize - fresh, fresh);
+				}
+				offset = before(position);
+				
+				if(flat != null)
+					flat.learnTruncated(window, fresh);
+				else
+					currentRnn.learn(window, window, currentRnn.getH());
+				
+				if(autoSampleFrequency > 0 && i % autoSampleFrequency == 0){
+					int[] seed = {text.symbolAt(offset)};
+					sample(autoSampleSize, seed);
+				}
+				report(i, chunks);
+				checkpoint(checkpointer, i);
+				if(evaluate(evaluator, i))
+					break;
 			}
-			
-			Matrix last = null;
-			for(int j = 0; j < chunkSize; j++){
-				int jk = (j + offset) % blockSize;
-				in[j] = textEncd[jk];
-				exout[j] = textEncd[jk];
-				if(j == chunkSize - 1)
-					last = textEncd[jk];
+			finishEvaluation(evaluator);
+		}
+
+	}
+	
+	private static void learnBatched(int chunks, int batch){
+		if(!(currentRnn instanceof FusedRnn)){
+			System.out.println("Batched learning requires a "+fusedCellStr+" RNN, learning one sequence at a time.");
+			learn(chunks);
+			return;
+		}
+		FusedRnn rnn = (FusedRnn) currentRnn;
+		
+		int[][] in = new int[batch][chunkSize];
+		long[] offsets = new long[batch];
+		for(int b = 0; b < batch; b++)
+			offsets[b] = (offset + b * (training.length / batch)) % training.length;
+		double[] h = new double[rnn.getHiddenSize() * batch];
+		
+		System.out.append('\n');
+		startReport();
+		try(Checkpointer checkpointer = openCheckpointer();
+				Evaluator evaluator = openEvaluator()){
+			for(int i = 0; i < chunks; i++){
+				// consecutive chunks of a sequence share the symbol its hidden state has yet to see
+				for(int b = 0; b < batch; b++){
+					if(i == 0){
+						offsets[b] = training.read(offsets[b], in[b]);
+					}else{
+						in[b][0] = in[b][chunkSize - 1];
+						offsets[b] = training.read(offsets[b], in[b], 1, chunkSize - 1);
+					}
+				}
+				offset = before(offsets[0]);
+				
+				rnn.learnBatch(in, in, h);
+				
+				if(autoSampleFrequency > 0 && i % autoSampleFrequency == 0){
+					int[] seed = {text.symbolAt(offset)};
+					sample(autoSampleSize, seed);
+				}
+				report(i, chunks);
+				checkpoint(checkpointer, i);
+				if(evaluate(evaluator, i))
+					break;
 			}
-			offset += chunkSize;
-			offset %= textLength;
-			
-			
-			currentRnn.learn(in, exout, currentRnn.getH());
-			currentRnn.step(last);
-			
-			if(autoSampleFrequency > 0 && i % autoSampleFrequency == 0){
-				Matrix[] seed = {asciiEncDec.encode(text[offset])};
-				sample(autoSampleSize, seed);
+			finishEvaluation(evaluator);
+		}
+	}
+	
+	private static void learnParallel(int rounds, int threads, boolean hogwild){
+		if(!(currentRnn instanceof FusedRnn)){
+			System.out.println("Parallel learning requires a "+fusedCellStr+" RNN, learning on one thread.");
+			learn(rounds);
+			return;
+		}
+		
+		System.out.append('\n');
+		startReport();
+		try(ParallelTrainer trainer = new ParallelTrainer((FusedRnn) currentRnn, threads, chunkSize, hogwild,
+				training::symbolAt, training.length, offset);
+				Checkpointer checkpointer = openCheckpointer();
+				Evaluator evaluator = openEvaluator()){
+			for(int i = 0; i < rounds; i++){
+				trainer.round();
+				offset = trainer.getOffset();
+				
+				if(autoSampleFrequency > 0 && i % autoSampleFrequency == 0){
+					int[] seed = {text.symbolAt(offset)};
+					sample(autoSampleSize, seed);
+				}
+				report(i, rounds);
+				checkpoint(checkpointer, i);
+				if(evaluate(evaluator, i))
+					break;
 			}
-			System.out.append("Loss/step: ").append(Double.toString(currentRnn.getLastLoss()));
-			
-			System.out.append('\n');
-			System.out.flush();
+			finishEvaluation(evaluator);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println("Learning interrupted.");
 		}
-
 	}
 	
-	private static void write(String filename, int chars, Matrix[] seed){
+	private static void startReport(){
+		reportTime = System.nanoTime();
+		reportSymbols = Metrics.learnedSymbols();
+		reportGcMillis = Metrics.gcMillis();
+		reportLoss = 0;
+		reportChunks = 0;
+	}
+	
+	/**Note the loss of chunk i of chunks, and print the mean loss per step, the symbols learned per second
+	 * and the time collecting garbage per second since the last report every printFrequency chunks, and
+	 * after the last one. Printing every chunk slows down learning from small chunks.
+	 * */
+	private static void report(int i, int chunks){
+		reportLoss += currentRnn.getLastLoss();
+		reportChunks++;
+		if(!(printFrequency > 0 && (i + 1) % printFrequency == 0) && i + 1 != chunks)
+			return;
+		
+		long now = System.nanoTime(), symbols = Metrics.learnedSymbols(), gcMillis = Metrics.gcMillis();
+		double seconds = Math.max(now - reportTime, 1) / 1e9;
+		System.out.append("Loss/step: ").append(Double.toString(reportLoss / reportChunks));
+		System.out.append(", symbols/s: ").append(Long.toString((long) ((symbols - reportSymbols) / seconds)));
+		System.out.append(", GC ms/s: ").append(Long.toString((long) ((gcMillis - reportGcMillis) / seconds)));
+		System.out.append('\n');
+		System.out.flush();
+		
+		reportTime = now;
+		reportSymbols = symbols;
+		reportGcMillis = gcMillis;
+		reportLoss = 0;
+		reportChunks = 0;
+	}
+	
+	private static void write(String filename, int chars, int[] seed){
 		if(!filename.endsWith(".txt"))
 			filename = filename + ".txt";
 		
-		try(ByteArrayOutputStream bs = new ByteArrayOutputStream()){
-			try(PrintStream ps = new PrintStream(bs)){
-				sample(chars, seed, ps);
-				ps.flush();
-				bs.flush();
-				byte[] bytes = bs.toByteArray();
-				Files.write(FileSystems.getDefault().getPath(filename), bytes);
-			}
+		try(FileChannel channel = FileChannel.open(FileSystems.getDefault().getPath(filename),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+			sample(chars, seed, channel);
 		} catch (IOException e) {
 			System.err.print("Error: Could not write to file ");
 			System.err.print(filename);
@@ -245,33 +797,203 @@ public class RnnMain {
 			System.err.println();
 			return;
 		}
-		System.out.println("Wrote "+chars+" characters to '"+filename+"'.");
+		System.out.println("Wrote "+chars+" symbols to '"+filename+"'.");
 	}
 	
-	private static void sample(int chars, Matrix[] seed){
-		sample(chars, seed, System.out);
+	private static void sample(int chars, int[] seed){
+		try{
+			sample(chars, seed, Channels.newChannel(System.out));
+		} catch (IOException e) {
+			System.err.print("Error: Could not sample due to ");
+			System.err.print(e.toString());
+			System.err.println();
+		}
+		System.out.flush();
 	}
 	
-	
-	private static void sample(int chars, Matrix[] seed, PrintStream out){
+	/**Stream the seed and chars sampled symbols to out as they are drawn, from a fresh hidden state.
+	 * Leaves the hidden state of the current RNN alone. Draws only from the topK most likely symbols
+	 * and the most likely ones holding topPercent of the probability, where set. Seeds are primed through
+	 * the prefix cache, so repeated or extended seeds only feed what is new.
+	 * */
+	private static void sample(int chars, int[] seed, WritableByteChannel out) throws IOException {
+		long start = System.nanoTime();
+		writeFully(out, ("\ntraining steps = "+currentRnn.getLearnedSteps()+"\n").getBytes());
 		
-		out.append('\n');
-		out.append("training steps = ");
-		out.append(Long.toString(currentRnn.getLearnedSteps()));
-		out.append('\n');
-
-		Matrix h = new ColumnVectorDense(currentRnn.getHiddenSize());
+		Session session = new Session(currentRnn, System.nanoTime());
+		session.setTopK(Math.max(0, topK));
+		session.setTopP(Math.max(1, Math.min(100, topPercent)) / 100.0);
+		prime(session, seed);
+		writeFully(out, vocabulary.decode(seed));
+		session.write(out, vocabulary, chars);
 		
-		List<Matrix> res = currentRnn.sample(h, seed, chars);
-		Byte b;
-		for(Matrix r : res){
-			b = asciiEncDec.decodeMax(r);
-			out.write(b);
+		writeFully(out, new byte[]{'\n', '\n'});
+		Metrics.SAMPLE.since(start);
+	}
+	
+	/**Print the most likely continuation of seed, of up to chars symbols, found greedily for a width
+	 * of one and by beam search otherwise. Stops early at the symbol of the byte completeStop, if set.
+	 * */
+	private static void complete(int chars, int width, int[] seed){
+		long start = System.nanoTime();
+		int stop = completeStop >= 0 ? vocabulary.match(new byte[]{(byte) completeStop}, 0, 1) : -1;
+		int[] decoded;
+		if(width > 1 && currentRnn instanceof QuantizedRnn){
+			System.out.println("Beam search requires an RNN that is not quantized, completing greedily.");
+			width = 1;
+		}
+		if(width <= 1){
+			Session session = new Session(currentRnn, 0);
+			prime(session, seed);
+			int n = 0;
+			decoded = new int[chars];
+			while(n < chars && (n == 0 || decoded[n-1] != stop))
+				decoded[n++] = session.nextGreedy();
+			decoded = Arrays.copyOf(decoded, n);
+		}else{
+			// beams are advanced as a batch, which needs the flat layout
+			FlatRnn model = currentRnn instanceof FlatRnn ? (FlatRnn) currentRnn : FusedRnn.of((MinimalRnn) currentRnn);
+			BeamDecoder decoder = new BeamDecoder(model, width);
+			decoder.setStop(stop);
+			decoder.setLengthPenalty(Math.max(0, lengthPenaltyPercent) / 100.0);
+			decoded = decoder.decode(seed, chars);
 		}
 		
-		out.append('\n');
-		out.append('\n');
-
+		StringBuilder builder = new StringBuilder();
+		builder.append(new String(vocabulary.decode(seed), StandardCharsets.ISO_8859_1));
+		builder.append(new String(vocabulary.decode(decoded), StandardCharsets.ISO_8859_1));
+		System.out.println(builder.toString());
+		Metrics.SAMPLE.since(start);
+	}
+	
+	/**Feed seed to a fresh session, through the prefix cache unless it is disabled by a prefixCacheSize of 0.
+	 * */
+	private static void prime(Session session, int[] seed){
+		if(prefixCacheSize <= 0){
+			prefixCache = null;
+			session.feed(seed);
+			return;
+		}
+		if(prefixCache == null || prefixCache.getCapacity() != prefixCacheSize)
+			prefixCache = new PrefixCache(prefixCacheSize);
+		prefixCache.prime(session, seed);
+	}
+	
+	/**Switch the current RNN to the optimizer and schedule set by optimizer, schedule, warmupUpdates and
+	 * halfLifeUpdates. Switching optimizers starts the new one from zero at its default learning rate, as neither
+	 * the state nor the rate of one means anything to another.
+	 * */
+	private static void configureOptimizer(){
+		FlatRnn model = currentRnn instanceof FlatRnn ? (FlatRnn) currentRnn : null;
+		if(model == null || model.getOptimizer() == null){
+			if(optimizer != Optimizer.ADAGRAD)
+				System.out.println("This RNN only learns with "+Optimizer.name(Optimizer.ADAGRAD)+", ignoring optimizer="+Optimizer.key(optimizer)+".");
+			return;
+		}
+		try{
+			if(model.optimizerType() != optimizer){
+				model.setOptimizer(optimizer);
+				model.setLearningRate(Optimizer.defaultRate(optimizer));
+				System.out.println("Switched to "+Optimizer.name(optimizer)+" at its default learning rate "+model.getLearningRate()+", discarding the state of the previous optimizer.");
+			}
+			model.getOptimizer().setSchedule(schedule, warmupUpdates, halfLifeUpdates);
+		}catch(IllegalArgumentException e){
+			System.err.print("Error: Could not configure the optimizer due to ");
+			System.err.print(e.toString());
+			System.err.println();
+		}
+	}
+	
+	/**Drop the primed states of a replaced RNN, which can never be hit again.
+	 * */
+	private static void forgetPrefixes(){
+		if(prefixCache != null)
+			prefixCache.clear();
+	}
+	
+	private static void writeFully(WritableByteChannel out, byte[] bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while(buffer.hasRemaining())
+			out.write(buffer);
+	}
+	
+	/**Serve the current RNN on port, replacing any running server, or just stop serving for port 0.*/
+	private static void serve(int port){
+		if(server != null){
+			try {
+				server.close();
+			} catch (IOException e) {
+				System.err.print("Error: Could not stop server due to ");
+				System.err.print(e.toString());
+				System.err.println();
+			}
+			server = null;
+			System.out.println("Stopped serving.");
+		}
+		if(port == 0)
+			return;
+		if(currentRnn == null){
+			System.out.println("Cannot serve: No RNN loaded.");
+			return;
+		}
+		if(!checkVocabulary("serve"))
+			return;
+		// a minimal RNN keeps its state in its weights' Matrix objects, so serve a fused copy of it
+		Rnn model = currentRnn instanceof MinimalRnn ? FusedRnn.of((MinimalRnn) currentRnn) : currentRnn;
+		if(serveBatch > 0 && !(model instanceof FlatRnn))
+			System.out.println("Batches require an RNN that is not quantized, stepping every client on its own.");
+		try {
+			server = new SamplingServer(model, vocabulary, port, serveBatch, Math.max(0, prefixCacheSize));
+		} catch (IOException e) {
+			System.err.print("Error: Could not serve on port ");
+			System.err.print(port);
+			System.err.print(" due to ");
+			System.err.print(e.toString());
+			System.err.println();
+			return;
+		}
+		System.out.println("Serving on localhost:"+server.getPort()+".");
+	}
+	
+	/**Rewrite the file at filename with the metrics every metricsSeconds seconds, replacing any previous
+	 * export, or write it just once for metricsSeconds of 0. Without a filename, print the metrics instead.
+	 * */
+	private static void exportMetrics(String filename){
+		if(filename == null){
+			System.out.print(Metrics.prometheus());
+			return;
+		}
+		stopMetrics();
+		Path path = FileSystems.getDefault().getPath(filename);
+		if(metricsSeconds <= 0){
+			try {
+				Metrics.write(path);
+			} catch (IOException e) {
+				System.err.print("Error: Could not write metrics to file ");
+				System.err.print(filename);
+				System.err.print(" due to ");
+				System.err.print(e.toString());
+				System.err.println();
+				return;
+			}
+			System.out.println("Wrote metrics to '"+filename+"'.");
+			return;
+		}
+		metricsExport = Metrics.export(path, metricsSeconds);
+		metricsPath = filename;
+		System.out.println("Writing metrics to '"+filename+"' every "+metricsSeconds+" seconds.");
+	}
+	
+	private static void stopMetrics(){
+		if(metricsExport == null)
+			return;
+		try {
+			metricsExport.close();
+		} catch (Exception e) {
+			System.err.println("Warning: Could not stop exporting metrics due to " + e.toString());
+		}
+		metricsExport = null;
+		metricsPath = "";
 	}
 	
 	private static void status(){
@@ -287,6 +1009,10 @@ public class RnnMain {
 		if(currentRnn != null){
 			builder.append("size=").append(currentRnn.getHiddenSize());
 			builder.append('\n');
+			builder.append("layers=").append(currentRnn instanceof FlatRnn ? ((FlatRnn) currentRnn).layers() : 1);
+			builder.append('\n');
+			builder.append("quantized=").append(currentRnn instanceof QuantizedRnn);
+			builder.append('\n');
 			builder.append("steps=").append(currentRnn.getLearnedSteps());
 			builder.append('\n');
 			builder.append("current loss=").append(currentRnn.getLastLoss());
@@ -295,6 +1021,11 @@ public class RnnMain {
 			builder.append('\n');
 			builder.append("learningrate=").append(currentRnn.getLearningRate());
 			builder.append('\n');
+			Optimizer current = currentRnn instanceof FlatRnn ? ((FlatRnn) currentRnn).getOptimizer() : null;
+			builder.append("optimizer=").append(Optimizer.name(current != null ? current.type : Optimizer.ADAGRAD));
+			builder.append('\n');
+			builder.append("updates=").append(current != null ? current.getUpdates() : 0);
+			builder.append('\n');
 		}else{
 			builder.append("null");
 			builder.append('\n');
@@ -305,7 +1036,54 @@ public class RnnMain {
 		builder.append('\n');
 		builder.append("path=").append(textPath);
 		builder.append('\n');
-		builder.append("length=").append(textLength);
+		builder.append("length=").append(text != null ? text.length : 0);
+		builder.append('\n');
+		builder.append("tokens=").append(text != null && text.isTokens());
+		builder.append('\n');
+		builder.append('\n');
+		builder.append("[Validation]");
+		builder.append('\n');
+		builder.append("symbols=").append(validationSymbols());
+		builder.append('\n');
+		builder.append("bits=").append(validation != null ? validation.bits : Double.NaN);
+		builder.append('\n');
+		builder.append("best=").append(validation != null ? validation.bestBits : Double.NaN);
+		builder.append('\n');
+		builder.append("bestStep=").append(validation != null ? validation.bestSteps : 0);
+		builder.append('\n');
+		builder.append('\n');
+		builder.append("[Vocabulary]");
+		builder.append('\n');
+		builder.append("size=").append(vocabulary.size);
+		builder.append('\n');
+		builder.append("maxLength=").append(vocabulary.maxLength);
+		builder.append('\n');
+		builder.append("hash=").append(Long.toHexString(vocabulary.hash));
+		builder.append('\n');
+		builder.append('\n');
+		builder.append("[PrefixCache]");
+		builder.append('\n');
+		builder.append("size=").append(prefixCache != null ? prefixCache.size() : 0);
+		builder.append('\n');
+		builder.append("hits=").append(prefixCache != null ? prefixCache.getHits() : 0);
+		builder.append('\n');
+		builder.append("reuse=").append(prefixCache != null ? prefixCache.getReuse() : 0);
+		builder.append('\n');
+		builder.append('\n');
+		builder.append("[Metrics]");
+		builder.append('\n');
+		builder.append("jmx=").append(Metrics.JMX_NAME);
+		builder.append('\n');
+		builder.append("file=").append(metricsPath);
+		builder.append('\n');
+		builder.append("learned=").append(Metrics.learnedSymbols());
+		builder.append('\n');
+		builder.append('\n');
+		builder.append("[Server]");
+		builder.append('\n');
+		builder.append("port=").append(server != null ? server.getPort() : 0);
+		builder.append('\n');
+		builder.append("sessions=").append(server != null ? server.getSessions() : 0);
 		builder.append('\n');
 		builder.append('\n');
 		System.out.println(builder.toString());
@@ -314,42 +1092,81 @@ public class RnnMain {
 	public static void main(String[] args) {
 		System.out.println("Loading...");
 		
-		initEncDec();
+		vocabulary = Vocabulary.ascii();
 		System.out.println("...");
 		
 		loadSettings();
 		System.out.println("...");
 		
+		try {
+			Metrics.register();
+		} catch (JMException e) {
+			System.err.print("Error: Could not register metrics with JMX due to ");
+			System.err.print(e.toString());
+			System.err.println();
+		}
+		
 		CLI.greeting = "RnnMain: Ready.";
 		CLI.registerCommmands(
 				new CommandGet(SETTING_MAP),
 				new CommandSet(SETTING_MAP),
 				Command.create(statusStr, "", "Prints the current status of the RNN", (strings) -> status()),
-				Command.create(learnStr, "<n>", "Learn from currently loaded text file for <n> chunks.", (strings) -> {
-					if(currentRnn != null){
-						if(text != null)
-							learn(Integer.parseInt(strings[0]));
-						else
+				Command.create(learnStr, "<n> [<threads> ["+hogwildStr+"]]", "Learn from currently loaded text file for <n> chunks, or <n> chunks per thread when using several <threads> (default learnThreads). With "+hogwildStr+", threads update the weights without synchronizing. On one thread, learns batchSize sequences at once, or a single sequence sliding on by bpttStride symbols per chunk while backpropagating through the whole chunk. Prints the mean loss and the throughput every printFrequency chunks. Leaves out the last validationPercent of the text, see "+evalStr+".", (strings) -> {
+					if(currentRnn instanceof QuantizedRnn){
+						System.out.println("Cannot learn: A quantized RNN only samples.");
+					}else if(currentRnn != null){
+						if(text != null){
+							int chunks = Integer.parseInt(strings[0]);
+							int threads = (strings.length > 1) ? Integer.parseInt(strings[1]) : learnThreads;
+							boolean hogwild = strings.length > 2 && hogwildStr.equals(strings[2]);
+							configureOptimizer();
+							if(!checkVocabulary("learn"))
+								return;
+							if(!textFitsVocabulary()){
+								System.out.println("Cannot learn: Text was read with another vocabulary, read it again.");
+								return;
+							}
+							if(chunkSize < 2){
+								System.out.println("Cannot learn: chunkSize must be at least 2.");
+								return;
+							}
+							training = text.head(text.length - validationSymbols());
+							if(offset >= training.length)
+								offset = 0;
+							if(threads > 1)
+								learnParallel(chunks, threads, hogwild);
+							else if(batchSize > 1)
+								learnBatched(chunks, batchSize);
+							else
+								learn(chunks);
+						}else
 							System.out.println("Cannot learn: No text loaded.");
 					}else{
 						System.out.println("Cannot learn: No RNN loaded.");
 					}}),
 				Command.create(loadStr,"<filename>","Discards the current RNN and loads the one stored in <filename>.", strings -> loadRnn(strings[0])),
-				Command.create(createStr, "<h>", "Discards the current RNN and creates an untrained RNN with <h> hidden internal states.", strings -> createRnn(Integer.parseInt(strings[0]))),
+				Command.create(convertStr, "<from> <to>", "Converts the Java-serialized RNN in <from> into a binary snapshot in <to>, leaving the current RNN alone.", strings -> convertRnn(strings[0], strings[1])),
+				Command.create(quantizeStr, "<from> <to>", "Quantizes the weights of the "+fusedCellStr+", "+floatCellStr+", "+mixedCellStr+" or "+minimalCellStr+" RNN in <from> to 8 bits into an RNN in <to> that only samples, in about an eighth of the memory, leaving the current RNN alone. Compares the perplexity before and after on the last heldOutSymbols symbols of the loaded text.", strings -> quantizeRnn(strings[0], strings[1])),
+				Command.create(createStr, "<h> [<cell>]", "Discards the current RNN and creates an untrained RNN with <h> hidden internal states, using the cell type <cell>, or "+minimalCellStr+". Cell types are "+minimalCellStr+", "+fusedCellStr+", "+floatCellStr+" (single precision), "+mixedCellStr+" (single precision with double precision Adagrad memories), the gated "+lstmCellStr+" and "+gruCellStr+", which learn long-range structure at smaller sizes, and "+stackedCellStr+", with the number of layers set by layers, each learning on its own thread.",
+						strings -> createRnn(Integer.parseInt(strings[0]), (strings.length > 1) ? strings[1] : minimalCellStr)),
 				Command.create(sampleStr, "<n> [<chars>]", "Samples and prints <n> characters from the RNN, starting from the seed characters <chars>, or newline.", strings -> {
 					if(currentRnn != null){
 						int samples = Integer.parseInt(strings[0]);
 						String seedStr = (strings.length > 1) ? strings[1] : "\n";
-						byte[] seeds = seedStr.getBytes();
-						Matrix[] seed = new Matrix[seedStr.length()];
-						for(int i = 0; i < seeds.length; i++){
-							seed[i] = asciiEncDec.encode(seeds[i]);
-						}
-						sample(samples, seed);
+						if(checkVocabulary("sample"))
+							sample(samples, encodeSeed(seedStr));
 					}else{
 						System.out.println("Cannot sample: No RNN loaded.");
 					}}),
-				Command.create(storeStr,"<filename>","Stores the current RNN in <filename>.", strings -> {
+				Command.create(completeStr, "<n> <width> [<chars>]", "Prints the most likely continuation of up to <n> characters of the seed characters <chars>, or newline, keeping <width> hypotheses at each step, or picking the most likely character for a width of 1. Stops at the character with code completeStop if set, comparing hypotheses of different lengths with a length penalty of lengthPenaltyPercent.", strings -> {
+					if(currentRnn != null){
+						String seedStr = (strings.length > 2) ? strings[2] : "\n";
+						if(checkVocabulary("complete"))
+							complete(Integer.parseInt(strings[0]), Integer.parseInt(strings[1]), encodeSeed(seedStr));
+					}else{
+						System.out.println("Cannot complete: No RNN loaded.");
+					}}),
+				Command.create(storeStr,"<filename>","Stores the current RNN in <filename> as a binary snapshot, a "+minimalCellStr+" RNN as the "+fusedCellStr+" RNN with the same weights.", strings -> {
 					if(currentRnn != null){
 						storeRnn(strings[0]);
 					}else{
@@ -371,19 +1188,35 @@ public class RnnMain {
 					}else
 						System.out.println("Cannot set learning rate: no RNN loaded.");
 				}),
-				Command.create(readStr, "<filename>", "Reads the file <filename> and sets it to be used as input for the RNN.", strings -> loadText(strings[0])),
+				Command.create(serveStr, "<port>", "Serves samples of the current RNN to clients on localhost:<port>, each with its own hidden state, until serving again or on port 0. With serveBatch above 0, advances up to serveBatch clients together. Clients send lines of '<n> <temperature> <seed>' and receive <n> characters.",
+						strings -> serve(Integer.parseInt(strings[0]))),
+				Command.create(metricsStr, "[<filename>]", "Rewrites <filename> with the metrics of learning and sampling in the Prometheus text format every metricsSeconds seconds, or once for metricsSeconds=0, or prints them without <filename>. The metrics are also registered with JMX as "+Metrics.JMX_NAME+".",
+						strings -> exportMetrics(strings.length > 0 ? strings[0] : null)),
+				Command.create(evalStr, "", "Prints the bits per character of the current RNN on the last validationPercent of the loaded text, which learning leaves out, or on all of it for a validationPercent of 0, scoring it on evalThreads threads. While learning, the RNN is evaluated the same way in the background every evalFrequency chunks or evalSeconds seconds, keeping the best one in <checkpoint prefix>-best.rnn unless keepBest is 0, and stopping once evalPatience evaluations in a row did not improve on it.", strings -> {
+					if(currentRnn == null)
+						System.out.println("Cannot evaluate: No RNN loaded.");
+					else if(text == null)
+						System.out.println("Cannot evaluate: No text loaded.");
+					else if(checkVocabulary("evaluate")){
+						if(textFitsVocabulary())
+							evaluateRnn();
+						else
+							System.out.println("Cannot evaluate: Text was read with another vocabulary, read it again.");
+					}}),
+				Command.create(readStr, "<filename>", "Reads the file <filename> and sets it to be used as input for the RNN, encoding it with the current vocabulary into <filename>.tok unless that is up to date.", strings -> loadText(strings[0])),
+				Command.create(vocabStr, "<size>", "Learns a vocabulary of <size> symbols, from 256 to "+Vocabulary.MAX_SIZE+", by merging the most frequent pairs of symbols in the first vocabSample bytes of the loaded text, and reads the text anew with it. Each symbol stands for up to "+Vocabulary.MAX_LENGTH+" bytes, so every step covers more text. A <size> of 0 goes back to the byte alphabet. The vocabulary is stored next to the RNN and its checkpoints, and RNNs must be created anew for it.", strings -> {
+					if(text != null)
+						learnVocabulary(Integer.parseInt(strings[0]));
+					else
+						System.out.println("Cannot learn a vocabulary: No text loaded.");
+					}),
 				Command.create(writeStr,"<filename> [<n> [<chars>]]","Samples <n> characters from the RNN, starting from the seed characters <chars>, or newline, writing them to <filename>.", strings -> {
 					if(currentRnn != null){
 						int chars = (strings.length > 1) ? Integer.parseInt(strings[1]) : autoSampleSize;
 						
 						String seedStr = (strings.length > 2) ?  strings[2] : "\n\n";
-						byte[] seeds = seedStr.getBytes();
-						Matrix[] seed = new Matrix[seedStr.length()];
-						for(int i = 0; i < seeds.length; i++){
-							seed[i] = asciiEncDec.encode(seeds[i]);
-						}
-						
-						write(strings[0], chars, seed);
+						if(checkVocabulary("write"))
+							write(strings[0], chars, encodeSeed(seedStr));
 					}else{
 						System.out.println("Cannot write: No RNN loaded.");
 					}})
@@ -0,0 +1,170 @@
+package ch.dajay42.rnn;
+
+/**The sampling kernel shared by every model and by {@link RnnEncDec}: draws an index from softmax(beta * y),
+ * optionally restricted to the k most likely entries (top-k), and to the fewest most likely entries that
+ * together hold a share p of the probability mass (nucleus or top-p).
+ * <p>
+ * The maximum is subtracted before exponentiating, so large scores never overflow. The distribution is never
+ * normalized; the uniform draw is scaled by the sum instead. Truncation partially orders the candidates by
+ * quickselect, in expected linear time, and never sorts them. Nothing is allocated per draw, the scratch for
+ * the candidate order lives in the instance, which is thus not safe for use by several threads at once.
+ * */
+final class Sampler {
+
+	private final int[] order;
+
+	private int topK = 0;
+	private double topP = 1;
+
+	/**@param size the largest number of entries to sample from*/
+	Sampler(int size){
+		order = new int[size];
+	}
+
+	/**@param k number of most likely entries to sample from, or 0 for all of them*/
+	void setTopK(int k){
+		if(k < 0)
+			throw new IllegalArgumentException("Argument must not be negative");
+		topK = k;
+	}
+
+	/**@param p share of the probability mass to sample from, in (0,1]; 1 samples from all entries*/
+	void setTopP(double p){
+		if(!(p > 0 && p <= 1))
+			throw new IllegalArgumentException("Argument must be in (0,1]");
+		topP = p;
+	}
+
+	/**Draw an index from softmax(beta * y), restricted as configured. Overwrites y.
+	 * @param uniform a uniform random number in [0,1)
+	 * */
+	int draw(double[] y, int length, double beta, double uniform){
+		int m = topK > 0 && topK < length ? topK : length;
+		if(m == length && topP >= 1)
+			return sample(y, length, beta, uniform);
+
+		for(int i = 0; i < length; i++)
+			order[i] = i;
+		if(m < length)
+			select(y, order, m, length);
+
+		double max = Double.NEGATIVE_INFINITY;
+		for(int c = 0; c < m; c++)
+			if(y[order[c]] > max) max = y[order[c]];
+		double sum = 0;
+		for(int c = 0; c < m; c++){
+			int k = order[c];
+			double e = Math.exp(beta * (y[k] - max));
+			y[k] = e;
+			sum += e;
+		}
+
+		if(topP < 1){
+			m = nucleus(y, order, m, topP * sum);
+			sum = 0;
+			for(int c = 0; c < m; c++)
+				sum += y[order[c]];
+		}
+
+		double selection = uniform * sum;
+		for(int c = 0; c < m; c++){
+			selection -= y[order[c]];
+			if(selection < 0)
+				return order[c];
+		}
+		return order[m - 1];
+	}
+
+	/**Draw an index from the full distribution softmax(beta * y), without allocating.
+	 * Overwrites y with the unnormalized probabilities.
+	 * @param uniform a uniform random number in [0,1)
+	 * */
+	static int sample(double[] y, int length, double beta, double uniform){
+		double max = Double.NEGATIVE_INFINITY;
+		for(int k = 0; k < length; k++)
+			if(y[k] > max) max = y[k];
+		double sum = 0;
+		for(int k = 0; k < length; k++){
+			double e = Math.exp(beta * (y[k] - max));
+			y[k] = e;
+			sum += e;
+		}
+		double selection = uniform * sum;
+		for(int k = 0; k < length; k++){
+			selection -= y[k];
+			if(selection < 0)
+				return k;
+		}
+		return length - 1;
+	}
+
+	/**@return the index of the largest of the first length entries of y, the first one on ties*/
+	static int argmax(double[] y, int length){
+		int best = 0;
+		for(int k = 1; k < length; k++)
+			if(y[k] > y[best]) best = k;
+		return best;
+	}
+
+	/**Reorder order[0, length) so that the k indices with the largest weights come first, in no particular order.
+	 * */
+	static void select(double[] w, int[] order, int k, int length){
+		int left = 0, right = length - 1, kth = k - 1;
+		while(left < right){
+			int p = partition(w, order, left, right);
+			if(p == kth)
+				return;
+			if(p < kth)
+				left = p + 1;
+			else
+				right = p - 1;
+		}
+	}
+
+	/**Reorder order[0, m) so that the fewest indices whose weights sum to at least threshold come first.
+	 * @return their number
+	 * */
+	private static int nucleus(double[] w, int[] order, int m, double threshold){
+		int left = 0, right = m - 1;
+		double need = threshold;
+		while(left < right){
+			int p = partition(w, order, left, right);
+			double above = 0;
+			for(int c = left; c < p; c++)
+				above += w[order[c]];
+			if(above >= need){
+				right = p - 1; // the entries above the pivot suffice
+			}else if(above + w[order[p]] >= need){
+				return p + 1;
+			}else{
+				need -= above + w[order[p]];
+				left = p + 1;
+			}
+		}
+		return Math.min(left + 1, m);
+	}
+
+	/**Partition order[left, right] around the median of three weights, larger weights first.
+	 * @return the final position of the pivot
+	 * */
+	private static int partition(double[] w, int[] order, int left, int right){
+		int mid = (left + right) >>> 1;
+		double a = w[order[left]], b = w[order[mid]], c = w[order[right]];
+		int pivot = (a < b) == (b < c) ? mid : ((b < a) == (a < c) ? left : right);
+		swap(order, pivot, right);
+		double value = w[order[right]];
+		int store = left;
+		for(int i = left; i < right; i++){
+			if(w[order[i]] > value)
+				swap(order, i, store++);
+		}
+		swap(order, store, right);
+		return store;
+	}
+
+	private static void swap(int[] a, int i, int j){
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+}
@@ -0,0 +1,158 @@
+package ch.dajay42.rnn;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**Serves samples of one shared model to many clients over TCP on the loopback interface.
+ * <p>
+ * Every connection gets its own {@link Session}, so clients never see each other's hidden state, and
+ * the weights are held in memory once no matter how many clients there are. The protocol is line based:
+ * the client sends {@code <n> <temperature> <seed>}, where the seed is the rest of the line, and the
+ * server answers with the bytes of exactly n sampled symbols. A session keeps its state across requests
+ * on the same connection, so an empty seed continues where the last answer left off. A first request
+ * without a seed starts from a newline.
+ * <p>
+ * With a {@link GenerationScheduler}, the sessions of all clients are advanced together in batches,
+ * and answers are written in chunks as they are completed. With a {@link PrefixCache}, the first seed of
+ * every connection is primed through it, so clients sending the same prompts share the work of feeding them.
+ * <p>
+ * The weights are read without locking. Serving a model while it is learning thus works, with clients
+ * seeing the weights as they are being updated.
+ * */
+final class SamplingServer implements AutoCloseable {
+
+	private final Rnn model;
+	private final Vocabulary vocabulary;
+
+	private final ServerSocket socket;
+	private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "rnn-session");
+		t.setDaemon(true);
+		return t;
+	});
+	private final AtomicInteger active = new AtomicInteger();
+	private final GenerationScheduler scheduler;
+	private final PrefixCache prefixes;
+
+	private static final int CHUNK_SIZE = 4096;
+
+	/**@param vocabulary the symbols of model, encoding the seeds and decoding the answers
+	 * @param port port to listen on, or 0 for any free port
+	 * @param batch maximum number of sessions advanced together, or 0 to step each session on its own;
+	 * only a {@link FlatRnn} advances sessions together
+	 * @param cacheSize maximum number of primed seeds kept, or 0 to prime every seed anew
+	 * */
+	SamplingServer(Rnn model, Vocabulary vocabulary, int port, int batch, int cacheSize) throws IOException {
+		this.model = model;
+		this.vocabulary = vocabulary;
+		scheduler = batch > 0 && model instanceof FlatRnn ? new GenerationScheduler((FlatRnn) model, batch) : null;
+		prefixes = cacheSize > 0 ? new PrefixCache(cacheSize) : null;
+		socket = new ServerSocket();
+		socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		connections.execute(this::accept);
+	}
+
+	int getPort(){
+		return socket.getLocalPort();
+	}
+
+	/**@return the number of currently connected clients*/
+	int getSessions(){
+		return active.get();
+	}
+
+	private void accept(){
+		while(!socket.isClosed()){
+			try {
+				Socket client = socket.accept();
+				connections.execute(() -> serve(client));
+			} catch (SocketException e) {
+				return; // closed
+			} catch (IOException e) {
+				System.err.print("Error: Could not accept connection due to ");
+				System.err.print(e.toString());
+				System.err.println();
+			}
+		}
+	}
+
+	private void serve(Socket client){
+		active.incrementAndGet();
+		try(Socket c = client;
+			BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), StandardCharsets.ISO_8859_1));
+			OutputStream out = new BufferedOutputStream(c.getOutputStream())){
+			Session session = new Session(model, System.nanoTime() ^ c.getPort());
+			String line;
+			while((line = in.readLine()) != null){
+				long start = System.nanoTime();
+				String[] request = line.split(" ", 3);
+				int n = Integer.parseInt(request[0]);
+				if(request.length > 1)
+					session.setTemperature(Double.parseDouble(request[1]));
+				int[] seed = vocabulary.encode(request.length > 2 ? request[2].getBytes(StandardCharsets.ISO_8859_1) : new byte[0]);
+				if(seed.length == 0 && !session.isPrimed())
+					seed = vocabulary.encode(new byte[]{'\n'});
+				if(prefixes != null && !session.isPrimed()){
+					prefixes.prime(session, seed);
+					seed = new int[0];
+				}
+
+				if(scheduler != null){
+					generate(session, seed, n, out);
+				}else{
+					session.feed(seed);
+					for(int i = 0; i < n; i++)
+						out.write(vocabulary.bytes(session.next()));
+				}
+				out.flush();
+				Metrics.SAMPLE.since(start);
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (IOException | ExecutionException | RuntimeException e) {
+			System.err.print("Error: Could not serve client due to ");
+			System.err.print(e.toString());
+			System.err.println();
+		} finally {
+			active.decrementAndGet();
+		}
+	}
+
+	/**Generate n symbols through the scheduler, writing them in chunks as they complete.
+	 * */
+	private void generate(Session session, int[] seed, int n, OutputStream out)
+			throws IOException, InterruptedException, ExecutionException {
+		int[] chunk = new int[Math.min(n, CHUNK_SIZE)];
+		ByteBuffer bytes = ByteBuffer.allocate(chunk.length * vocabulary.maxLength);
+		int[] filled = new int[1];
+		int written = 0;
+		do {
+			int length = Math.min(n - written, CHUNK_SIZE);
+			filled[0] = 0;
+			scheduler.submit(session, seed, length, symbol -> chunk[filled[0]++] = symbol).get();
+			bytes.clear();
+			vocabulary.decode(chunk, 0, length, bytes);
+			out.write(bytes.array(), 0, bytes.position());
+			written += length;
+			seed = new int[0];
+		} while(written < n);
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+		if(scheduler != null)
+			scheduler.close();
+		connections.shutdownNow();
+	}
+}
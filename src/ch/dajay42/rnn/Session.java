@@ -0,0 +1,217 @@
+package ch.dajay42.rnn;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.SplittableRandom;
+
+/**One generation stream over a shared {@link Rnn}.
+ * <p>
+ * The session owns its hidden state, output buffer, temperature and random number generator, and only
+ * reads the weights of the model. Any number of sessions may thus sample from one model at the same time,
+ * each from its own thread, without copying the weights. A single session is not safe for use by several
+ * threads at once.
+ * */
+final class Session {
+
+	private final Rnn model;
+	private final SplittableRandom random;
+
+	private double[] h;
+	private double[] hNext;
+	private final double[] y;
+	private boolean primed = false;
+	private ByteBuffer buffer; //reused by write
+	private int[] drawn; //symbols of the buffer, reused by write
+	private final Sampler sampler;
+
+	/**inverse of prediction Temperature*/
+	private double beta;
+
+	/**@param seed seed of the random number generator, so that a session can be replayed
+	 * */
+	Session(Rnn model, long seed){
+		this.model = model;
+		random = new SplittableRandom(seed);
+		h = new double[model.getStateSize()];
+		hNext = new double[h.length];
+		y = new double[model.getVocabSize()];
+		sampler = new Sampler(y.length);
+		beta = 1 / model.getTemperature();
+	}
+
+	Rnn getModel(){
+		return model;
+	}
+
+	/**Advance the hidden state by one symbol, without sampling.
+	 * */
+	void feed(int symbol){
+		model.forward(symbol, h, hNext, y);
+		double[] t = h;
+		h = hNext;
+		hNext = t;
+		primed = true;
+	}
+
+	/**Feed every symbol of seed in order.
+	 * */
+	void feed(int[] seed){
+		for(int symbol : seed)
+			feed(symbol);
+	}
+
+	/**Draw the next symbol from the output of the last one fed, and feed it back.
+	 * @return the index of the drawn symbol
+	 * */
+	int next(){
+		long start = System.nanoTime();
+		int symbol = draw();
+		feed(symbol);
+		Metrics.STEP.since(start);
+		Metrics.sampled();
+		return symbol;
+	}
+
+	/**@return an endless iterator over the symbols drawn by {@link #next()}, drawing each one only when asked for*/
+	PrimitiveIterator.OfInt symbols(){
+		return new PrimitiveIterator.OfInt(){
+			@Override
+			public boolean hasNext(){
+				return true;
+			}
+
+			@Override
+			public int nextInt(){
+				return Session.this.next();
+			}
+		};
+	}
+
+	/**Draw n symbols and write the bytes they stand for to channel while they are drawn, decoding them a
+	 * buffer at a time into a buffer reused across calls. Nothing is allocated per symbol, so n is only limited by the channel. A channel
+	 * that does not keep up simply blocks the drawing. Interrupting the calling thread stops the writing.
+	 * @param vocabulary the bytes of every symbol
+	 * @return the number of bytes written
+	 * @throws InterruptedIOException if interrupted, reporting the bytes written so far
+	 * */
+	long write(WritableByteChannel channel, Vocabulary vocabulary, long n) throws IOException {
+		if(buffer == null){
+			buffer = ByteBuffer.allocate(8192);
+			drawn = new int[buffer.capacity()];
+		}
+		long done = 0, written = 0;
+		while(done < n){
+			if(Thread.currentThread().isInterrupted()){
+				InterruptedIOException e = new InterruptedIOException("Writing samples interrupted");
+				e.bytesTransferred = (int) Math.min(written, Integer.MAX_VALUE);
+				throw e;
+			}
+			int count = (int) Math.min(buffer.capacity() / vocabulary.maxLength, n - done);
+			for(int i = 0; i < count; i++)
+				drawn[i] = next();
+			buffer.clear();
+			vocabulary.decode(drawn, 0, count, buffer);
+			done += count;
+			buffer.flip();
+			written += buffer.remaining();
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		return written;
+	}
+
+	/**Pick the most likely next symbol, and feed it back.
+	 * @return the index of the picked symbol
+	 * */
+	int nextGreedy(){
+		if(!primed)
+			throw new IllegalStateException("Session must be fed a seed first");
+		int symbol = Sampler.argmax(y, y.length);
+		feed(symbol);
+		return symbol;
+	}
+
+	/**Draw a symbol from an output with the temperature and random number generator of this session.
+	 * Overwrites output.
+	 * */
+	int draw(double[] output){
+		return sampler.draw(output, y.length, beta, random.nextDouble());
+	}
+
+	/**Draw a symbol from the output of the last one fed, without feeding it back.
+	 * */
+	int draw(){
+		if(!primed)
+			throw new IllegalStateException("Session must be fed a seed first");
+		return draw(y);
+	}
+
+	/**Copy the hidden state into column b of an h_size x batch matrix.
+	 * */
+	void storeHidden(double[] block, int batch, int b){
+		for(int i = 0; i < h.length; i++)
+			block[i * batch + b] = h[i];
+	}
+
+	/**Copy the hidden state and the output of the last symbol fed into column b of h_size x batch
+	 * and xy_size x batch matrices, the inverse of {@link #loadState}.
+	 * */
+	void storeState(double[] hBlock, double[] yBlock, int batch, int b){
+		storeHidden(hBlock, batch, b);
+		for(int k = 0; k < y.length; k++)
+			yBlock[k * batch + b] = y[k];
+	}
+
+	/**Take over the hidden state and output from column b of h_size x batch and xy_size x batch matrices,
+	 * as if the symbols that led to them had been fed to this session.
+	 * */
+	void loadState(double[] hBlock, double[] yBlock, int batch, int b){
+		for(int i = 0; i < h.length; i++)
+			h[i] = hBlock[i * batch + b];
+		for(int k = 0; k < y.length; k++)
+			y[k] = yBlock[k * batch + b];
+		primed = true;
+	}
+
+	/**@return whether anything has been fed since the session started or was reset*/
+	boolean isPrimed(){
+		return primed;
+	}
+
+	/**Forget everything fed so far.
+	 * */
+	void reset(){
+		Arrays.fill(h, 0d);
+		primed = false;
+	}
+
+	/**Set the prediction Temperature of this session only
+	 * @param t Temperature, positive.
+	 * */
+	void setTemperature(double t){
+		if(t > 0)
+			beta = 1/t;
+		else
+			throw new IllegalArgumentException("Argument must be positive");
+	}
+
+	double getTemperature(){
+		return 1/beta;
+	}
+
+	/**Only draw from the k most likely symbols, or from all for 0.
+	 * */
+	void setTopK(int k){
+		sampler.setTopK(k);
+	}
+
+	/**Only draw from the fewest most likely symbols that hold a share p of the probability, or from all for 1.
+	 * */
+	void setTopP(double p){
+		sampler.setTopP(p);
+	}
+}
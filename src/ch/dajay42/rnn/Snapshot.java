@@ -0,0 +1,282 @@
+package ch.dajay42.rnn;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**Compact binary snapshots of a {@link FlatRnn}, together with the position in the training text
+ * they were taken at.
+ * <p>
+ * Layout, all little-endian:
+ * <pre>
+ * offset size
+ *  0      4   magic "JRNN"
+ *  4      4   format version
+ *  8      4   cell type in the low 16 bits, number of layers minus one in the high 16 bits
+ * 12      4   flags, bit 0 set if the optimizer memories follow the parameters,
+ *             bit 1 set if the parameters are floats, bit 2 set if the memories are floats,
+ *             bits 8 to 15 the optimizer type, since version 4
+ * 16      4   hidden size
+ * 20      4   vocab size
+ * 24      8   learned steps
+ * 32      8   learning rate
+ * 40      8   temperature
+ * 48      8   drop-out
+ * 56      8   smoothed loss
+ * 64      8   text offset, since version 2
+ * 72      8   optimizer updates, since version 4
+ * 80          Wxh, Whh, Why, bh, by, row-major
+ *             then optionally mWxh, mWhh, mWhy, mbh, mby
+ * </pre>
+ * The memories are the optimizer state, one such run of arrays per slot; Adam for one keeps two.
+ * Gated cells store their stacked gate weights Wxg, Whg and bg in place of Wxh, Whh and bh. Several layers
+ * store Wxh and Whh of every layer from the bottom up, then Why, then bh of every layer, then by.
+ * The header is a multiple of 8 bytes, and float arrays are padded to one, so the arrays are aligned
+ * within a mapped file.
+ * Version 1 snapshots lack the text offset and have a 64 byte header, versions before 3 only hold doubles,
+ * versions before 4 always use Adagrad and have a 72 byte header.
+ * */
+final class Snapshot {
+
+	static final int MAGIC = 0x4E52524A; // "JRNN" read as a little-endian int
+	static final int VERSION = 4;
+	static final int HEADER_SIZE = 80;
+	private static final int HEADER_SIZE_V1 = 64;
+	private static final int HEADER_SIZE_V2 = 72;
+
+	static final int CELL_VANILLA = 0;
+	static final int CELL_LSTM = 1;
+	static final int CELL_GRU = 2;
+
+	static final int FLAG_MEMORIES = 1;
+	static final int FLAG_FLOAT_PARAMETERS = 2;
+	static final int FLAG_FLOAT_MEMORIES = 4;
+	private static final int FLAG_PRECISION = FLAG_FLOAT_PARAMETERS | FLAG_FLOAT_MEMORIES;
+	private static final int OPTIMIZER_SHIFT = 8;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	final FlatRnn rnn;
+	/**position in the training text*/
+	final long offset;
+
+	private Snapshot(FlatRnn rnn, long offset){
+		this.rnn = rnn;
+		this.offset = offset;
+	}
+
+	/**@return whether the file starts with the snapshot magic number
+	 * */
+	static boolean isSnapshot(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+			ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+			return !buffer.hasRemaining() && buffer.getInt(0) == MAGIC;
+		}
+	}
+
+	/**Write rnn to path, streaming the arrays through a small buffer. The data is forced to the
+	 * storage device before returning.
+	 * @param withMemories whether to include the optimizer memories, needed to continue training
+	 * @param offset position in the training text
+	 * */
+	static void write(FlatRnn rnn, Path path, boolean withMemories, long offset) throws IOException {
+		int flags = withMemories ? FLAG_MEMORIES : 0;
+		if(rnn.parameters()[0] instanceof float[])
+			flags |= FLAG_FLOAT_PARAMETERS;
+		if(rnn.memories()[0] instanceof float[])
+			flags |= FLAG_FLOAT_MEMORIES;
+		flags |= rnn.optimizerType() << OPTIMIZER_SHIFT;
+		Optimizer optimizer = rnn.getOptimizer();
+
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(rnn.cellType() | (rnn.layers() - 1) << 16);
+			buffer.putInt(flags);
+			buffer.putInt(rnn.getHiddenSize());
+			buffer.putInt(rnn.getVocabSize());
+			buffer.putLong(rnn.getLearnedSteps());
+			buffer.putDouble(rnn.getLearningRate());
+			buffer.putDouble(rnn.getTemperature());
+			buffer.putDouble(rnn.getDropout());
+			buffer.putDouble(rnn.getLastLoss());
+			buffer.putLong(offset);
+			buffer.putLong(optimizer != null ? optimizer.getUpdates() : 0);
+
+			for(Object a : rnn.parameters())
+				write(channel, buffer, a);
+			if(withMemories){
+				for(Object a : rnn.memories())
+					write(channel, buffer, a);
+			}
+			buffer.flip();
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		}
+	}
+
+	/**Append a double[] or float[] to the buffer, flushing it to the channel whenever it fills up.
+	 * */
+	private static void write(FileChannel channel, ByteBuffer buffer, Object array) throws IOException {
+		int length = FlatRnn.length(array);
+		int bytes = array instanceof double[] ? Double.BYTES : Float.BYTES;
+		int i = 0;
+		while(i < length){
+			if(buffer.remaining() < Double.BYTES){
+				buffer.flip();
+				while(buffer.hasRemaining())
+					channel.write(buffer);
+				buffer.clear();
+			}
+			int n = Math.min(length - i, buffer.remaining() / bytes);
+			if(array instanceof double[])
+				buffer.asDoubleBuffer().put((double[]) array, i, n);
+			else
+				buffer.asFloatBuffer().put((float[]) array, i, n);
+			buffer.position(buffer.position() + n * bytes);
+			i += n;
+		}
+		if(padding(array) > 0)
+			buffer.putFloat(0f);
+	}
+
+	/**@return the number of bytes needed to align the end of the array to 8 bytes*/
+	private static int padding(Object array){
+		return array instanceof float[] ? (FlatRnn.length(array) & 1) * Float.BYTES : 0;
+	}
+
+	/**@return the number of bytes of the array in a snapshot, including padding*/
+	private static long size(Object array){
+		int bytes = array instanceof double[] ? Double.BYTES : Float.BYTES;
+		return (long) FlatRnn.length(array) * bytes + padding(array);
+	}
+
+	/**Map the file at path and copy its arrays straight from the mapping into a new model.
+	 * */
+	static Snapshot read(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+			long size = channel.size();
+			if(size < HEADER_SIZE_V1)
+				throw new IOException("Snapshot too short");
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+
+			if(map.getInt() != MAGIC)
+				throw new IOException("Not a snapshot");
+			int version = map.getInt();
+			if(version < 1 || version > VERSION)
+				throw new IOException("Unsupported snapshot version " + version);
+			int headerSize = version == 1 ? HEADER_SIZE_V1 : (version < 4 ? HEADER_SIZE_V2 : HEADER_SIZE);
+			int cell = map.getInt();
+			int flags = map.getInt();
+			int h_size = map.getInt();
+			int xy_size = map.getInt();
+
+			FlatRnn rnn = create(cell, flags, h_size, xy_size);
+			rnn.setLearnedSteps(map.getLong());
+			rnn.setLearningRate(map.getDouble());
+			rnn.setTemperature(map.getDouble());
+			rnn.setDropout(map.getDouble());
+			rnn.setLastLoss(map.getDouble());
+			long offset = version == 1 ? 0 : map.getLong();
+			long updates = version < 4 ? 0 : map.getLong();
+
+			int optimizer = flags >>> OPTIMIZER_SHIFT & 0xFF;
+			if(optimizer != rnn.optimizerType()){
+				try{
+					rnn.setOptimizer(optimizer);
+				}catch(IllegalArgumentException | UnsupportedOperationException e){
+					throw new IOException("Unsupported optimizer " + optimizer + " for " + rnn.getClass().getSimpleName(), e);
+				}
+			}
+			if(rnn.getOptimizer() != null)
+				rnn.getOptimizer().setUpdates(updates);
+
+			boolean withMemories = (flags & FLAG_MEMORIES) != 0;
+			long expected = headerSize + size(rnn.parameters()) + (withMemories ? size(rnn.memories()) : 0);
+			if(size < expected)
+				throw new IOException("Snapshot truncated, expected " + expected + " bytes but found " + size);
+
+			map.position(headerSize);
+			for(Object a : rnn.parameters())
+				read(map, a);
+			if(withMemories){
+				for(Object a : rnn.memories())
+					read(map, a);
+			}
+			return new Snapshot(rnn, offset);
+		}
+	}
+
+	/**@return an empty model of the cell type and precision given in a header*/
+	private static FlatRnn create(int cell, int flags, int h_size, int xy_size) throws IOException {
+		int layers = (cell >>> 16) + 1;
+		cell &= 0xFFFF;
+		if(layers > 1){
+			if(cell != CELL_VANILLA || (flags & FLAG_PRECISION) != 0)
+				throw new IOException("Unsupported stacked cell type " + cell + " with flags " + flags);
+			return new StackedRnn(layers, h_size, xy_size, false);
+		}
+		if(cell == CELL_LSTM || cell == CELL_GRU){
+			if((flags & FLAG_PRECISION) != 0)
+				throw new IOException("Unsupported precision flags " + flags);
+			return cell == CELL_LSTM ? new LstmRnn(h_size, xy_size, false) : new GruRnn(h_size, xy_size, false);
+		}
+		if(cell != CELL_VANILLA)
+			throw new IOException("Unsupported cell type " + cell);
+		boolean floatParameters = (flags & FLAG_FLOAT_PARAMETERS) != 0;
+		boolean floatMemories = (flags & FLAG_FLOAT_MEMORIES) != 0;
+		if(!floatParameters && !floatMemories)
+			return new FusedRnn(h_size, xy_size, false);
+		if(floatParameters)
+			return new FloatRnn(h_size, xy_size, !floatMemories, false);
+		throw new IOException("Unsupported precision flags " + flags);
+	}
+
+	/**Bulk-copy the next double[] or float[] out of the mapping.
+	 * */
+	private static void read(MappedByteBuffer map, Object array){
+		if(array instanceof double[])
+			map.asDoubleBuffer().get((double[]) array);
+		else
+			map.asFloatBuffer().get((float[]) array);
+		map.position((int) (map.position() + size(array)));
+	}
+
+	private static long size(Object[] arrays){
+		long n = 0;
+		for(Object a : arrays)
+			n += size(a);
+		return n;
+	}
+
+	/**Convert a Java-serialized {@link MinimalRnn} or {@link FusedRnn} into a snapshot.
+	 * @throws java.io.InvalidObjectException for a FusedRnn serialized before {@link AbstractFlatRnn} existed,
+	 * whose layout is no longer supported
+	 * */
+	static void convert(Path from, Path to) throws IOException, ClassNotFoundException {
+		Object o;
+		try(ObjectInputStream s = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(from)))){
+			o = s.readObject();
+		}
+		FusedRnn rnn;
+		if(o instanceof FusedRnn)
+			rnn = (FusedRnn) o;
+		else if(o instanceof MinimalRnn)
+			rnn = FusedRnn.of((MinimalRnn) o);
+		else
+			throw new IOException("Cannot convert " + o.getClass().getName());
+		write(rnn, to, true, 0);
+	}
+}
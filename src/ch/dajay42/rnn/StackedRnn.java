@@ -0,0 +1,559 @@
+package ch.dajay42.rnn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**A stack of vanilla tanh layers, where the hidden state of layer l at step t is the input of layer l+1
+ * at step t, and only the top layer feeds the output.
+ * <p>
+ * Learning runs every layer, and the output layer, on a thread of its own, as a wavefront: layer l+1
+ * computes step t while layer l already computes step t+1, and in the backward pass layer l-1 computes
+ * step t+1 while layer l is at step t. Each stage waits only for the steps it depends on, published
+ * through per-stage progress counters, so after a ramp of one step per layer all stages run at once.
+ * The stages spin while waiting, as a step takes only microseconds, so learning wants a core per stage;
+ * with fewer cores the stages run one after the other on the calling thread instead. The stage threads are
+ * shared by all stacks and end when idle, so a model that is replaced leaves none behind.
+ * <p>
+ * The recurrent state holds the hidden states of all layers, the top one first.
+ * */
+@SuppressWarnings("WeakerAccess")
+public class StackedRnn extends AbstractFlatRnn {
+
+	private static final long serialVersionUID = 1L;
+
+	/**runs the stages of every stack, each on a thread of its own, as they wait for each other*/
+	private static final ExecutorService STAGES = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "rnn-layer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	//model parameters per layer, row-major
+	final double[][] Wxh; //input to hidden, h_size x xy_size for the bottom layer, h_size x h_size above
+	final double[][] Whh; //hidden to hidden, h_size x h_size
+	final double[][] bh; // hidden bias
+	final double[] Why; //top hidden to output, xy_size x h_size
+	final double[] by; // output bias
+
+	//hyperparameters
+	final int layers;
+
+	private transient Workspace workspace; //reused by learn
+
+	/**Preallocated buffers and progress counters for pipelined backpropagation through time
+	 * over a chunk of up to capacity steps.
+	 * */
+	private static final class Workspace {
+		final int capacity;
+
+		//forward pass
+		final double[][][] hs; //hidden states per layer and step, hs[l][0] is the initial state
+		final double[][] ys; //unnormalized outputs
+		final double[][] ps; //output probabilities
+
+		//backward pass
+		final double[][][] dIn; //gradient with respect to the input of each layer per step, filled by the layer above it
+		final double[][] dh; //per layer
+		final double[][] dhnext; //per layer
+		final double[] dy;
+
+		//gradients, same layout as the parameters
+		final double[][] dWxh;
+		final double[][] dWhh;
+		final double[][] dbh;
+		final double[] dWhy;
+		final double[] dby;
+		final double[][] gradients; //all of the above, in the order of the parameters
+
+		/**drop-out mask for Why, each entry either 0 or 1*/
+		final double[] whyMask;
+
+		//the chunk being learned, of which the steps from first on are fresh
+		int[] in;
+		int[] expected;
+		int inputs;
+		int first;
+		/**length of the window whose states are held, or 0 if they cannot be slid on*/
+		int window = 0;
+		//when the pass over the chunk started, and when the output layer had the loss
+		long started, forwarded;
+		double[] mask;
+		double p;
+
+		//steps completed per stage, the output being stage layers
+		final AtomicIntegerArray forward;
+		final AtomicIntegerArray backward;
+		volatile boolean failed;
+		final List<Callable<Double>> tasks = new ArrayList<>();
+
+		Workspace(StackedRnn rnn, int capacity){
+			this.capacity = capacity;
+			int layers = rnn.layers, h_size = rnn.h_size, xy_size = rnn.xy_size;
+			hs = new double[layers][capacity][h_size];
+			ys = new double[capacity][xy_size];
+			ps = new double[capacity][xy_size];
+
+			dIn = new double[layers + 1][][];
+			for(int l = 1; l <= layers; l++)
+				dIn[l] = new double[capacity][h_size];
+			dh = new double[layers][h_size];
+			dhnext = new double[layers][h_size];
+			dy = new double[xy_size];
+
+			dWxh = new double[layers][];
+			dWhh = new double[layers][];
+			dbh = new double[layers][];
+			for(int l = 0; l < layers; l++){
+				dWxh[l] = new double[rnn.Wxh[l].length];
+				dWhh[l] = new double[rnn.Whh[l].length];
+				dbh[l] = new double[h_size];
+			}
+			dWhy = new double[rnn.Why.length];
+			dby = new double[xy_size];
+			gradients = rnn.arrays(dWxh, dWhh, dWhy, dbh, dby);
+			whyMask = new double[rnn.Why.length];
+
+			forward = new AtomicIntegerArray(layers + 1);
+			backward = new AtomicIntegerArray(layers + 1);
+			for(int l = 0; l < layers; l++){
+				int layer = l;
+				tasks.add(() -> {
+					try {
+						rnn.layerForward(this, layer);
+						rnn.layerBackward(this, layer);
+						return 0d;
+					} catch (RuntimeException e) {
+						failed = true;
+						throw e;
+					}
+				});
+			}
+			tasks.add(() -> {
+				try {
+					double loss = rnn.outputForward(this);
+					forwarded = System.nanoTime();
+					rnn.outputBackward(this);
+					return loss;
+				} catch (RuntimeException e) {
+					failed = true;
+					throw e;
+				}
+			});
+		}
+
+		void clearGradients(){
+			for(int l = 0; l < dWxh.length; l++){
+				Arrays.fill(dWxh[l], 0d);
+				Arrays.fill(dWhh[l], 0d);
+				Arrays.fill(dbh[l], 0d);
+			}
+			Arrays.fill(dWhy, 0d);
+			Arrays.fill(dby, 0d);
+		}
+
+		/**Slide the states of every layer in the previous window on by fresh steps, in place.
+		 * */
+		void slide(int fresh){
+			for(double[][] layer : hs)
+				BpttWorkspace.slide(layer, window, fresh);
+		}
+
+		/**Wait until a stage has completed at least the given number of steps.
+		 * */
+		void await(AtomicIntegerArray progress, int stage, int steps){
+			int spins = 0;
+			while(progress.get(stage) < steps){
+				if(failed)
+					throw new IllegalStateException("Another stage failed");
+				if(++spins < 1 << 10)
+					Thread.onSpinWait();
+				else
+					Thread.yield();
+			}
+		}
+	}
+
+	/**@param layers number of stacked hidden layers
+	 * @param hiddensize hidden size of every layer
+	 * */
+	public StackedRnn(int layers, int hiddensize, int paramsize) {
+		this(layers, hiddensize, paramsize, true);
+	}
+
+	/**@param randomize whether to initialize the weights randomly, or leave them zero to be filled in*/
+	StackedRnn(int layers, int hiddensize, int paramsize, boolean randomize) {
+		super(hiddensize, paramsize, checkLayers(layers) * hiddensize);
+		this.layers = layers;
+
+		Wxh = new double[layers][];
+		Whh = new double[layers][];
+		bh = new double[layers][];
+		for(int l = 0; l < layers; l++){
+			Wxh[l] = new double[h_size * (l == 0 ? xy_size : h_size)];
+			Whh[l] = new double[h_size * h_size];
+			bh[l] = new double[h_size];
+		}
+		Why = new double[xy_size * h_size];
+		by = new double[xy_size];
+
+		if(randomize){
+			for(int l = 0; l < layers; l++){
+				// dense inputs are scaled to keep the activations of higher layers from vanishing
+				double range = l == 0 ? 0.01 : 1 / Math.sqrt(h_size);
+				randomize(Wxh[l], -range, range);
+				randomize(Whh[l], -0.01, 0.01);
+			}
+			randomize(Why, -0.01, 0.01);
+		}
+
+		optimizer = Optimizer.create(Optimizer.ADAGRAD, parameters());
+	}
+
+	private static int checkLayers(int layers){
+		if(layers < 1)
+			throw new IllegalArgumentException("Need at least one layer");
+		return layers;
+	}
+
+	/**@return the position of the hidden state of layer l within the recurrent state*/
+	private int offset(int l){
+		return (layers - 1 - l) * h_size;
+	}
+
+	@Override
+	public int cellType(){
+		return Snapshot.CELL_VANILLA;
+	}
+
+	@Override
+	public int layers(){
+		return layers;
+	}
+
+	/**@return the weights of every layer from the bottom up, then Why, then the biases of every layer, then by,
+	 * so that a single layer is laid out like a {@link FusedRnn}
+	 * */
+	@Override
+	public double[][] parameters(){
+		return arrays(Wxh, Whh, Why, bh, by);
+	}
+
+	private double[][] arrays(double[][] wx, double[][] wh, double[] wy, double[][] b, double[] y){
+		double[][] arrays = new double[3 * layers + 2][];
+		int n = 0;
+		for(int l = 0; l < layers; l++){
+			arrays[n++] = wx[l];
+			arrays[n++] = wh[l];
+		}
+		arrays[n++] = wy;
+		for(int l = 0; l < layers; l++)
+			arrays[n++] = b[l];
+		arrays[n] = y;
+		return arrays;
+	}
+
+	@Override
+	public StackedRnn blank(){
+		StackedRnn blank = new StackedRnn(layers, h_size, xy_size, false);
+		blank.setOptimizer(optimizer.type);
+		return blank;
+	}
+
+	// fused kernels
+
+	/**hOut = tanh(Wxh*x + Whh*hPrev + bh), in a single pass over Whh, for vectors at offsets into larger arrays.
+	 * @param in the dense input at inOff, or null for the one-hot input x
+	 * */
+	static void forwardHidden(double[] Wxh, double[] Whh, double[] bh, int h_size, int x_size,
+			int x, double[] in, int inOff, double[] hPrev, int prevOff, double[] hOut, int outOff){
+		for(int i = 0; i < h_size; i++){
+			int row = i * h_size;
+			double a = bh[i];
+			if(in == null){
+				a += Wxh[i * x_size + x];
+			}else{
+				int inRow = i * x_size;
+				for(int j = 0; j < x_size; j++)
+					a += Wxh[inRow + j] * in[inOff + j];
+			}
+			for(int j = 0; j < h_size; j++)
+				a += Whh[row + j] * hPrev[prevOff + j];
+			hOut[outOff + i] = Math.tanh(a);
+		}
+	}
+
+	/**Batched {@link #forwardHidden} for states stored as matrices with one column per sequence,
+	 * the offsets counting rows.
+	 * @param x the one-hot inputs, x[b] being the one of sequence b, used if in is null
+	 * */
+	static void forwardHiddenBatch(double[] Wxh, double[] Whh, double[] bh, int h_size, int x_size, int batch,
+			int[] x, double[] in, int inRow, double[] hPrev, int prevRow, double[] hOut, int outRow){
+		for(int i = 0; i < h_size; i++){
+			int row = i * h_size, out = (outRow + i) * batch;
+			for(int b = 0; b < batch; b++)
+				hOut[out + b] = bh[i] + (in == null ? Wxh[i * x_size + x[b]] : 0);
+			if(in != null){
+				for(int j = 0; j < x_size; j++){
+					double w = Wxh[i * x_size + j];
+					int col = (inRow + j) * batch;
+					for(int b = 0; b < batch; b++)
+						hOut[out + b] += w * in[col + b];
+				}
+			}
+			for(int j = 0; j < h_size; j++){
+				double w = Whh[row + j];
+				int col = (prevRow + j) * batch;
+				for(int b = 0; b < batch; b++)
+					hOut[out + b] += w * hPrev[col + b];
+			}
+			for(int b = 0; b < batch; b++)
+				hOut[out + b] = Math.tanh(hOut[out + b]);
+		}
+	}
+
+	// Rnn
+
+	@Override
+	public void forward(int symbol, double[] hPrev, double[] hOut, double[] yOut){
+		forwardHidden(Wxh[0], Whh[0], bh[0], h_size, xy_size, symbol, null, 0, hPrev, offset(0), hOut, offset(0));
+		for(int l = 1; l < layers; l++)
+			forwardHidden(Wxh[l], Whh[l], bh[l], h_size, h_size, 0, hOut, offset(l-1), hPrev, offset(l), hOut, offset(l));
+		FusedRnn.forwardOutput(Why, by, h_size, xy_size, hOut, yOut);
+	}
+
+	@Override
+	public void forwardBatch(int batch, int[] x, double[] hPrev, double[] hOut, double[] yOut){
+		forwardHiddenBatch(Wxh[0], Whh[0], bh[0], h_size, xy_size, batch, x, null, 0, hPrev, offset(0), hOut, offset(0));
+		for(int l = 1; l < layers; l++)
+			forwardHiddenBatch(Wxh[l], Whh[l], bh[l], h_size, h_size, batch, null, hOut, offset(l-1), hPrev, offset(l), hOut, offset(l));
+		FusedRnn.forwardOutputBatch(Why, by, h_size, xy_size, batch, hOut, yOut);
+	}
+
+	@Override
+	int slide(int inputs, int fresh){
+		Workspace ws = workspace;
+		if(ws == null || ws.capacity < inputs){
+			ws = new Workspace(this, inputs);
+			workspace = ws;
+		}
+		if(ws.window != inputs)
+			return inputs - 1;
+		if(fresh < inputs - 1)
+			ws.slide(fresh);
+		return fresh;
+	}
+
+	@Override
+	double backpropWindow(int[] in, int[] expectedIndex, int fresh, double[] s){
+		Workspace ws = workspace;
+		int inputs = in.length;
+		for(int l = 0; l < layers; l++)
+			System.arraycopy(s, offset(l), ws.hs[l][inputs - 1 - fresh], 0, h_size);
+		double loss = backprop(in, expectedIndex, inputs, fresh, ws);
+		for(int l = 0; l < layers; l++)
+			System.arraycopy(ws.hs[l][inputs - 1], 0, s, offset(l), h_size);
+		ws.window = inputs;
+		return loss;
+	}
+
+	@Override
+	double[][] gradients(){
+		return workspace.gradients;
+	}
+
+	@Override
+	double[][] ys(){
+		return workspace.ys;
+	}
+
+	/**Run the pipelined forward pass over the last fresh steps of a chunk, starting from
+	 * ws.hs[l][inputs - 1 - fresh], and the backward pass over the whole chunk, through the states of the
+	 * earlier steps already in ws. Only the fresh steps contribute to the loss. Leaves the gradients in ws.
+	 * @return the summed cross-entropy loss of the fresh steps
+	 * */
+	private double backprop(int[] in, int[] expectedIndex, int inputs, int fresh, Workspace ws){
+		ws.clearGradients();
+
+		// drop-out mask
+		ws.p = 1-dropout; //chance of being 1
+		ws.mask = null;
+		if(dropout > 0){
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for(int i = 0; i < ws.whyMask.length; i++)
+				ws.whyMask[i] = random.nextDouble() < ws.p ? 1d : 0d;
+			ws.mask = ws.whyMask;
+		}
+
+		ws.in = in;
+		ws.expected = expectedIndex;
+		ws.inputs = inputs;
+		ws.first = inputs - fresh;
+		ws.failed = false;
+		for(int s = 0; s <= layers; s++){
+			ws.forward.set(s, ws.first - 1);
+			ws.backward.set(s, 0);
+		}
+
+		ws.started = System.nanoTime();
+		if(Runtime.getRuntime().availableProcessors() <= layers){
+			// spinning stages would only take turns on too few cores, so run them in dependency order
+			for(int l = 0; l < layers; l++)
+				layerForward(ws, l);
+			double loss = outputForward(ws);
+			ws.forwarded = System.nanoTime();
+			outputBackward(ws);
+			for(int l = layers - 1; l >= 0; l--)
+				layerBackward(ws, l);
+			return timed(ws, loss);
+		}
+		try {
+			List<Future<Double>> results = STAGES.invokeAll(ws.tasks);
+			return timed(ws, results.get(layers).get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while learning", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Layer failed", e.getCause());
+		}
+	}
+
+	/**Record the time of the passes over the chunk just learned in ws. With the layers pipelined, the forward
+	 * pass counts until the output layer has the loss, by when every layer is done with its forward pass.
+	 * @return loss
+	 * */
+	private static double timed(Workspace ws, double loss){
+		Metrics.FORWARD.record(ws.forwarded - ws.started);
+		Metrics.BACKWARD.since(ws.forwarded);
+		return loss;
+	}
+
+	/**Forward pass of layer l, one step at a time, each as soon as the same step of the layer below is done.
+	 * */
+	private void layerForward(Workspace ws, int l){
+		int inputs = ws.inputs, x_size = l == 0 ? xy_size : h_size;
+		double[][] hs = ws.hs[l];
+		double[][] below = l == 0 ? null : ws.hs[l-1];
+		for(int t = ws.first; t < inputs; t++){
+			if(l > 0)
+				ws.await(ws.forward, l-1, t);
+			forwardHidden(Wxh[l], Whh[l], bh[l], h_size, x_size, ws.in[t-1], l == 0 ? null : below[t], 0, hs[t-1], 0, hs[t], 0);
+			ws.forward.set(l, t);
+		}
+	}
+
+	/**Backward pass of layer l, one step at a time, each as soon as the stage above has provided the gradient
+	 * with respect to the output of that step.
+	 * */
+	private void layerBackward(Workspace ws, int l){
+		int inputs = ws.inputs;
+		double[][] hs = ws.hs[l];
+		double[][] below = l == 0 ? null : ws.hs[l-1];
+		double[] Wx = Wxh[l], Wh = Whh[l];
+		double[] dWx = ws.dWxh[l],
+				 dWh = ws.dWhh[l],
+				 db = ws.dbh[l],
+				 dh = ws.dh[l],
+				 dhnext = ws.dhnext[l];
+		double[][] dOut = ws.dIn[l+1];
+		Arrays.fill(dhnext, 0d);
+		for(int t = inputs-1; t > 0; t--){
+			ws.await(ws.backward, l+1, inputs - t);
+			double[] hT = hs[t], hPrev = hs[t-1], dAbove = dOut[t];
+
+			//dhraw = (1 - hs[t].^2) .* (dAbove + dhnext), dbh += dhraw
+			for(int i = 0; i < h_size; i++){
+				double d = (dAbove[i] + dhnext[i]) * (1 - hT[i] * hT[i]);
+				dh[i] = d;
+				db[i] += d;
+			}
+
+			//dWxh += dhraw*(x^T), dIn = (Wxh^T)*dhraw for the layer below
+			if(l == 0){
+				int x = ws.in[t-1];
+				for(int i = 0; i < h_size; i++)
+					dWx[i * xy_size + x] += dh[i];
+			}else{
+				double[] xT = below[t], dIn = ws.dIn[l][t];
+				Arrays.fill(dIn, 0d);
+				for(int i = 0; i < h_size; i++){
+					double d = dh[i];
+					int row = i * h_size;
+					for(int j = 0; j < h_size; j++){
+						dWx[row + j] += d * xT[j];
+						dIn[j] += Wx[row + j] * d;
+					}
+				}
+			}
+
+			//dWhh += dhraw*(hs[t-1]^T), dhnext = (Whh^T)*dhraw
+			Arrays.fill(dhnext, 0d);
+			for(int i = 0; i < h_size; i++){
+				double d = dh[i];
+				int row = i * h_size;
+				for(int j = 0; j < h_size; j++){
+					dWh[row + j] += d * hPrev[j];
+					dhnext[j] += Wh[row + j] * d;
+				}
+			}
+			ws.backward.set(l, inputs - t);
+		}
+	}
+
+	/**Forward pass of the output layer, reading the top layer.
+	 * @return the summed cross-entropy loss
+	 * */
+	private double outputForward(Workspace ws){
+		int top = layers - 1;
+		double loss = 0;
+		for(int t = ws.first; t < ws.inputs; t++){
+			ws.await(ws.forward, top, t);
+			loss += FusedRnn.forwardSoftmaxLoss(Why, by, ws.mask, ws.p, h_size, xy_size, ws.hs[top][t], ws.ys[t], ws.ps[t], ws.expected[t]);
+		}
+		return loss;
+	}
+
+	/**Backward pass of the output layer, providing the gradient with respect to the top layer at every step,
+	 * which is zero before the fresh steps.
+	 * */
+	private void outputBackward(Workspace ws){
+		int inputs = ws.inputs;
+		double[][] hs = ws.hs[layers - 1];
+		double[] mask = ws.mask;
+		double[] dy = ws.dy, dWhy = ws.dWhy, dby = ws.dby;
+		for(int t = inputs-1; t > 0; t--){
+			double[] hT = hs[t], dh = ws.dIn[layers][t];
+
+			Arrays.fill(dh, 0d);
+			if(t >= ws.first){
+				//dy = ps[t] - onehot(expected)
+				System.arraycopy(ws.ps[t], 0, dy, 0, xy_size);
+				dy[ws.expected[t]] -= 1.0;
+
+				//dh = (Why^T)*dy, dWhy += dy*(hs[t]^T), dby += dy
+				for(int k = 0; k < xy_size; k++){
+					double d = dy[k];
+					dby[k] += d;
+					int row = k * h_size;
+					for(int j = 0; j < h_size; j++)
+						dWhy[row + j] += d * hT[j];
+					if(mask != null){
+						for(int j = 0; j < h_size; j++)
+							dh[j] += Why[row + j] * mask[row + j] * d;
+					}else{
+						for(int j = 0; j < h_size; j++)
+							dh[j] += Why[row + j] * d;
+					}
+				}
+			}
+			ws.backward.set(layers, inputs - t);
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package ch.dajay42.rnn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**The symbols a model reads and writes, each standing for a run of bytes.
+ * <p>
+ * The byte alphabet has one symbol per ASCII byte and reads every other byte as '?'. A learned vocabulary
+ * starts out from all 256 byte values, so any text can be encoded, and adds the most frequent pair of
+ * adjacent symbols in a sample of a corpus as a new symbol until it has the requested size, byte-pair
+ * encoding. Common words and word pieces thus become single symbols, and every step of a model covers
+ * several bytes.
+ * <p>
+ * Text is encoded by taking the longest symbol matching at each position, in a single pass over a trie
+ * of the symbols' bytes. A byte-level vocabulary encodes and decodes through the tables of a {@link ByteCodec}
+ * instead.
+ * <p>
+ * Layout of a vocabulary file, all little-endian:
+ * <pre>
+ * offset size
+ *  0      4   magic "JVOC"
+ *  4      4   format version
+ *  8      4   number of symbols
+ * 12          per symbol, its length in one byte, then its bytes
+ * </pre>
+ * */
+final class Vocabulary {
+
+	static final int MAGIC = 0x434F564A; // "JVOC" read as a little-endian int
+	static final int VERSION = 1;
+
+	/**longest run of bytes a learned symbol may stand for*/
+	static final int MAX_LENGTH = 32;
+	/**largest learned vocabulary, bounded by the pair counts kept while learning*/
+	static final int MAX_SIZE = 1024;
+
+	private static final int BYTES = 256;
+
+	private final byte[][] tokens;
+	/**symbol of the bytes no symbol starts with, or -1 if there are none*/
+	private final int fallback;
+
+	//trie over the bytes of all symbols, node 0 being the root
+	private final int[][] children; //child node of every byte value, 0 for none, or null for a leaf
+	private final int[] symbols; //symbol ending at each node, or -1
+	private final ByteCodec codec; //symbols of single bytes, or null if some byte has none
+
+	final int size;
+	/**length of the longest symbol in bytes*/
+	final int maxLength;
+	/**fingerprint of the symbols, recorded in the files encoded with them*/
+	final long hash;
+
+	/**@param fallback byte standing in for the bytes no symbol starts with*/
+	private Vocabulary(byte[][] tokens, byte fallback){
+		this.tokens = tokens;
+		size = tokens.length;
+
+		List<int[]> nodes = new ArrayList<>();
+		nodes.add(null);
+		int[] ends = new int[1 + Arrays.stream(tokens).mapToInt(t -> t.length).sum()];
+		Arrays.fill(ends, -1);
+		int longest = 0;
+		long h = 0xcbf29ce484222325L;
+		for(int s = 0; s < size; s++){
+			byte[] token = tokens[s];
+			if(token.length == 0 || token.length > MAX_LENGTH)
+				throw new IllegalArgumentException("Symbol " + s + " has " + token.length + " bytes");
+			int node = 0;
+			for(byte b : token){
+				if(nodes.get(node) == null)
+					nodes.set(node, new int[BYTES]);
+				int[] next = nodes.get(node);
+				if(next[b & 0xFF] == 0){
+					next[b & 0xFF] = nodes.size();
+					nodes.add(null);
+				}
+				node = next[b & 0xFF];
+				h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+			}
+			if(ends[node] >= 0)
+				throw new IllegalArgumentException("Symbols " + ends[node] + " and " + s + " are the same");
+			ends[node] = s;
+			longest = Math.max(longest, token.length);
+			h = (h ^ 0x100) * 0x100000001b3L;
+		}
+		children = nodes.toArray(new int[0][]);
+		symbols = Arrays.copyOf(ends, children.length);
+		maxLength = longest;
+		hash = h;
+
+		int[] root = children[0];
+		this.fallback = root != null && root[fallback & 0xFF] != 0 ? symbols[root[fallback & 0xFF]] : -1;
+
+		int[] symbolOf = new int[BYTES];
+		boolean complete = true;
+		for(int b = 0; b < BYTES; b++){
+			int node = root != null ? root[b] : 0;
+			symbolOf[b] = node != 0 && symbols[node] >= 0 ? symbols[node] : this.fallback;
+			complete &= symbolOf[b] >= 0;
+		}
+		byte[] byteOf = new byte[size];
+		for(int s = 0; s < size; s++)
+			if(tokens[s].length == 1)
+				byteOf[s] = tokens[s][0];
+		codec = complete ? new ByteCodec(symbolOf, byteOf) : null;
+	}
+
+	/**@return the historic alphabet of the 128 ASCII bytes, numbered like an {@link RnnEncDec} over them
+	 * */
+	static Vocabulary ascii(){
+		Set<Byte> charset = new HashSet<>();
+		for(byte s = 0; s >= 0; s++){
+			charset.add(s);
+		}
+		RnnEncDec<Byte> encDec = new RnnEncDec<>(charset);
+		byte[][] tokens = new byte[encDec.classes][];
+		for(int i = 0; i < tokens.length; i++)
+			tokens[i] = new byte[]{encDec.decodeIndex(i)};
+		return new Vocabulary(tokens, (byte) '?');
+	}
+
+	/**Learn a vocabulary by byte-pair encoding the start of a corpus.
+	 * @param text the corpus, read as raw bytes
+	 * @param sample number of bytes to learn from
+	 * @param size number of symbols wanted, from 256 to {@link #MAX_SIZE}; fewer are learned if no pair
+	 * occurs twice any more
+	 * */
+	static Vocabulary learn(Corpus text, long sample, int size){
+		if(size < BYTES || size > MAX_SIZE)
+			throw new IllegalArgumentException("Vocabulary size must be from " + BYTES + " to " + MAX_SIZE);
+		int n = (int) Math.min(Math.min(sample, text.length), Integer.MAX_VALUE - 8);
+		int[] seq = new int[n];
+		for(int i = 0; i < n; i++)
+			seq[i] = text.byteAt(i) & 0xFF;
+
+		List<byte[]> tokens = new ArrayList<>(size);
+		int[] lengths = new int[size];
+		for(int b = 0; b < BYTES; b++){
+			tokens.add(new byte[]{(byte) b});
+			lengths[b] = 1;
+		}
+
+		// pair counts, indexed by first symbol * size + second symbol
+		int[] counts = new int[size * size];
+		while(tokens.size() < size){
+			int symbols = tokens.size();
+			for(int a = 0; a < symbols; a++)
+				Arrays.fill(counts, a * size, a * size + symbols, 0);
+			for(int i = 1; i < n; i++)
+				counts[seq[i-1] * size + seq[i]]++;
+
+			int best = -1, bestCount = 1;
+			for(int a = 0; a < symbols; a++){
+				int row = a * size, room = MAX_LENGTH - lengths[a];
+				for(int b = 0; b < symbols; b++){
+					if(counts[row + b] > bestCount && lengths[b] <= room){
+						best = row + b;
+						bestCount = counts[row + b];
+					}
+				}
+			}
+			if(best < 0)
+				break;
+
+			int first = best / size, second = best % size, merged = symbols;
+			int j = 0;
+			for(int i = 0; i < n; i++){
+				if(i + 1 < n && seq[i] == first && seq[i+1] == second){
+					seq[j++] = merged;
+					i++;
+				}else{
+					seq[j++] = seq[i];
+				}
+			}
+			n = j;
+
+			byte[] a = tokens.get(first), b = tokens.get(second);
+			byte[] token = Arrays.copyOf(a, a.length + b.length);
+			System.arraycopy(b, 0, token, a.length, b.length);
+			tokens.add(token);
+			lengths[merged] = token.length;
+		}
+		return new Vocabulary(tokens.toArray(new byte[0][]), (byte) '?');
+	}
+
+	/**@return whether every symbol is a single byte, so that text can be read without encoding it first*/
+	boolean isByteLevel(){
+		return maxLength == 1;
+	}
+
+	/**@return the bytes symbol stands for; must not be modified*/
+	byte[] bytes(int symbol){
+		return tokens[symbol];
+	}
+
+	/**@return the codec reading every byte as the symbol of that single byte, or the fallback symbol;
+	 * unless the vocabulary is byte-level, it decodes only those symbols
+	 * @throws IllegalStateException if some byte has neither
+	 * */
+	ByteCodec codec(){
+		if(codec == null)
+			throw new IllegalStateException("Not every byte has a symbol");
+		return codec;
+	}
+
+	/**@return whether text is encoded and decoded byte by byte through the codec*/
+	private boolean direct(){
+		return codec != null && isByteLevel();
+	}
+
+	/**@return the symbol of the longest run of bytes starting at src[at] and ending before src[to]
+	 * that has one, or the fallback symbol
+	 * @throws IllegalArgumentException if there is neither
+	 * */
+	int match(byte[] src, int at, int to){
+		int node = 0, symbol = -1;
+		for(int i = at; i < to; i++){
+			int[] next = children[node];
+			if(next == null || next[src[i] & 0xFF] == 0)
+				break;
+			node = next[src[i] & 0xFF];
+			if(symbols[node] >= 0)
+				symbol = symbols[node];
+		}
+		if(symbol < 0)
+			symbol = fallback;
+		if(symbol < 0)
+			throw new IllegalArgumentException("No symbol for byte " + (src[at] & 0xFF));
+		return symbol;
+	}
+
+	/**@return the number of bytes a match of symbol consumes, one for the fallback symbol*/
+	int length(int symbol){
+		return tokens[symbol].length;
+	}
+
+	/**Encode bytes by their longest matching symbols.
+	 * */
+	int[] encode(byte[] bytes){
+		if(direct())
+			return codec.encode(bytes);
+		int[] encoded = new int[bytes.length];
+		int n = 0;
+		for(int at = 0; at < bytes.length; n++){
+			encoded[n] = match(bytes, at, bytes.length);
+			at += length(encoded[n]);
+		}
+		return Arrays.copyOf(encoded, n);
+	}
+
+	/**@return the bytes the symbols stand for*/
+	byte[] decode(int[] encoded){
+		if(direct())
+			return codec.decode(encoded);
+		int length = 0;
+		for(int symbol : encoded)
+			length += tokens[symbol].length;
+		byte[] bytes = new byte[length];
+		int at = 0;
+		for(int symbol : encoded){
+			System.arraycopy(tokens[symbol], 0, bytes, at, tokens[symbol].length);
+			at += tokens[symbol].length;
+		}
+		return bytes;
+	}
+
+	/**Decode count symbols of src from index from on into dst at its position, advancing it.
+	 * @throws java.nio.BufferOverflowException if dst has not room for all their bytes
+	 * */
+	void decode(int[] src, int from, int count, ByteBuffer dst){
+		if(direct()){
+			codec.decode(src, from, count, dst);
+			return;
+		}
+		for(int i = from; i < from + count; i++)
+			dst.put(tokens[src[i]]);
+	}
+
+	void write(Path path) throws IOException {
+		int length = 12;
+		for(byte[] token : tokens)
+			length += 1 + token.length;
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(size);
+		for(byte[] token : tokens){
+			buffer.put((byte) token.length);
+			buffer.put(token);
+		}
+		Files.write(path, buffer.array());
+	}
+
+	static Vocabulary read(Path path) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			if(buffer.getInt() != MAGIC)
+				throw new IOException("Not a vocabulary");
+			int version = buffer.getInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported vocabulary version " + version);
+			int size = buffer.getInt();
+			if(size < 1)
+				throw new IOException("Vocabulary is empty");
+			byte[][] tokens = new byte[size][];
+			for(int s = 0; s < size; s++){
+				tokens[s] = new byte[buffer.get() & 0xFF];
+				buffer.get(tokens[s]);
+			}
+			return new Vocabulary(tokens, (byte) '?');
+		} catch (RuntimeException e) {
+			throw new IOException("Broken vocabulary", e);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package ch.dajay42.rnn;
+
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Named;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**Compares the gradients of the backward pass of every model with double parameters against central
+ * finite differences of its loss, computed by stepping it forward.
+ * */
+class GradientCheckTest {
+
+	static final int HIDDEN = 5;
+	static final int VOCAB = 4;
+	static final double EPSILON = 1e-5;
+	static final double TOLERANCE = 1e-7;
+
+	static Stream<Named<AbstractFlatRnn>> models(){
+		return Stream.of(model(new FusedRnn(HIDDEN, VOCAB)), model(new LstmRnn(HIDDEN, VOCAB)),
+				model(new GruRnn(HIDDEN, VOCAB)), model(new StackedRnn(3, HIDDEN, VOCAB)));
+	}
+
+	/**Give a model large enough random parameters that every weight matters, and no drop-out.*/
+	static Named<AbstractFlatRnn> model(AbstractFlatRnn rnn){
+		Random random = new Random(rnn.cellType() * 31 + rnn.layers());
+		for(double[] p : (double[][]) rnn.parameters())
+			for(int i = 0; i < p.length; i++)
+				p[i] = random.nextGaussian() * 0.5;
+		rnn.setDropout(0);
+		return Named.of(rnn.getClass().getSimpleName(), rnn);
+	}
+
+	static int[] symbols(int length, long seed){
+		Random random = new Random(seed);
+		int[] symbols = new int[length];
+		for(int i = 0; i < length; i++)
+			symbols[i] = random.nextInt(VOCAB);
+		return symbols;
+	}
+
+	/**@return the summed cross-entropy loss of the last fresh steps of the window, stepping it forward from s*/
+	static double loss(FlatRnn rnn, int[] window, int fresh, double[] s){
+		double[] state = s.clone(), next = new double[s.length], y = new double[VOCAB];
+		double loss = 0;
+		for(int t = 1; t < window.length; t++){
+			rnn.forward(window[t-1], state, next, y);
+			if(t >= window.length - fresh){
+				double max = Double.NEGATIVE_INFINITY, sum = 0;
+				for(double v : y) max = Math.max(max, v);
+				for(double v : y) sum += Math.exp(v - max);
+				loss += Math.log(sum) + max - y[window[t]];
+			}
+			double[] swap = state;
+			state = next;
+			next = swap;
+		}
+		return loss;
+	}
+
+	/**Check gradients, in the order of the parameters, against finite differences of the loss of the last
+	 * fresh steps of the window, starting from s.
+	 * */
+	static void assertGradients(AbstractFlatRnn rnn, double[][] gradients, int[] window, int fresh, double[] s){
+		double[][] parameters = (double[][]) rnn.parameters();
+		assertEquals(parameters.length, gradients.length);
+		for(int k = 0; k < parameters.length; k++){
+			double[] p = parameters[k];
+			for(int i = 0; i < p.length; i++){
+				double original = p[i];
+				p[i] = original + EPSILON;
+				double plus = loss(rnn, window, fresh, s);
+				p[i] = original - EPSILON;
+				double minus = loss(rnn, window, fresh, s);
+				p[i] = original;
+				assertEquals((plus - minus) / (2 * EPSILON), gradients[k][i], TOLERANCE,
+						rnn.getClass().getSimpleName() + " parameter " + k + " entry " + i);
+			}
+		}
+	}
+
+	@ParameterizedTest
+	@MethodSource("models")
+	void wholeWindow(AbstractFlatRnn rnn){
+		int[] window = symbols(8, 1);
+		double[] s = new double[rnn.getStateSize()];
+		Random random = new Random(2);
+		for(int i = 0; i < s.length; i++)
+			s[i] = random.nextGaussian() * 0.3;
+		double[] s0 = s.clone();
+
+		int fresh = rnn.slide(window.length, window.length - 1);
+		assertEquals(window.length - 1, fresh);
+		double loss = rnn.backpropWindow(window, window, fresh, s);
+
+		assertEquals(loss(rnn, window, fresh, s0), loss, 1e-12);
+		assertGradients(rnn, rnn.gradients(), window, fresh, s0);
+	}
+}
@@ -0,0 +1,170 @@
+package ch.dajay42.rnn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**Draws from a {@link Sampler} at evenly spaced uniform numbers, so that the share of draws of every index
+ * is its probability up to the spacing, and compares the shares with the truncated distribution.
+ * */
+class SamplerTest {
+
+	static final int DRAWS = 100_000;
+	static final double TOLERANCE = 2.0 / DRAWS;
+
+	/**probabilities in no particular order, summing to one*/
+	static final double[] P = {0.05, 0.4, 0.1, 0.3, 0.15};
+
+	/**@return the share of draws of every index*/
+	static double[] shares(Sampler sampler, double[] y, double beta){
+		double[] shares = new double[y.length];
+		double[] scratch = new double[y.length];
+		for(int i = 0; i < DRAWS; i++){
+			System.arraycopy(y, 0, scratch, 0, y.length);
+			shares[sampler.draw(scratch, y.length, beta, (i + 0.5) / DRAWS)] += 1.0 / DRAWS;
+		}
+		return shares;
+	}
+
+	static double[] logits(double[] p, double shift){
+		double[] y = new double[p.length];
+		for(int k = 0; k < p.length; k++)
+			y[k] = Math.log(p[k]) + shift;
+		return y;
+	}
+
+	/**@return p restricted to the given indices and normalized*/
+	static double[] restricted(double[] p, int... indices){
+		double[] q = new double[p.length];
+		double sum = 0;
+		for(int k : indices)
+			sum += p[k];
+		for(int k : indices)
+			q[k] = p[k] / sum;
+		return q;
+	}
+
+	@Test
+	void full(){
+		Sampler sampler = new Sampler(P.length);
+		assertShares(P, shares(sampler, logits(P, 0), 1));
+	}
+
+	@Test
+	void largeScores(){
+		Sampler sampler = new Sampler(P.length);
+		assertShares(P, shares(sampler, logits(P, 1e4), 1));
+		sampler.setTopK(3);
+		assertShares(restricted(P, 1, 3, 4), shares(sampler, logits(P, 1e4), 1));
+	}
+
+	@Test
+	void temperature(){
+		double[] tempered = new double[P.length];
+		for(int k = 0; k < P.length; k++)
+			tempered[k] = Math.sqrt(P[k]);
+		double sum = Arrays.stream(tempered).sum();
+		for(int k = 0; k < P.length; k++)
+			tempered[k] /= sum;
+
+		Sampler sampler = new Sampler(P.length);
+		assertShares(tempered, shares(sampler, logits(P, 0), 0.5));
+	}
+
+	@Test
+	void topK(){
+		Sampler sampler = new Sampler(P.length);
+		sampler.setTopK(2);
+		assertShares(restricted(P, 1, 3), shares(sampler, logits(P, 0), 1));
+		sampler.setTopK(1);
+		assertShares(restricted(P, 1), shares(sampler, logits(P, 0), 1));
+		sampler.setTopK(P.length + 1);
+		assertShares(P, shares(sampler, logits(P, 0), 1));
+	}
+
+	@Test
+	void topP(){
+		Sampler sampler = new Sampler(P.length);
+		sampler.setTopP(0.65);
+		assertShares(restricted(P, 1, 3), shares(sampler, logits(P, 0), 1));
+		sampler.setTopP(0.75);
+		assertShares(restricted(P, 1, 3, 4), shares(sampler, logits(P, 0), 1));
+		sampler.setTopP(0.3);
+		assertShares(restricted(P, 1), shares(sampler, logits(P, 0), 1));
+	}
+
+	@Test
+	void topKThenTopP(){
+		Sampler sampler = new Sampler(P.length);
+		sampler.setTopK(3);
+		sampler.setTopP(0.9); // 0.9 of the 0.85 held by the top three is more than the top two hold
+		assertShares(restricted(P, 1, 3, 4), shares(sampler, logits(P, 0), 1));
+		sampler.setTopP(0.8);
+		assertShares(restricted(P, 1, 3), shares(sampler, logits(P, 0), 1));
+	}
+
+	/**Truncate many random distributions with ties and compare with sorting the probabilities.*/
+	@Test
+	void randomDistributions(){
+		Random random = new Random(7);
+		for(int trial = 0; trial < 50; trial++){
+			int length = 2 + random.nextInt(40);
+			double[] p = new double[length];
+			for(int k = 0; k < length; k++)
+				p[k] = 1 + random.nextInt(length / 2 + 1);
+			double sum = Arrays.stream(p).sum();
+			for(int k = 0; k < length; k++)
+				p[k] /= sum;
+			int topK = 1 + random.nextInt(length);
+			Integer[] order = new Integer[length];
+			for(int k = 0; k < length; k++)
+				order[k] = k;
+			Arrays.sort(order, (a, b) -> Double.compare(p[b], p[a]));
+
+			// with ties, the kth largest probability is all that is determined
+			Sampler sampler = new Sampler(length);
+			sampler.setTopK(topK);
+			double[] shares = shares(sampler, logits(p, 0), 1);
+			double kth = p[order[topK - 1]];
+			int kept = 0;
+			for(int k = 0; k < length; k++){
+				if(p[k] < kth)
+					assertEquals(0, shares[k], "index " + k + " is not among the top " + topK);
+				else if(shares[k] > 0)
+					kept++;
+			}
+			double topSum = 0;
+			for(int c = 0; c < topK; c++)
+				topSum += p[order[c]];
+			for(int k = 0; k < length; k++)
+				if(p[k] > kth)
+					assertEquals(p[k] / topSum, shares[k], TOLERANCE, "index " + k);
+			assertEquals(topK, kept, "number of indices drawn");
+		}
+	}
+
+	@Test
+	void argmax(){
+		assertEquals(1, Sampler.argmax(new double[]{1, 3, 3, 2}, 4));
+		assertEquals(0, Sampler.argmax(new double[]{5, 3, 3, 2}, 4));
+		assertEquals(2, Sampler.argmax(new double[]{1, 3, 4, 9}, 3));
+	}
+
+	@Test
+	void invalidSettings(){
+		Sampler sampler = new Sampler(P.length);
+		assertThrows(IllegalArgumentException.class, () -> sampler.setTopK(-1));
+		assertThrows(IllegalArgumentException.class, () -> sampler.setTopP(0));
+		assertThrows(IllegalArgumentException.class, () -> sampler.setTopP(1.5));
+		assertThrows(IllegalArgumentException.class, () -> sampler.setTopP(Double.NaN));
+	}
+
+	static void assertShares(double[] expected, double[] actual){
+		assertArrayEquals(expected, actual, TOLERANCE);
+	}
+}
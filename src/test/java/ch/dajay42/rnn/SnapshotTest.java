@@ -0,0 +1,124 @@
+package ch.dajay42.rnn;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Named;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**Writes a trained model of every precision and optimizer to a snapshot and checks that reading it back
+ * restores every array and the training state bit for bit, so that the optimizer goes on exactly as before.
+ * */
+class SnapshotTest {
+
+	static final int HIDDEN = 6;
+	static final int VOCAB = 5;
+	static final long OFFSET = 1234567890123L;
+
+	@TempDir
+	Path dir;
+
+	static Stream<Named<FlatRnn>> models(){
+		return Stream.of(
+				model("FusedRnn adagrad", new FusedRnn(HIDDEN, VOCAB), Optimizer.ADAGRAD),
+				model("FusedRnn rmsprop", new FusedRnn(HIDDEN, VOCAB), Optimizer.RMSPROP),
+				model("FusedRnn adam", new FusedRnn(HIDDEN, VOCAB), Optimizer.ADAM),
+				model("FusedRnn momentum", new FusedRnn(HIDDEN, VOCAB), Optimizer.MOMENTUM),
+				model("FloatRnn float memories", new FloatRnn(HIDDEN, VOCAB, false), Optimizer.ADAGRAD),
+				model("FloatRnn double memories", new FloatRnn(HIDDEN, VOCAB, true), Optimizer.ADAGRAD),
+				model("LstmRnn adam", new LstmRnn(HIDDEN, VOCAB), Optimizer.ADAM),
+				model("GruRnn rmsprop", new GruRnn(HIDDEN, VOCAB), Optimizer.RMSPROP),
+				model("StackedRnn momentum", new StackedRnn(2, HIDDEN, VOCAB), Optimizer.MOMENTUM));
+	}
+
+	private static Named<FlatRnn> model(String name, FlatRnn rnn, int optimizer){
+		if(optimizer != rnn.optimizerType())
+			rnn.setOptimizer(optimizer);
+		rnn.setLearningRate(Optimizer.defaultRate(optimizer));
+		rnn.setDropout(0);
+		train(rnn, 5);
+		rnn.setTemperature(0.7);
+		rnn.setDropout(0.25);
+		return Named.of(name, rnn);
+	}
+
+	private static void train(FlatRnn rnn, int windows){
+		int[] stream = GradientCheckTest.symbols(8 + windows * 4, 5);
+		int[] window = new int[9];
+		for(int w = 0; w < windows; w++){
+			System.arraycopy(stream, w * 4, window, 0, window.length);
+			rnn.learnTruncated(window, window.length - 1);
+		}
+	}
+
+	@ParameterizedTest
+	@MethodSource("models")
+	void roundTrip(FlatRnn rnn) throws IOException {
+		Path path = dir.resolve("model.rnn");
+		Snapshot.write(rnn, path, true, OFFSET);
+		Snapshot snapshot = Snapshot.read(path);
+		FlatRnn read = snapshot.rnn;
+
+		assertEquals(OFFSET, snapshot.offset);
+		assertSame(rnn.getClass(), read.getClass());
+		assertEquals(rnn.layers(), read.layers());
+		assertEquals(rnn.optimizerType(), read.optimizerType());
+		if(rnn.getOptimizer() != null)
+			assertEquals(rnn.getOptimizer().getUpdates(), read.getOptimizer().getUpdates());
+		assertEquals(rnn.getLearnedSteps(), read.getLearnedSteps());
+		assertEquals(rnn.getLearningRate(), read.getLearningRate());
+		assertEquals(rnn.getTemperature(), read.getTemperature());
+		assertEquals(rnn.getDropout(), read.getDropout());
+		assertEquals(rnn.getLastLoss(), read.getLastLoss());
+		assertArraysEqual(rnn.parameters(), read.parameters());
+		assertArraysEqual(rnn.memories(), read.memories());
+
+		double[][] gradients = gradients(rnn);
+		((AbstractFlatRnn) rnn).applyGradients(gradients);
+		((AbstractFlatRnn) read).applyGradients(gradients);
+		assertArraysEqual(rnn.parameters(), read.parameters());
+		assertArraysEqual(rnn.memories(), read.memories());
+	}
+
+	@ParameterizedTest
+	@MethodSource("models")
+	void withoutMemories(FlatRnn rnn) throws IOException {
+		Path path = dir.resolve("model.rnn");
+		Snapshot.write(rnn, path, false, OFFSET);
+		FlatRnn read = Snapshot.read(path).rnn;
+
+		assertArraysEqual(rnn.parameters(), read.parameters());
+		assertArraysEqual(rnn.blank().memories(), read.memories());
+	}
+
+	/**@return made up gradients of the parameters, some large enough to be clipped*/
+	private static double[][] gradients(FlatRnn rnn){
+		Object[] parameters = rnn.parameters();
+		double[][] gradients = new double[parameters.length][];
+		for(int k = 0; k < parameters.length; k++){
+			gradients[k] = new double[FlatRnn.length(parameters[k])];
+			for(int i = 0; i < gradients[k].length; i++)
+				gradients[k][i] = Math.sin(k * 7 + i) * (i % 5 == 0 ? 10 : 1);
+		}
+		return gradients;
+	}
+
+	/**Compare double[] or float[] arrays bit for bit.*/
+	private static void assertArraysEqual(Object[] expected, Object[] actual){
+		assertEquals(expected.length, actual.length);
+		for(int i = 0; i < expected.length; i++){
+			assertSame(expected[i].getClass(), actual[i].getClass(), "array " + i);
+			if(expected[i] instanceof double[])
+				assertArrayEquals((double[]) expected[i], (double[]) actual[i], "array " + i);
+			else
+				assertArrayEquals((float[]) expected[i], (float[]) actual[i], "array " + i);
+		}
+	}
+}
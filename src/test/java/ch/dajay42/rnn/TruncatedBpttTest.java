@@ -0,0 +1,56 @@
+package ch.dajay42.rnn;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**Slides a window along a stream of symbols, keeping the states of the earlier steps from the previous
+ * window, and checks that every window learns exactly what the full window would: the loss and gradients of
+ * its fresh steps when run forward from the state at its start, and the state past all but its last input.
+ * */
+class TruncatedBpttTest {
+
+	static final int WINDOW = 9;
+	static final int FRESH = 3;
+	static final int SLIDES = 4;
+
+	@ParameterizedTest
+	@MethodSource("ch.dajay42.rnn.GradientCheckTest#models")
+	void slidingEqualsFullWindow(AbstractFlatRnn rnn){
+		int[] stream = GradientCheckTest.symbols(WINDOW + SLIDES * FRESH, 3);
+		double[] s = new double[rnn.getStateSize()];
+
+		int[] window = Arrays.copyOf(stream, WINDOW);
+		assertEquals(WINDOW - 1, rnn.slide(WINDOW, WINDOW - 1));
+		rnn.backpropWindow(window, window, WINDOW - 1, s);
+
+		for(int slide = 1; slide <= SLIDES; slide++){
+			int start = slide * FRESH;
+			window = Arrays.copyOfRange(stream, start, start + WINDOW);
+			assertEquals(FRESH, rnn.slide(WINDOW, FRESH));
+			double loss = rnn.backpropWindow(window, window, FRESH, s);
+
+			double[] s0 = forward(rnn, stream, start);
+			assertEquals(GradientCheckTest.loss(rnn, window, FRESH, s0), loss, 1e-12);
+			assertArrayEquals(forward(rnn, stream, start + WINDOW - 1), s, 1e-12);
+			GradientCheckTest.assertGradients(rnn, rnn.gradients(), window, FRESH, s0);
+		}
+	}
+
+	/**@return the state after stepping through the first steps symbols from the zero state*/
+	private static double[] forward(FlatRnn rnn, int[] stream, int steps){
+		double[] state = new double[rnn.getStateSize()], next = new double[state.length];
+		double[] y = new double[rnn.getVocabSize()];
+		for(int t = 0; t < steps; t++){
+			rnn.forward(stream[t], state, next, y);
+			double[] swap = state;
+			state = next;
+			next = swap;
+		}
+		return state;
+	}
+}
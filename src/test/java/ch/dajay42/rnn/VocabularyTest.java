@@ -0,0 +1,86 @@
+package ch.dajay42.rnn;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**Encodes text with the ASCII alphabet and with a vocabulary learned from a corpus in res/, and checks that
+ * decoding gives the text back.
+ * */
+class VocabularyTest {
+
+	static final Path CORPUS = Path.of("res", "shakespear.txt");
+	static final int SIZE = 320;
+
+	static Vocabulary learned;
+	static byte[] text;
+
+	@BeforeAll
+	static void learn() throws IOException {
+		try(Corpus corpus = new Corpus(CORPUS, Vocabulary.ascii().codec())){
+			learned = Vocabulary.learn(corpus, 20_000, SIZE);
+		}
+		text = Files.readAllBytes(CORPUS);
+	}
+
+	@Test
+	void asciiRoundTrip(){
+		Vocabulary ascii = Vocabulary.ascii();
+		assertTrue(ascii.isByteLevel());
+		assertEquals(128, ascii.size);
+
+		int[] encoded = ascii.encode(text);
+		assertEquals(text.length, encoded.length);
+		assertArrayEquals(text, ascii.decode(encoded));
+	}
+
+	@Test
+	void asciiFallback(){
+		Vocabulary ascii = Vocabulary.ascii();
+		byte[] bytes = "caf\u00e9!".getBytes(StandardCharsets.UTF_8);
+		assertArrayEquals("caf??!".getBytes(StandardCharsets.US_ASCII), ascii.decode(ascii.encode(bytes)));
+	}
+
+	@Test
+	void learnedRoundTrip(){
+		assertFalse(learned.isByteLevel());
+		assertEquals(SIZE, learned.size);
+
+		int[] encoded = learned.encode(text);
+		assertTrue(encoded.length < text.length * 3 / 4, "learned symbols should cover several bytes");
+		for(int symbol : encoded)
+			assertTrue(symbol >= 0 && symbol < SIZE);
+		assertArrayEquals(text, learned.decode(encoded));
+	}
+
+	@Test
+	void learnedEveryByte(){
+		byte[] bytes = new byte[512];
+		for(int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) (i * 37);
+		assertArrayEquals(bytes, learned.decode(learned.encode(bytes)));
+	}
+
+	@Test
+	void writeRead(@TempDir Path dir) throws IOException {
+		Path path = dir.resolve("vocabulary.jvoc");
+		learned.write(path);
+		Vocabulary read = Vocabulary.read(path);
+
+		assertEquals(learned.size, read.size);
+		assertEquals(learned.hash, read.hash);
+		for(int symbol = 0; symbol < learned.size; symbol++)
+			assertArrayEquals(learned.bytes(symbol), read.bytes(symbol));
+		assertArrayEquals(learned.encode(text), read.encode(text));
+	}
+}